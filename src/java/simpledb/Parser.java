@@ -15,8 +15,10 @@ import simpledb.common.Type;
 import simpledb.execution.*;
 import simpledb.optimizer.LogicalPlan;
 import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
 import simpledb.storage.IntField;
 import simpledb.storage.StringField;
+import simpledb.storage.VarStringField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.Transaction;
@@ -361,13 +363,15 @@ public class Parser {
                     IntField f = new IntField(new Integer(zc.getValue()));
                     t.setField(i, f);
                 } else if (zc.getType() == ZConstant.STRING) {
-                    if (td.getFieldType(i) != Type.STRING_TYPE) {
+                    if (td.getFieldType(i) != Type.STRING_TYPE
+                            && td.getFieldType(i) != Type.VARCHAR_TYPE) {
                         throw new simpledb.ParsingException("Value "
                                 + zc.getValue()
                                 + " is a string, expected an integer.");
                     }
-                    StringField f = new StringField(zc.getValue(),
-                            Type.STRING_LEN);
+                    StringField f = td.getFieldType(i) == Type.VARCHAR_TYPE
+                            ? new VarStringField(zc.getValue())
+                            : new StringField(zc.getValue(), Type.STRING_LEN);
                     t.setField(i, f);
                 } else {
                     throw new simpledb.ParsingException(
@@ -594,6 +598,9 @@ public class Parser {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
         TableStats.computeStatistics();
+        // read back the pages the last run had cached
+        Database.getBufferPool().enableWarmRestart(new File(
+                new File(argv[0]).getAbsoluteFile().getParentFile(), BufferPool.HOT_PAGES_FILE));
 
         String queryFile = null;
 
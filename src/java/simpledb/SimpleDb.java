@@ -3,10 +3,12 @@ import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
 import simpledb.storage.*;
+import simpledb.transaction.LockBenchmark;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.util.Arrays;
 
 public class SimpleDb {
     public static void main (String[] args)
@@ -41,6 +43,8 @@ public class SimpleDb {
                                 ts[index++] = Type.INT_TYPE;
                             else if (s.equalsIgnoreCase("string"))
                                 ts[index++] = Type.STRING_TYPE;
+                            else if (s.equalsIgnoreCase("varchar"))
+                                ts[index++] = Type.VARCHAR_TYPE;
                             else {
                                 System.err.println("Unknown type " + s);
                                 return;
@@ -50,8 +54,13 @@ public class SimpleDb {
                             fieldSeparator = args[4].charAt(0);
                     }
 
-                    HeapFileEncoder.convert(sourceTxtFile, targetDatFile,
-                            BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator);
+                    // tables with varchar fields are loaded as slotted files, see Catalog.loadSchema
+                    if (Arrays.asList(ts).contains(Type.VARCHAR_TYPE))
+                        HeapFileEncoder.convertSlotted(sourceTxtFile, targetDatFile,
+                                BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator);
+                    else
+                        HeapFileEncoder.convert(sourceTxtFile, targetDatFile,
+                                BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator);
 
                 } catch (IOException e) {
                     throw new RuntimeException(e);
@@ -94,6 +103,13 @@ public class SimpleDb {
                     e.printStackTrace();
                 }
 
+                break;
+            case "lockbench":
+                try {
+                    LockBenchmark.main(Arrays.copyOfRange(args, 1, args.length));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
                 break;
             default:
                 System.err.println("Unknown command: " + args[0]);
@@ -1,8 +1,11 @@
 package simpledb.common;
 
 import simpledb.common.Type;
+import simpledb.storage.ColumnFile;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
+import simpledb.storage.SegmentedFile;
+import simpledb.storage.SlottedHeapFile;
 import simpledb.storage.TupleDesc;
 import simpledb.storage.Table;
 
@@ -54,7 +57,11 @@ public class Catalog {
      */
     public void addTable(DbFile file, String name, String pkeyField) {
         // some code goes here
-        tableIdMap.put(file.getId(), new Table(file,name,pkeyField));
+        Table old=tableIdMap.put(file.getId(), new Table(file,name,pkeyField));
+        if(old!=null&&old.getDbFile()!=file){
+            // the replaced file will never be read through the catalog again
+            Database.getFileChannelManager().close(old.getDbFile());
+        }
         tableNameMap.put(name,file.getId());
     }
 
@@ -151,12 +158,20 @@ public class Catalog {
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
+        for(Table t:tableIdMap.values()){
+            Database.getFileChannelManager().close(t.getDbFile());
+        }
         tableIdMap.clear();
         tableNameMap.clear();
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line declares one table, e.g.
+     * <code>name (f1 int pk, f2 string, f3 varchar) slotted compressed</code>;
+     * the trailing layout (heap, slotted or column) is optional. A heap or
+     * slotted table may be followed by "compressed", to store its pages
+     * compressed, or by "segmented", to spread them over segment files.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -181,6 +196,8 @@ public class Catalog {
                         types.add(Type.INT_TYPE);
                     else if (els2[1].trim().equalsIgnoreCase("string"))
                         types.add(Type.STRING_TYPE);
+                    else if (els2[1].trim().equalsIgnoreCase("varchar"))
+                        types.add(Type.VARCHAR_TYPE);
                     else {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
@@ -197,7 +214,35 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                // optional page layout after the field list: "heap",
+                // "slotted" or "column"; tables with varchar fields default
+                // to slotted. A trailing "compressed" or "segmented" picks
+                // how heap pages are stored
+                String layout = line.substring(line.indexOf(")") + 1).trim();
+                String storage = "";
+                for (String option : new String[]{"compressed", "segmented"}) {
+                    if (layout.toLowerCase().endsWith(option)) {
+                        storage = option;
+                        layout = layout.substring(0, layout.length() - option.length()).trim();
+                    }
+                }
+                if (layout.isEmpty())
+                    layout = types.contains(Type.VARCHAR_TYPE) ? "slotted" : "heap";
+                boolean compressed = storage.equals("compressed");
+                int segmentPages = storage.equals("segmented") ? SegmentedFile.DEFAULT_SEGMENT_PAGES : 0;
+                File tabFile = new File(baseFolder+"/"+name + ".dat");
+                DbFile tabHf;
+                if (layout.equalsIgnoreCase("heap"))
+                    tabHf = new HeapFile(tabFile, t, false, compressed, segmentPages);
+                else if (layout.equalsIgnoreCase("slotted"))
+                    tabHf = new SlottedHeapFile(tabFile, t, false, compressed, segmentPages);
+                else if (layout.equalsIgnoreCase("column") && storage.isEmpty())
+                    tabHf = new ColumnFile(tabFile, t);
+                else {
+                    System.out.println("Unknown layout " + (layout + " " + storage).trim());
+                    System.exit(0);
+                    return;
+                }
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
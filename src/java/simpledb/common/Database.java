@@ -1,7 +1,9 @@
 package simpledb.common;
 
 import simpledb.storage.BufferPool;
+import simpledb.storage.FileChannelManager;
 import simpledb.storage.LogFile;
+import simpledb.storage.ReplacementPolicy;
 
 import java.io.*;
 import java.util.concurrent.atomic.AtomicReference;
@@ -20,11 +22,25 @@ public class Database {
     private static final AtomicReference<Database> _instance = new AtomicReference<>(new Database());
     private final Catalog _catalog;
     private final BufferPool _bufferpool;
+    private final FileChannelManager _fileChannels;
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
 
+    static {
+        // release every open table file on JVM exit, after saving the hot pages
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                _instance.get()._bufferpool.saveHotPages();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            _instance.get()._fileChannels.closeAll();
+        }));
+    }
+
     private Database() {
+        _fileChannels = new FileChannelManager();
         _catalog = new Catalog();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
         LogFile tmp = null;
@@ -48,6 +64,11 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /** Return the file channel manager of the static Database instance */
+    public static FileChannelManager getFileChannelManager() {
+        return _instance.get()._fileChannels;
+    }
+
     /** Return the catalog of the static Database instance */
     public static Catalog getCatalog() {
         return _instance.get()._catalog;
@@ -58,11 +79,26 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * that evicts the pages policy picks, and return it
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy policy) {
+        return resetBufferPool(new BufferPool(pages, policy));
+    }
+
+    private static BufferPool resetBufferPool(BufferPool pool) {
+        // stops its page cleaner and hot page saver
+        _instance.get()._bufferpool.setStealEnabled(false);
+        _instance.get()._bufferpool.disableWarmRestart();
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), pool);
         } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
             e.printStackTrace();
         }
@@ -72,6 +108,9 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        // close before the swap: closing stamps the sidecars of the heap
+        // files through getFileChannelManager(), which must be the old one
+        _instance.get()._fileChannels.closeAll();
         _instance.set(new Database());
     }
 
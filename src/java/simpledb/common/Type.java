@@ -1,9 +1,12 @@
 package simpledb.common;
 
 import simpledb.storage.StringField;
+import simpledb.storage.VarStringField;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.io.*;
 
@@ -28,6 +31,15 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf) throws ParseException {
+            try {
+                return new IntField(buf.getInt());
+            } catch (BufferUnderflowException e) {
+                throw new ParseException("couldn't parse", buf.position());
+            }
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -46,6 +58,64 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf) throws ParseException {
+            int start = buf.position();
+            try {
+                int strLen = buf.getInt();
+                if (strLen < 0 || strLen > STRING_LEN) {
+                    throw new ParseException("couldn't parse", start);
+                }
+                byte[] bs = new byte[strLen];
+                buf.get(bs);
+                buf.position(start + getLen());
+                return new StringField(new String(bs), STRING_LEN);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                throw new ParseException("couldn't parse", start);
+            }
+        }
+    }, VARCHAR_TYPE() {
+        /**
+         * Only the length and the bytes of a VARCHAR value are stored, so
+         * this is the largest size a value can take, not the size of every
+         * value.
+         */
+        @Override
+        public int getLen() {
+            return STRING_LEN+4;
+        }
+
+        @Override
+        public Field parse(DataInputStream dis) throws ParseException {
+            try {
+                int strLen = dis.readInt();
+                if (strLen < 0 || strLen > STRING_LEN) {
+                    throw new ParseException("couldn't parse", 0);
+                }
+                byte[] bs = new byte[strLen];
+                dis.readFully(bs);
+                return new VarStringField(new String(bs));
+            } catch (IOException e) {
+                throw new ParseException("couldn't parse", 0);
+            }
+        }
+
+        @Override
+        public Field parse(ByteBuffer buf) throws ParseException {
+            int start = buf.position();
+            try {
+                int strLen = buf.getInt();
+                if (strLen < 0 || strLen > STRING_LEN) {
+                    throw new ParseException("couldn't parse", start);
+                }
+                byte[] bs = new byte[strLen];
+                buf.get(bs);
+                return new VarStringField(new String(bs));
+            } catch (BufferUnderflowException e) {
+                throw new ParseException("couldn't parse", start);
+            }
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -64,4 +134,14 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read from the current position of the specified buffer, which is
+   *   advanced past the field.
+   * @param buf The buffer to read from
+   * @throws ParseException if the data in the buffer is not of the
+   *   appropriate type.
+   */
+    public abstract Field parse(ByteBuffer buf) throws ParseException;
+
 }
@@ -92,9 +92,7 @@ public class Filter extends Operator {
     @Override
     public void setChildren(OpIterator[] children) {
         // some code goes here
-        if(this.child!=children[0]){
-            this.child=children[0];
-        }
+        this.child=children[0];
     }
 
 }
@@ -43,13 +43,154 @@ public class SeqScan implements OpIterator {
     private final Catalog catalog;
 
     private DbFileIterator dbFileIterator;
+
+    /** number of pages to read ahead of the scan, for HeapFiles */
+    private int readAheadPages;
+
+    /** indexes of the fields of the table to return, or null for all */
+    private int[] columns;
+
+    /** predicates over the fields of the table, for skipping pages */
+    private final List<Predicate> pagePredicates=new ArrayList<>();
+
+    private boolean open=false;
+
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, 0);
+    }
+
+    /**
+     * Creates a sequential scan that keeps readAheadPages pages ahead of the
+     * current one being loaded into the BufferPool in the background. Large
+     * scans benefit from a deep window; short scans should use 0 so they do
+     * not pull pages they will never read into the pool. The window is
+     * ignored for tables that are not HeapFiles.
+     *
+     * @see HeapFile#iterator(TransactionId, int)
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int readAheadPages) {
         // some code goes here
         catalog=Database.getCatalog();
         this.tid=tid;
         this.tableid=tableid;
         this.tableAlias=tableAlias;
-        this.dbFileIterator=catalog.getDatabaseFile(tableid).iterator(tid);
+        this.readAheadPages=readAheadPages;
+        this.dbFileIterator=createIterator();
+    }
+
+    private DbFileIterator createIterator() {
+        DbFile file=catalog.getDatabaseFile(tableid);
+        if(columns!=null&&file instanceof ColumnFile){
+            // only the pages of the requested columns are read
+            return ((ColumnFile) file).iterator(tid,columns);
+        }
+        DbFileIterator it;
+        if(file instanceof HeapFile){
+            it=((HeapFile) file).iterator(tid,readAheadPages,pagePredicates);
+        }else{
+            it=file.iterator(tid);
+        }
+        return columns==null? it:new ProjectingIterator(it,columns,projectedTupleDesc(file.getTupleDesc()));
+    }
+
+    /**
+     * Restricts the scan to some fields of the table; the tuples returned,
+     * and getTupleDesc, then only have those fields, in the given order. For
+     * a ColumnFile this means only the pages of those columns are read. Must
+     * be called while the scan is not open.
+     *
+     * @param columns indexes of the fields in the TupleDesc of the table, or
+     *                null to return all fields
+     */
+    public void setColumns(int[] columns) {
+        this.columns=columns==null? null:columns.clone();
+        this.dbFileIterator=createIterator();
+    }
+
+    /**
+     * Lets the scan skip the pages that the zone map of a HeapFile shows
+     * cannot hold a tuple satisfying p. The scan still returns every tuple
+     * of the pages it reads, so p must also be applied to its output, e.g.
+     * by a {@link Filter} over this scan; LogicalPlan pushes the predicates
+     * of its filters this way.
+     *
+     * @param p a predicate over the fields of getTupleDesc()
+     * @throws IllegalStateException if the scan is open
+     */
+    public void addPagePredicate(Predicate p) {
+        if(open){
+            throw new IllegalStateException("cannot add a page predicate to an open scan");
+        }
+        int field=columns==null? p.getField():columns[p.getField()];
+        pagePredicates.add(new Predicate(field,p.getOp(),p.getOperand()));
+        this.dbFileIterator=createIterator();
+    }
+
+    /** @return the indexes of the fields returned, or null if all are */
+    public int[] getColumns() {
+        return columns==null? null:columns.clone();
+    }
+
+    private TupleDesc projectedTupleDesc(TupleDesc td) {
+        Type[] types=new Type[columns.length];
+        String[] names=new String[columns.length];
+        for(int j=0;j<columns.length;j++){
+            types[j]=td.getFieldType(columns[j]);
+            names[j]=td.getFieldName(columns[j]);
+        }
+        return new TupleDesc(types,names);
+    }
+
+    /** Cuts the tuples of a full scan down to some of their fields. */
+    private static class ProjectingIterator implements DbFileIterator {
+        private final DbFileIterator child;
+        private final int[] columns;
+        private final TupleDesc td;
+
+        ProjectingIterator(DbFileIterator child, int[] columns, TupleDesc td) {
+            this.child=child;
+            this.columns=columns;
+            this.td=td;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            child.open();
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            return child.hasNext();
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            Tuple full=child.next();
+            Tuple t=new Tuple(td);
+            for(int j=0;j<columns.length;j++){
+                t.setField(j,full.getField(columns[j]));
+            }
+            t.setRecordId(full.getRecordId());
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+        }
+
+        public void close() {
+            child.close();
+        }
+    }
+
+    /**
+     * Changes the read-ahead window of this scan. Must be called while the
+     * scan is not open.
+     */
+    public void setReadAheadPages(int readAheadPages) {
+        this.readAheadPages=readAheadPages;
+        this.dbFileIterator=createIterator();
+    }
+
+    public int getReadAheadPages() {
+        return readAheadPages;
     }
 
     /**
@@ -88,6 +229,9 @@ public class SeqScan implements OpIterator {
         // some code goes here
         this.tableid=tableid;
         this.tableAlias=tableAlias;
+        this.columns=null;
+        this.pagePredicates.clear();
+        this.dbFileIterator=createIterator();
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -97,6 +241,7 @@ public class SeqScan implements OpIterator {
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
         dbFileIterator.open();
+        open=true;
     }
 
     /**
@@ -113,6 +258,9 @@ public class SeqScan implements OpIterator {
         // some code goes here
 //        DbFile file=Database.getCatalog().getDatabaseFile(tableid);
         TupleDesc td=Database.getCatalog().getTupleDesc(tableid);
+        if(columns!=null){
+            td=projectedTupleDesc(td);
+        }
         Type[] typeList=new Type[td.numFields()];
         String[] nameList=new String[td.numFields()];
 
@@ -140,6 +288,7 @@ public class SeqScan implements OpIterator {
     public void close() {
         // some code goes here
         dbFileIterator.close();
+        open=false;
     }
 
     public void rewind() throws DbException, NoSuchElementException,
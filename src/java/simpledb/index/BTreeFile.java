@@ -1,6 +1,7 @@
 package simpledb.index;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedDeque;
 
@@ -33,6 +34,8 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
+	/** non-null when the pages of f are stored compressed; the root pointer page is page 0 */
+	private final CompressedPageStore compressed;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -43,10 +46,24 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, key, td, false);
+	}
+
+	/**
+	 * Constructs a B+ tree file backed by the specified file, optionally
+	 * storing its pages compressed.
+	 *
+	 * @param compress - if true, pages are kept compressed in f, see
+	 *            {@link CompressedPageStore}; an uncompressed f is compressed
+	 *            on first access
+	 * @see #BTreeFile(File, int, TupleDesc)
+	 */
+	public BTreeFile(File f, int key, TupleDesc td, boolean compress) {
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.compressed = compress ? new CompressedPageStore(this, f, BTreeRootPtrPage.getPageSize()) : null;
 	}
 
 	/**
@@ -88,49 +105,42 @@ public class BTreeFile implements DbFile {
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
-            if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-                byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                return new BTreeRootPtrPage(id, pageBuf);
-            } else {
-                byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
-                } else { // id.pgcateg() == BTreePageId.HEADER
-                    return new BTreeHeaderPage(id, pageBuf);
-                }
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        // Close the file on success or error
-        // Ignore failures closing the file
-    }
+		try {
+			if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+				byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
+				int retval = read(0, pageBuf, 0);
+				if (retval == 0) {
+					throw new IllegalArgumentException("Read past end of table");
+				}
+				if (retval < BTreeRootPtrPage.getPageSize()) {
+					throw new IllegalArgumentException("Unable to read "
+							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
+				}
+				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+				return new BTreeRootPtrPage(id, pageBuf);
+			} else {
+				byte[] pageBuf = new byte[BufferPool.getPageSize()];
+				int retval = read(id.getPageNumber(), pageBuf, pageOffset(id.getPageNumber()));
+				if (retval == 0) {
+					throw new IllegalArgumentException("Read past end of table");
+				}
+				if (retval < BufferPool.getPageSize()) {
+					throw new IllegalArgumentException("Unable to read "
+							+ BufferPool.getPageSize() + " bytes from BTreeFile");
+				}
+				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+				if (id.pgcateg() == BTreePageId.INTERNAL) {
+					return new BTreeInternalPage(id, pageBuf, keyField);
+				} else if (id.pgcateg() == BTreePageId.LEAF) {
+					return new BTreeLeafPage(id, pageBuf, keyField);
+				} else { // id.pgcateg() == BTreePageId.HEADER
+					return new BTreeHeaderPage(id, pageBuf);
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
@@ -142,22 +152,56 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+		if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+			write(0, data, 0);
+		} else {
+			write(id.getPageNumber(), data, pageOffset(id.getPageNumber()));
 		}
-		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+	}
+
+	/**
+	 * Reads page pgNo (0 for the root pointer page), which starts at offset
+	 * in an uncompressed file, into buf.
+	 * @return the number of bytes read, 0 past the end of the file
+	 */
+	private int read(int pgNo, byte[] buf, long offset) throws IOException {
+		if (compressed == null) {
+			return Database.getFileChannelManager().read(this, f, ByteBuffer.wrap(buf), offset);
+		}
+		if (pgNo >= compressed.numPages()) {
+			return 0;
 		}
+		compressed.readPage(pgNo, buf);
+		return buf.length;
+	}
+
+	/**
+	 * Writes page pgNo (0 for the root pointer page), which starts at offset
+	 * in an uncompressed file.
+	 */
+	private void write(int pgNo, byte[] data, long offset) throws IOException {
+		if (compressed == null) {
+			Database.getFileChannelManager().write(this, f, ByteBuffer.wrap(data), offset);
+		} else {
+			compressed.writePage(pgNo, data);
+		}
+	}
+
+	/**
+	 * Returns the offset in the file of the non-root-pointer page with the given number.
+	 * Page numbers start at 1; the root pointer page sits in front of page 1.
+	 */
+	private static long pageOffset(int pgNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pgNo - 1) * BufferPool.getPageSize();
 	}
 	
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
 	public int numPages() {
+		if (compressed != null) {
+			return Math.max(0, compressed.numPages() - 1);
+		}
 		// we only ever write full pages
 		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
 	}
@@ -196,31 +240,40 @@ public class BTreeFile implements DbFile {
 		if(f==null){
 			// left-most child
 			assert (pid.pgcateg()==BTreePageId.INTERNAL);
-			BTreeInternalPage interalPage=(BTreeInternalPage) getPage(tid, dirtypages, pid, perm);
-			Iterator<BTreeEntry> it =interalPage.iterator();
-			BTreeEntry e=it.next();
-			BTreePageId childPid=e.getLeftChild();
+			BTreeInternalPage interalPage=(BTreeInternalPage) pinPage(tid, dirtypages, pid, perm);
+			BTreePageId childPid;
+			try {
+				Iterator<BTreeEntry> it =interalPage.iterator();
+				BTreeEntry e=it.next();
+				childPid=e.getLeftChild();
+			} finally {
+				Database.getBufferPool().unpinPage(tid, pid);
+			}
 			return findLeafPage(tid, dirtypages, childPid, perm, f);
 
 		}else{
 			// iterate through the entries in the internal page
 			// and compare the entry value to  he provided key value
 			assert (pid.pgcateg()==BTreePageId.INTERNAL);
-			BTreeInternalPage interalPage=(BTreeInternalPage) getPage(tid, dirtypages, pid, perm);
-			Iterator<BTreeEntry> it =interalPage.iterator();
-			BTreeEntry e=null;
-			while(it.hasNext()){
-				 e=it.next();
-				if(e.getKey().compare(Op.GREATER_THAN_OR_EQ,f)){
-					break;
-				}
-			}
-			// find the node or the left-most node
+			BTreeInternalPage interalPage=(BTreeInternalPage) pinPage(tid, dirtypages, pid, perm);
 			BTreePageId childPid=null;
-			if(f.compare(Op.GREATER_THAN,e.getKey())) {
-				childPid = e.getRightChild();
-			}else{
-				childPid= e.getLeftChild();
+			try {
+				Iterator<BTreeEntry> it =interalPage.iterator();
+				BTreeEntry e=null;
+				while(it.hasNext()){
+					 e=it.next();
+					if(e.getKey().compare(Op.GREATER_THAN_OR_EQ,f)){
+						break;
+					}
+				}
+				// find the node or the left-most node
+				if(f.compare(Op.GREATER_THAN,e.getKey())) {
+					childPid = e.getRightChild();
+				}else{
+					childPid= e.getLeftChild();
+				}
+			} finally {
+				Database.getBufferPool().unpinPage(tid, pid);
 			}
 			return findLeafPage(tid, dirtypages, childPid, perm, f);
 		}
@@ -558,6 +611,32 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * Method to pin a page like {@link #getPage(TransactionId, Map, BTreePageId, Permissions)}.
+	 * The page is pinned in the BufferPool even if it is found in the dirtypages map, so
+	 * every call must be matched by a call to BufferPool.unpinPage().
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the requested page
+	 * @param perm - the requested permissions on the page
+	 * @return the requested page
+	 * 
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	Page pinPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		Page p = Database.getBufferPool().pinPage(tid, pid, perm);
+		if(dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		if(perm == Permissions.READ_WRITE) {
+			dirtypages.put(pid, p);
+		}
+		return p;
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
@@ -723,7 +802,7 @@ public class BTreeFile implements DbFile {
 		// that the tuples are evenly distributed. Be sure to update
 		// the corresponding parent entry.
 		// 满足steal
-		assert (page.getNumTuples()<page.getMaxTuples()/2&&page.getNumTuples()+sibling.getNumTuples()>=page.getMaxTuples());
+		assert (page.getNumTuples()<page.getMaxTuples()/2&&sibling.getNumTuples()>page.getMaxTuples()/2);
 		// page 在左边 那么sibling 的第一个被page取走
 		Iterator<Tuple> it=null;
 		if(isRightSibling){
@@ -822,7 +901,7 @@ public class BTreeFile implements DbFile {
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
 		// 验证条件
-		assert (page.getNumEntries()<page.getMaxEntries()/2&&page.getNumEntries()+leftSibling.getNumEntries()>page.getMaxEntries());
+		assert (page.getNumEntries()<page.getMaxEntries()/2&&leftSibling.getNumEntries()>page.getMaxEntries()/2);
 		// 取到sibling的最后一个 entry 并且设置好
 		Iterator<BTreeEntry> siblingIt=leftSibling.reverseIterator();
 		// 找到page原来第一个entry
@@ -1097,15 +1176,12 @@ public class BTreeFile implements DbFile {
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
 		synchronized(this) {
-			if(f.length() == 0) {
+			if(compressed != null ? compressed.numPages() == 0 : f.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				write(0, emptyRootPtrData, 0);
+				write(1, emptyLeafData, emptyRootPtrData.length);
 			}
 		}
 
@@ -1161,11 +1237,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				write(numPages() + 1, emptyData, pageOffset(numPages() + 1));
 				emptyPageNo = numPages();
 			}
 		}
@@ -1196,10 +1269,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		write(emptyPageNo, BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1359,10 +1429,25 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
+		curp = pin(f.findLeafPage(tid, root, null).getId());
 		it = curp.iterator();
 	}
 
+	/**
+	 * Pin the leaf page the iterator moves to, releasing the pin on the
+	 * one it leaves
+	 */
+	private BTreeLeafPage pin(BTreePageId pid) throws TransactionAbortedException, DbException {
+		unpin();
+		return (BTreeLeafPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+	}
+
+	private void unpin() {
+		if (curp != null) {
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+		}
+	}
+
 	/**
 	 * Read the next tuple either from the current page if it has more tuples or
 	 * from the next page by following the right sibling pointer.
@@ -1377,11 +1462,11 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		while (it == null && curp != null) {
 			BTreePageId nextp = curp.getRightSiblingId();
 			if(nextp == null) {
+				unpin();
 				curp = null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				curp = pin(nextp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1407,6 +1492,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		unpin();
 		curp = null;
 	}
 }
@@ -1444,16 +1530,33 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
+		BTreeLeafPage leaf;
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+			leaf = f.findLeafPage(tid, root, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, null);
+			leaf = f.findLeafPage(tid, root, null);
 		}
+		curp = pin(leaf.getId());
 		it = curp.iterator();
 	}
 
+	/**
+	 * Pin the leaf page the iterator moves to, releasing the pin on the
+	 * one it leaves
+	 */
+	private BTreeLeafPage pin(BTreePageId pid) throws TransactionAbortedException, DbException {
+		unpin();
+		return (BTreeLeafPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+	}
+
+	private void unpin() {
+		if (curp != null) {
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+		}
+	}
+
 	/**
 	 * Read the next tuple either from the current page if it has more tuples matching
 	 * the predicate or from the next page by following the right sibling pointer.
@@ -1489,8 +1592,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 				return null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				curp = pin(nextp);
 				it = curp.iterator();
 			}
 		}
@@ -1512,5 +1614,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		unpin();
+		curp = null;
 	}
 }
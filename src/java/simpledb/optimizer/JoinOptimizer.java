@@ -367,13 +367,12 @@ public class JoinOptimizer {
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new ArrayList<>();
-            t1cost = stats.get(table1Name).estimateScanCost();
+            t1cost = scanCost(stats, table1Name, j.t1Alias);
             t1card = stats.get(table1Name).estimateTableCardinality(
                     filterSelectivities.get(j.t1Alias));
             leftPkey = isPkey(j.t1Alias, j.f1PureName);
 
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
+            t2cost = table2Alias == null ? 0 : scanCost(stats, table2Name, table2Alias);
             t2card = table2Alias == null ? 0 : stats.get(table2Name)
                     .estimateTableCardinality(
                             filterSelectivities.get(j.t2Alias));
@@ -400,8 +399,7 @@ public class JoinOptimizer {
                 t1card = bestCard;
                 leftPkey = hasPkey(prevBest);
 
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
+                t2cost = j.t2Alias == null ? 0 : scanCost(stats, table2Name, j.t2Alias);
                 t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateTableCardinality(
                                 filterSelectivities.get(j.t2Alias));
@@ -415,7 +413,7 @@ public class JoinOptimizer {
                 // subtree is
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
+                t1cost = scanCost(stats, table1Name, j.t1Alias);
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
                 leftPkey = isPkey(j.t1Alias, j.f1PureName);
@@ -453,6 +451,16 @@ public class JoinOptimizer {
         return cc;
     }
 
+    /**
+     * Estimates the cost of scanning the table with the given alias for
+     * the fields of it the query refers to.
+     */
+    private double scanCost(Map<String, TableStats> stats, String tableName, String alias) {
+        int[] fields = p.getFieldsRead(alias);
+        return fields == null ? stats.get(tableName).estimateScanCost()
+                : stats.get(tableName).estimateScanCost(fields);
+    }
+
     /**
      * Return true if the specified table is in the list of joins, false
      * otherwise
@@ -555,7 +563,7 @@ public class JoinOptimizer {
             if (n == null) { // never seen this table before
                 n = new DefaultMutableTreeNode(j.t1Alias
                         + " (Cost = "
-                        + stats.get(table1Name).estimateScanCost()
+                        + scanCost(stats, table1Name, j.t1Alias)
                         + ", card = "
                         + stats.get(table1Name).estimateTableCardinality(
                                 selectivities.get(j.t1Alias)) + ")");
@@ -574,8 +582,7 @@ public class JoinOptimizer {
                         j.t2Alias == null ? "Subplan"
                                 : (j.t2Alias
                                         + " (Cost = "
-                                        + stats.get(table2Name)
-                                                .estimateScanCost()
+                                        + scanCost(stats, table2Name, j.t2Alias)
                                         + ", card = "
                                         + stats.get(table2Name)
                                                 .estimateTableCardinality(
@@ -261,6 +261,70 @@ public class LogicalPlan {
 
     }
 
+    /**
+     * Returns, for each table alias, the names of the fields of the table the
+     * query refers to, or null if the query selects all fields.
+     */
+    private Map<String,Set<String>> referencedFields() {
+        Map<String,Set<String>> refs = new HashMap<>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*"))
+                return null;
+            addReference(refs, si.fname);
+        }
+        for (LogicalFilterNode lf : filters)
+            refs.computeIfAbsent(lf.tableAlias, k -> new HashSet<>()).add(lf.fieldPureName);
+        for (LogicalJoinNode lj : joins) {
+            refs.computeIfAbsent(lj.t1Alias, k -> new HashSet<>()).add(lj.f1PureName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                refs.computeIfAbsent(lj.t2Alias, k -> new HashSet<>()).add(lj.f2PureName);
+        }
+        if (aggField != null)
+            addReference(refs, aggField);
+        if (groupByField != null)
+            addReference(refs, groupByField);
+        if (hasOrderBy)
+            addReference(refs, oByField);
+        return refs;
+    }
+
+    /**
+     * Returns the indexes of the fields of the table with the specified
+     * alias that the query refers to, or null if it selects all fields.
+     */
+    public int[] getFieldsRead(String alias) {
+        Map<String,Set<String>> referenced = referencedFields();
+        Integer tableId = getTableId(alias);
+        if (referenced == null || tableId == null)
+            return null;
+        return columnIndexes(Database.getCatalog().getTupleDesc(tableId), referenced.get(alias));
+    }
+
+    private static void addReference(Map<String,Set<String>> refs, String quantifiedName) {
+        int dot = quantifiedName.indexOf('.');
+        refs.computeIfAbsent(quantifiedName.substring(0, dot), k -> new HashSet<>())
+                .add(quantifiedName.substring(dot + 1));
+    }
+
+    /**
+     * Returns the indexes in td of the named fields, in the order of td. A
+     * table none of whose fields are named still has its first field read,
+     * so its tuples are counted.
+     */
+    private static int[] columnIndexes(TupleDesc td, Set<String> names) {
+        List<Integer> columns = new ArrayList<>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (names != null && names.contains(td.getFieldName(i)))
+                columns.add(i);
+        }
+        if (columns.isEmpty())
+            columns.add(0);
+        int[] result = new int[columns.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = columns.get(i);
+        return result;
+    }
+
     /** Convert the aggregate operator name s into an Aggregator.op operation.
      *  @throws ParsingException if s is not a valid operator name 
      */
@@ -292,17 +356,25 @@ public class LogicalPlan {
         Map<String,String> equivMap = new HashMap<>();
         Map<String,Double> filterSelectivities = new HashMap<>();
         Map<String,TableStats> statsMap = new HashMap<>();
+        Map<String,Set<String>> referenced = referencedFields();
+        Map<String,SeqScan> scanMap = new HashMap<>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
             SeqScan ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+                 ss = new SeqScan(t, file.getId(), table.alias);
+                 if (referenced != null && file instanceof ColumnFile) {
+                     // read only the columns the query refers to
+                     ss.setColumns(columnIndexes(file.getTupleDesc(), referenced.get(table.alias)));
+                 }
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
             
             subplanMap.put(table.alias,ss);
+            scanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
@@ -336,10 +408,15 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
             subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            // filters keep the fields of the scan, so p also lets it skip pages
+            scanMap.get(lf.tableAlias).addPagePredicate(p);
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
-            double sel = s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            // the statistics are indexed by the fields of the base table,
+            // which the scan may not return all of
+            int statsField = Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias)).fieldNameToIndex(lf.fieldPureName);
+            double sel = s.estimateSelectivity(statsField, lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
@@ -112,7 +112,7 @@ public class TableStats {
     private int ioCostPerpage;
 
     private int numTuples;
-    private HeapFile f;
+    private DbFile f;
 
 
     private ArrayList<Tuple> tuples;
@@ -144,7 +144,7 @@ public class TableStats {
         this.tuples= new ArrayList<>();
 
 
-        this.f= (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+        this.f= Database.getCatalog().getDatabaseFile(tableid);
 
         for(int i=0;i<f.getTupleDesc().numFields();i++){
             if(f.getTupleDesc().getFieldType(i)==Type.INT_TYPE){
@@ -159,6 +159,7 @@ public class TableStats {
         long start=System.currentTimeMillis();
 
 
+        // a HeapFile larger than the pool is read through a BufferRing
         DbFileIterator it=f.iterator(null);
         try {
             it.open();
@@ -220,6 +221,18 @@ public class TableStats {
 //        return 0;
     }
 
+    /**
+     * Estimates the cost of a sequential scan that reads only some fields of
+     * the table. Only a file that stores fields apart, like a ColumnFile,
+     * skips the pages of the other fields; for any other file this is the
+     * cost of a full scan.
+     *
+     * @param fields indexes of the fields read
+     */
+    public double estimateScanCost(int[] fields) {
+        return f.numPages(fields)*ioCostPerpage;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
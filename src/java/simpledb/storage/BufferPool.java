@@ -6,13 +6,21 @@ import simpledb.common.DbException;
 import simpledb.common.DeadlockException;
 import simpledb.transaction.*;
 
-import javax.swing.undo.CannotUndoException;
 import java.io.*;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -22,136 +30,1355 @@ import java.util.concurrent.TimeUnit;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The page table is a ConcurrentHashMap of frames and no method holds a
+ * pool-wide monitor: a hit is a map lookup, misses on different pages read
+ * from disk in parallel, and threads that miss on a page another thread is
+ * already reading wait for that read instead of issuing their own. Waiting
+ * for a page lock does not block other threads either.
+ * <p>
+ * Which page to evict is up to a {@link ReplacementPolicy} chosen when the
+ * pool is created (LRU unless told otherwise); a hit costs it O(1) and
+ * takes no lock.
+ * <p>
+ * The pool is NO-STEAL unless {@link #setStealEnabled(boolean)} turns on
+ * STEAL, see there.
+ * <p>
+ * The bytes of the HeapPages it reads are kept off the Java heap, in the
+ * frames of a {@link FrameArena} sized to the pool; a page leaving the pool
+ * gives its frame back once it is no longer referenced.
+ * <p>
+ * A page can be pinned with {@link #pinPage}, see there, which keeps it
+ * from being evicted until it is unpinned.
+ * <p>
+ * The pool can be grown and shrunk while it is in use, against a budget in
+ * bytes, see {@link #setByteBudget(long)}.
+ * <p>
+ * With {@link #enableWarmRestart(File)} the pool saves which pages it holds
+ * now and then, and reads them back after a restart.
+ * <p>
+ * Part of the pool can be set aside for some pages, with a capacity and
+ * replacement policy of its own, see {@link #addPartition}.
+ * <p>
+ * Heap files insert and delete tuples under record locks, on pages they
+ * fetch with {@link #getRecordPage}, so several transactions may change
+ * the same page at once. Each such change is kept until its transaction
+ * completes: an abort takes back its own changes only, and a commit writes
+ * the page without the changes of the others still running.
  * 
- * @Threadsafe, all fields are final
+ * @Threadsafe, any number of threads may call any method at once. The page
+ * table, pins and record changes are concurrent maps; frames and pages are
+ * guarded by their own monitors, held only briefly and never across disk
+ * I/O of another page. Only the settings (STEAL, budget, partitions, warm
+ * restart) synchronize on the pool itself, and they are read through
+ * volatile fields, so page accesses never wait for them.
  */
 public class BufferPool {
     /** Bytes per page, including header. */
     private static final int DEFAULT_PAGE_SIZE = 4096;
 
-    private static int pageSize = DEFAULT_PAGE_SIZE;
-    
-    /** Default number of pages passed to the constructor. This is used by
-    other classes. BufferPool should use the numPages argument to the
-    constructor instead. */
-    public static final int DEFAULT_PAGES = 50;
+    private static int pageSize = DEFAULT_PAGE_SIZE;
+    
+    /** Default number of pages passed to the constructor. This is used by
+    other classes. BufferPool should use the numPages argument to the
+    constructor instead. */
+    public static final int DEFAULT_PAGES = 50;
+
+    /** the most pages the pool holds, in all partitions; changed by setByteBudget */
+    private volatile int numPages;
+
+    /**
+     * A slot of the page table. page is null while the page is read from
+     * disk; threads missing on the page meanwhile wait for loaded.
+     */
+    private static final class Frame {
+        final CompletableFuture<Page> loaded=new CompletableFuture<>();
+        volatile Page page;
+        /** the ring of the scan that read the page, until someone else uses it */
+        volatile BufferRing ring;
+        /** set, under the monitor of the frame, once it left the table */
+        boolean evicted;
+        /** pins on the page, changed under the monitor of the frame; a pinned page is not evicted */
+        volatile int pins;
+        /** hits on the page, counted loosely */
+        volatile int uses;
+        /** the partition whose slot the frame holds */
+        final Partition part;
+
+        Frame(Partition part){
+            this.part=part;
+        }
+
+        Frame(Partition part, Page page){
+            this.part=part;
+            this.page=page;
+            loaded.complete(page);
+        }
+    }
+
+    /** the name of the partition holding the pages no other partition takes */
+    public static final String GENERAL_PARTITION = "general";
+
+    /**
+     * A part of the pool with its own slots and replacement state: pages of
+     * one partition never evict pages of another.
+     */
+    private static final class Partition {
+        final String name;
+        /** the most pages it holds */
+        volatile int capacity;
+        /** its frames in the table, loading or not; each holds one of its slots */
+        final AtomicInteger used=new AtomicInteger();
+        /** told of every page entering and leaving it, inside the map's lock for that page */
+        final ReplacementPolicy policy;
+        /** the pages it takes; null for the general partition */
+        final Predicate<PageId> routes;
+
+        Partition(String name, int capacity, ReplacementPolicy policy, Predicate<PageId> routes){
+            this.name=name;
+            this.capacity=capacity;
+            this.policy=policy;
+            this.routes=routes;
+        }
+    }
+
+    private final ConcurrentHashMap<PageId,Frame> frames;
+
+    /** frames in the table, loading or not, in all partitions */
+    private final AtomicInteger used;
+
+    /** holds the pages no other partition takes */
+    private final Partition general;
+
+    /** the other partitions, in the order they are asked to take a page; copied on write */
+    private volatile List<Partition> partitions=Collections.emptyList();
+
+    private LockManager lockManager;
+
+    /** Background threads that read pages ahead of sequential scans. */
+    private static final ExecutorService readAheadExecutor = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "simpledb-read-ahead");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Bumped whenever a page is written to disk or dropped from the pool.
+     * A read-ahead that raced with such a change may have read a stale
+     * version of the page from disk, so it is not installed.
+     */
+    private final AtomicLong writeEpoch = new AtomicLong();
+
+    /** dirty pages may be written, and evicted, before their transaction commits */
+    private volatile boolean steal;
+
+    /**
+     * Before images of the pages written before their transaction
+     * completed, so an abort can put them back on disk.
+     */
+    private final ConcurrentHashMap<TransactionId, ConcurrentHashMap<PageId, Page>> stolen = new ConcurrentHashMap<>();
+
+    /**
+     * A seqlock per transaction over its insertTuple and deleteTuple calls,
+     * which change pages without latching them: a page written while its
+     * transaction changed pages may be stale on disk and must stay dirty.
+     */
+    private static final class Writes {
+        /** odd while a call runs */
+        final AtomicLong seq = new AtomicLong();
+        volatile Thread thread;
+    }
+
+    private final ConcurrentHashMap<TransactionId, Writes> writes = new ConcurrentHashMap<>();
+
+    /** how often the page cleaner looks for dirty pages, in ms */
+    public static final int CLEANER_INTERVAL_MS = 50;
+
+    /** non-null while STEAL is on */
+    private PageCleaner cleaner;
+
+    /**
+     * The pages each running transaction fetched with READ_WRITE or
+     * dirtied, so completing it only looks at those pages.
+     */
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> touched = new ConcurrentHashMap<>();
+
+    /** off-heap frames for the bytes of the HeapPages in the pool */
+    private final FrameArena arena;
+
+    /** a frame set aside for the thread reading a page from disk */
+    private static final class FrameClaim {
+        final ByteBuffer frame;
+        final Thread reader=Thread.currentThread();
+
+        FrameClaim(ByteBuffer frame) {
+            this.frame=frame;
+        }
+    }
+
+    /** the frames set aside for the pages being read, see {@link #claimFrame} */
+    private final ConcurrentHashMap<PageId, FrameClaim> claims=new ConcurrentHashMap<>();
+
+    /** how often the shrinker evicts pages while the pool is over budget, in ms */
+    public static final int SHRINK_INTERVAL_MS = 10;
+
+    /** the most pages the shrinker evicts at a time */
+    public static final int SHRINK_BATCH = 16;
+
+    /** non-null while the pool holds more pages than its budget allows */
+    private volatile Shrinker shrinker;
+
+    /** the name of the file the hot pages are saved in, next to the catalog */
+    public static final String HOT_PAGES_FILE = "bufferpool.hot";
+
+    /** how often the hot pages are saved while warm restart is on, in ms */
+    public static final int HOT_PAGES_INTERVAL_MS = 60000;
+
+    /** non-null while warm restart is on */
+    private HotPageSaver hotPageSaver;
+
+    /** a tuple a running transaction inserted or deleted under a record lock */
+    private static final class RecordWrite {
+        final RecordId rid;
+        /** the tuple deleted, null for an insert */
+        final Tuple deleted;
+
+        RecordWrite(RecordId rid, Tuple deleted) {
+            this.rid = rid;
+            this.deleted = deleted;
+        }
+    }
+
+    /**
+     * The record writes of the running transactions on one page, changed
+     * under the monitor of the page. Commits of the page go one at a time
+     * under the monitor of this.
+     */
+    private static final class RecordWrites {
+        final HeapPage page;
+        final Map<TransactionId, List<RecordWrite>> byTid = new HashMap<>();
+
+        RecordWrites(HeapPage page) {
+            this.page = page;
+        }
+
+        /** @return the page with the changes of all but tid taken back */
+        HeapPage without(TransactionId tid) throws DbException {
+            try {
+                HeapPage copy = new HeapPage(page.getId(), page.getPageData());
+                for (Map.Entry<TransactionId, List<RecordWrite>> e : byTid.entrySet()) {
+                    if (!e.getKey().equals(tid)) {
+                        undo(copy, e.getValue());
+                    }
+                }
+                return copy;
+            } catch (IOException e) {
+                throw new DbException("cannot copy page " + page.getId() + ": " + e.getMessage());
+            }
+        }
+
+        /** @return a transaction other than tid with writes here, or null */
+        TransactionId other(TransactionId tid) {
+            for (TransactionId t : byTid.keySet()) {
+                if (!t.equals(tid)) {
+                    return t;
+                }
+            }
+            return null;
+        }
+    }
+
+    /** the pages running transactions changed under record locks */
+    private final ConcurrentHashMap<PageId, RecordWrites> recordWrites = new ConcurrentHashMap<>();
+
+    /**
+     * the pins each running transaction holds, per page and frame pinned: a
+     * page discarded and read again is in a new frame, which the pins on
+     * the old one must not be taken from
+     */
+    private final ConcurrentHashMap<TransactionId, Map<PageId, Map<Frame, Integer>>> pins = new ConcurrentHashMap<>();
+
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     */
+    public BufferPool(int numPages) {
+        this(numPages,new LruPolicy());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts the
+     * pages policy picks.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the replacement policy of the general partition, used
+     *               by this pool only
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
+        // some code goes here
+//        pageList= new LinkedList<Page>();
+        this.numPages=numPages;
+        this.frames=new ConcurrentHashMap<>();
+        this.used=new AtomicInteger();
+        this.general=new Partition(GENERAL_PARTITION,numPages,policy,null);
+        this.arena=new FrameArena(numPages,pageSize);
+        this.lockManager = new LockManager();
+    }
+
+    
+    /**
+     * Switches between NO-STEAL, the default, and STEAL.
+     * <p>
+     * Under NO-STEAL only clean pages are evicted, so a transaction cannot
+     * dirty more pages than the pool holds ("All dirty"). Under STEAL a
+     * dirty page may be evicted once the log record with its before and
+     * after images has been forced to the log (write-ahead logging), and a
+     * background page cleaner writes dirty pages ahead of demand so that a
+     * miss rarely has to write one itself. The before images of the pages
+     * written early are kept until the transaction completes; an abort
+     * writes them back.
+     */
+    public synchronized void setStealEnabled(boolean steal) {
+        this.steal=steal;
+        if(steal&&cleaner==null){
+            cleaner=new PageCleaner();
+            cleaner.start();
+        }else if(!steal&&cleaner!=null){
+            cleaner.shutdown();
+            cleaner=null;
+        }
+    }
+
+    public boolean isStealEnabled() {
+        return steal;
+    }
+
+    public FrameArena getFrameArena() {
+        return arena;
+    }
+
+    /** @return the lock manager, e.g. to pick its deadlock policy */
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+    /** @return the most pages the pool holds */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /** @return the number of pages in the pool, including pages being read */
+    public int getResidentPages() {
+        return used.get();
+    }
+
+    /** @return the bytes the pool may hold pages in */
+    public long getByteBudget() {
+        return (long) numPages * pageSize;
+    }
+
+    /**
+     * Resizes the pool to hold as many pages as fit in bytes, at least one.
+     * <p>
+     * Growing takes effect at once. When shrinking, the pages over the new
+     * size are shed gradually in the background, SHRINK_BATCH clean pages
+     * every SHRINK_INTERVAL_MS, so the pages in use are not all evicted at
+     * once; until then a miss evicts a page to take its slot rather than
+     * evicting down to the new size. Once only dirty or pinned pages are
+     * left over the new size, the shrinker stops and misses evict down to it.
+     * <p>
+     * Partitions other than the general one keep their size; the general
+     * partition gets the rest of the budget, at least one page.
+     *
+     * @param bytes the budget in bytes
+     */
+    public synchronized void setByteBudget(long bytes) {
+        int pages=(int) Math.max(1,Math.min(Integer.MAX_VALUE,bytes/pageSize));
+        // the other partitions keep their size, the general one takes the rest
+        int others=0;
+        for(Partition part:partitions){
+            others+=part.capacity;
+        }
+        general.capacity=Math.max(1,pages-others);
+        resized();
+    }
+
+    /** Follows a change of the capacity of a partition. */
+    private synchronized void resized(){
+        int pages=general.capacity;
+        for(Partition part:partitions){
+            pages+=part.capacity;
+        }
+        numPages=pages;
+        arena.setMaxFrames(pages);
+        if(overCapacity()&&shrinker==null){
+            shrinker=new Shrinker();
+            shrinker.start();
+        }
+    }
+
+    private boolean overCapacity(){
+        if(general.used.get()>general.capacity){
+            return true;
+        }
+        for(Partition part:partitions){
+            if(part.used.get()>part.capacity){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets aside pages of the pool, taken from the general partition, for
+     * the pages routes holds for: those stay in the new partition and are
+     * evicted by its policy only to make room for each other, whatever
+     * goes on in the rest of the pool. Small hot tables or the upper levels
+     * of B+ trees, say, then stay cached while large scans churn through
+     * the general partition. A page goes to the first partition added whose
+     * routes holds for it; pages cached before are left where they are.
+     *
+     * @param name the name of the partition
+     * @param pages the most pages it holds; the general partition must be
+     *              left with at least one
+     * @param policy its replacement policy
+     * @param routes whether a page belongs to it; may not block
+     * @throws IllegalArgumentException if the name is taken or the pages
+     *                                  are not there
+     */
+    public synchronized void addPartition(String name, int pages, ReplacementPolicy policy, Predicate<PageId> routes) {
+        if(partition(name)!=null){
+            throw new IllegalArgumentException("partition "+name+" exists already");
+        }
+        if(pages<1||pages>=general.capacity){
+            throw new IllegalArgumentException("cannot set aside "+pages+" of the "+general.capacity+" pages of the general partition");
+        }
+        List<Partition> next=new ArrayList<>(partitions);
+        next.add(new Partition(name,pages,policy,routes));
+        general.capacity-=pages;
+        partitions=Collections.unmodifiableList(next);
+        resized();
+    }
+
+    /**
+     * Routes the pages of the tables tableIds to a new partition, see
+     * {@link #addPartition(String, int, ReplacementPolicy, Predicate)}.
+     */
+    public void addTablePartition(String name, int pages, ReplacementPolicy policy, int... tableIds) {
+        Set<Integer> tables=new HashSet<>();
+        for(int tableId:tableIds){
+            tables.add(tableId);
+        }
+        addPartition(name,pages,policy,pid->tables.contains(pid.getTableId()));
+    }
+
+    /** @return the partition called name, or null */
+    private Partition partition(String name){
+        if(general.name.equals(name)){
+            return general;
+        }
+        for(Partition part:partitions){
+            if(part.name.equals(name)){
+                return part;
+            }
+        }
+        return null;
+    }
+
+    private Partition partitionOf(PageId pid){
+        for(Partition part:partitions){
+            if(part.routes.test(pid)){
+                return part;
+            }
+        }
+        return general;
+    }
+
+    /** @return the most pages partition name holds, 0 if there is no such partition */
+    public int getNumPages(String name) {
+        Partition part=partition(name);
+        return part==null?0:part.capacity;
+    }
+
+    /** @return the pages in partition name, 0 if there is no such partition */
+    public int getResidentPages(String name) {
+        Partition part=partition(name);
+        return part==null?0:part.used.get();
+    }
+
+    /** @return the names of the partitions, the general one first */
+    public List<String> getPartitionNames() {
+        List<String> names=new ArrayList<>();
+        names.add(general.name);
+        for(Partition part:partitions){
+            names.add(part.name);
+        }
+        return names;
+    }
+
+    /** @return the general partition, then the others */
+    private List<Partition> allPartitions(){
+        List<Partition> all=new ArrayList<>();
+        all.add(general);
+        all.addAll(partitions);
+        return all;
+    }
+
+    /**
+     * Turns on warm restart: the pages saved in hotPages by an earlier run
+     * are read back in the background, and the pages in the pool are saved
+     * there every HOT_PAGES_INTERVAL_MS and on a clean shutdown (see
+     * {@link #saveHotPages()}).
+     *
+     * @return the reload, completing with the number of pages read
+     */
+    public synchronized CompletableFuture<Integer> enableWarmRestart(File hotPages) {
+        disableWarmRestart();
+        hotPageSaver=new HotPageSaver(hotPages);
+        hotPageSaver.start();
+        return loadHotPages(hotPages);
+    }
+
+    /** Stops saving the hot pages; the file is left as it is. */
+    public synchronized void disableWarmRestart() {
+        if(hotPageSaver!=null){
+            hotPageSaver.interrupt();
+            hotPageSaver=null;
+        }
+    }
+
+    /** Saves the hot pages to the file of warm restart, if it is on. */
+    public void saveHotPages() throws IOException {
+        HotPageSaver saver;
+        synchronized (this){
+            saver=hotPageSaver;
+        }
+        if(saver!=null){
+            saveHotPages(saver.file);
+        }
+    }
+
+    /** Saves the hot pages every HOT_PAGES_INTERVAL_MS. */
+    private final class HotPageSaver extends Thread {
+        final File file;
+
+        HotPageSaver(File file){
+            super("simpledb-hot-page-saver");
+            setDaemon(true);
+            this.file=file;
+        }
+
+        @Override
+        public void run(){
+            while(!isInterrupted()){
+                try{
+                    Thread.sleep(HOT_PAGES_INTERVAL_MS);
+                    saveHotPages(file);
+                }catch (InterruptedException e){
+                    return;
+                }catch (IOException e){
+                    // try again next time
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the ids of the pages in the pool to f, with their recency rank
+     * (0 for the page the policy would evict last) and frequency rank (0 for
+     * the page hit most often), in the order of the pages in their files.
+     * The file is replaced atomically.
+     */
+    public void saveHotPages(File f) throws IOException {
+        List<PageId> hottest=new ArrayList<>();
+        Map<PageId,Integer> recencyRank=new HashMap<>();
+        Map<PageId,Integer> uses=new HashMap<>();
+        for(Partition part:allPartitions()){
+            // ranked within the partition they go back to
+            int rank=0;
+            for(PageId pid:part.policy.hottest()){
+                Frame fr=frames.get(pid);
+                hottest.add(pid);
+                recencyRank.put(pid,rank++);
+                uses.put(pid,fr==null?0:fr.uses);
+            }
+        }
+        List<PageId> byUses=new ArrayList<>(hottest);
+        byUses.sort((a,b)->Integer.compare(uses.get(b),uses.get(a)));
+        Map<PageId,Integer> frequencyRank=new HashMap<>();
+        for(int i=0;i<byUses.size();i++){
+            frequencyRank.put(byUses.get(i),i);
+        }
+        List<PageId> inFileOrder=new ArrayList<>(hottest);
+        inFileOrder.sort(FILE_ORDER);
+
+        File tmp=new File(f.getPath()+".tmp");
+        try(DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))){
+            out.writeInt(inFileOrder.size());
+            for(PageId pid:inFileOrder){
+                int[] data=pid.serialize();
+                out.writeUTF(pid.getClass().getName());
+                out.writeInt(data.length);
+                for(int x:data){
+                    out.writeInt(x);
+                }
+                out.writeInt(recencyRank.get(pid));
+                out.writeInt(frequencyRank.get(pid));
+            }
+        }
+        Files.move(tmp.toPath(),f.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** by table, then page number */
+    private static final Comparator<PageId> FILE_ORDER=Comparator
+            .comparingInt(PageId::getTableId)
+            .thenComparingInt(PageId::getPageNumber);
+
+    /**
+     * Reads back in the background the pages saved in f by
+     * {@link #saveHotPages(File)}: as many as fit in the free part of the
+     * pool, the ones ranked hottest by recency or frequency, one after the
+     * other in file order so the disk sees sequential reads. Pages of
+     * tables no longer in the catalog are skipped. A missing or unreadable
+     * file reads no pages.
+     *
+     * @return the reload, completing with the number of pages read
+     */
+    public CompletableFuture<Integer> loadHotPages(File f) {
+        return CompletableFuture.supplyAsync(()->{
+            List<PageId> pages=new ArrayList<>();
+            List<Integer> ranks=new ArrayList<>();
+            try(DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(f)))){
+                int n=in.readInt();
+                for(int i=0;i<n;i++){
+                    String idClass=in.readUTF();
+                    int[] data=new int[in.readInt()];
+                    for(int j=0;j<data.length;j++){
+                        data[j]=in.readInt();
+                    }
+                    int recency=in.readInt();
+                    int frequency=in.readInt();
+                    PageId pid=toPageId(idClass,data);
+                    if(pid!=null){
+                        pages.add(pid);
+                        ranks.add(Math.min(recency,frequency));
+                    }
+                }
+            }catch (IOException e){
+                return 0;
+            }
+            // the hottest pages that fit, still in file order
+            int room=Math.max(0,numPages-used.get());
+            if(pages.size()>room){
+                List<Integer> best=new ArrayList<>();
+                for(int i=0;i<pages.size();i++){
+                    best.add(i);
+                }
+                best.sort(Comparator.comparingInt(ranks::get));
+                best=best.subList(0,room);
+                Collections.sort(best);
+                List<PageId> kept=new ArrayList<>();
+                for(int i:best){
+                    kept.add(pages.get(i));
+                }
+                pages=kept;
+            }
+            int read=0;
+            for(PageId pid:pages){
+                if(used.get()>=numPages){
+                    // the pool filled up meanwhile
+                    break;
+                }
+                if(!frames.containsKey(pid)){
+                    installPrefetched(pid,null);
+                    if(frames.containsKey(pid)){
+                        read++;
+                    }
+                }
+            }
+            return read;
+        },readAheadExecutor);
+    }
+
+    /** @return the page id saved as idClass and data, or null if the class is gone */
+    private static PageId toPageId(String idClass, int[] data){
+        try{
+            Class<?>[] types=new Class<?>[data.length];
+            Object[] args=new Object[data.length];
+            for(int i=0;i<data.length;i++){
+                types[i]=int.class;
+                args[i]=data[i];
+            }
+            Constructor<?> c=Class.forName(idClass).getConstructor(types);
+            return (PageId) c.newInstance(args);
+        }catch (ReflectiveOperationException|ClassCastException e){
+            return null;
+        }
+    }
+
+    private synchronized void shrinkerDone(Shrinker s){
+        if(shrinker==s){
+            shrinker=null;
+        }
+    }
+
+    private boolean isShrinking(){
+        return shrinker!=null;
+    }
+
+    /**
+     * Evicts clean pages while the pool holds more pages than its budget
+     * allows, see {@link #setByteBudget(long)}.
+     */
+    private final class Shrinker extends Thread {
+        Shrinker(){
+            super("simpledb-pool-shrinker");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run(){
+            try{
+                while(overCapacity()){
+                    boolean shed=false;
+                    for(Partition part:allPartitions()){
+                        for(int i=0;i<SHRINK_BATCH&&part.used.get()>part.capacity;i++){
+                            if(!evictClean(part)){
+                                break;
+                            }
+                            shed=true;
+                        }
+                    }
+                    if(!shed){
+                        return;
+                    }
+                    try{
+                        Thread.sleep(SHRINK_INTERVAL_MS);
+                    }catch (InterruptedException e){
+                        return;
+                    }
+                }
+            }finally {
+                shrinkerDone(this);
+            }
+        }
+    }
+
+    /**
+     * Writes dirty pages in the background while STEAL is on, every
+     * CLEANER_INTERVAL_MS or as soon as an eviction had to write one, until
+     * a quarter of the pool is clean or free.
+     */
+    private final class PageCleaner extends Thread {
+        private volatile boolean running=true;
+
+        PageCleaner(){
+            super("simpledb-page-cleaner");
+            setDaemon(true);
+        }
+
+        synchronized void wake(){
+            notify();
+        }
+
+        void shutdown(){
+            running=false;
+            wake();
+        }
+
+        @Override
+        public void run(){
+            while(running){
+                try{
+                    cleanPages();
+                }catch (IOException|RuntimeException e){
+                    // the pages stay dirty; evictions write them if needed
+                }
+                synchronized (this){
+                    try{
+                        if(running){
+                            wait(CLEANER_INTERVAL_MS);
+                        }
+                    }catch (InterruptedException e){
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private void cleanPages() throws IOException {
+        int target=Math.max(1,numPages/4);
+        int clean=numPages-used.get();
+        List<Page> dirty=new ArrayList<>();
+        for(Frame fr:frames.values()){
+            Page page=fr.page;
+            if(page==null){
+                continue;
+            }
+            if(page.isDirty()==null){
+                clean++;
+            }else{
+                dirty.add(page);
+            }
+        }
+        for(Page page:dirty){
+            if(clean>=target||!steal){
+                return;
+            }
+            flushPage(page,true);
+            if(page.isDirty()==null){
+                clean++;
+            }
+        }
+    }
+
+    public static int getPageSize() {
+      return pageSize;
+    }
+    
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void setPageSize(int pageSize) {
+    	BufferPool.pageSize = pageSize;
+    }
+    
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void resetPageSize() {
+    	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions.
+     * Will acquire a lock and may block if that lock is held by another
+     * transaction.
+     * <p>
+     * The retrieved page should be looked up in the buffer pool.  If it
+     * is present, it should be returned.  If it is not present, it should
+     * be added to the buffer pool and returned.  If there is insufficient
+     * space in the buffer pool, a page should be evicted and the new page
+     * should be added in its place.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return getPage(tid,pid,perm,null);
+    }
+
+    /**
+     * Retrieves a page like {@link #getPage(TransactionId, PageId, Permissions)},
+     * for a scan that reads through ring.
+     *
+     * @param ring the ring the scan reads through, or null to use the pool
+     *             as usual
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+        throws TransactionAbortedException, DbException {
+        acquireLock(tid,pid,perm);
+        if(tid!=null&&perm==Permissions.READ_WRITE){
+            touch(tid,pid);
+        }
+        return fetchPage(pid,ring).page;
+    }
+
+    /**
+     * Retrieves a page like {@link #getPage(TransactionId, PageId, Permissions)}
+     * and pins it: it stays in the pool, and in the arena frame it was read
+     * into, until {@link #unpinPage} is called as often as it was pinned.
+     * Whoever holds a pinned page can go on using it without asking the pool
+     * again. The pins left when the transaction completes are released then.
+     * <p>
+     * Pinning does not keep a page from being discarded, by an abort of the
+     * transaction that dirtied it or by a B+ tree file freeing it; the pins
+     * go with it.
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return pinPage(tid,pid,perm,null);
+    }
+
+    /**
+     * Pins a page like {@link #pinPage(TransactionId, PageId, Permissions)},
+     * for a scan that reads through ring.
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+        throws TransactionAbortedException, DbException {
+        acquireLock(tid,pid,perm);
+        if(tid!=null&&perm==Permissions.READ_WRITE){
+            touch(tid,pid);
+        }
+        return pin(tid,pid,ring);
+    }
+
+    /**
+     * Retrieves and pins a heap page to insert or delete tuples on under
+     * record locks. The page is only locked INTENTION_EXCLUSIVE, so other
+     * transactions may change other tuples of it meanwhile: the caller
+     * changes it under its monitor, after {@link #mayWriteRecords}, locking
+     * each tuple it inserts or deletes and reporting it with
+     * {@link #recordWritten}, then unpins it.
+     * <p>
+     * Under STEAL the page is locked EXCLUSIVE instead: a page written
+     * before its transaction completes is undone as a whole, which would
+     * take back the changes of the others too.
+     */
+    public Page getRecordPage(TransactionId tid, PageId pid)
+        throws TransactionAbortedException, DbException {
+        if(tid!=null){
+            lockManager.acquire(tid,pid,steal? Lock.LockType.EXCLUSIVE: Lock.LockType.INTENTION_EXCLUSIVE);
+            touch(tid,pid);
+        }
+        return pin(tid,pid,null);
+    }
+
+    private Page pin(TransactionId tid, PageId pid, BufferRing ring) throws DbException {
+        while(true){
+            Frame fr=fetchPage(pid,ring);
+            synchronized (fr){
+                if(!fr.evicted){
+                    fr.pins++;
+                    if(tid!=null){
+                        Map<PageId,Map<Frame,Integer>> byPage=pins.computeIfAbsent(tid,k->new HashMap<>());
+                        synchronized (byPage){
+                            byPage.computeIfAbsent(pid,k->new IdentityHashMap<>()).merge(fr,1,Integer::sum);
+                        }
+                    }
+                    return fr.page;
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases a pin tid took with {@link #pinPage}; does nothing if tid
+     * holds no pin on the page. The pin is taken from the frame tid pinned,
+     * so if the page was discarded and read again since, the pins others
+     * took on it are left alone.
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        if(tid==null){
+            Frame fr=frames.get(pid);
+            if(fr!=null){
+                unpin(fr,1);
+            }
+            return;
+        }
+        Map<PageId,Map<Frame,Integer>> byPage=pins.get(tid);
+        if(byPage==null){
+            return;
+        }
+        Frame fr;
+        synchronized (byPage){
+            Map<Frame,Integer> byFrame=byPage.get(pid);
+            if(byFrame==null){
+                return;
+            }
+            fr=frames.get(pid);
+            if(fr==null||!byFrame.containsKey(fr)){
+                // the frame pinned left the pool
+                fr=byFrame.keySet().iterator().next();
+            }
+            byFrame.computeIfPresent(fr,(k,n)->n==1?null:n-1);
+            if(byFrame.isEmpty()){
+                byPage.remove(pid);
+            }
+        }
+        unpin(fr,1);
+    }
+
+    /** @return the number of pins on the page, 0 if it is not in the pool */
+    public int getPinCount(PageId pid) {
+        Frame fr=frames.get(pid);
+        if(fr==null){
+            return 0;
+        }
+        synchronized (fr){
+            return fr.pins;
+        }
+    }
+
+    private void unpin(Frame fr, int n){
+        synchronized (fr){
+            fr.pins=Math.max(0,fr.pins-n);
+        }
+    }
+
+    /** Releases the pins tid still holds. */
+    private void releasePins(TransactionId tid){
+        Map<PageId,Map<Frame,Integer>> held=pins.remove(tid);
+        if(held!=null){
+            synchronized (held){
+                held.values().forEach(byFrame->byFrame.forEach(this::unpin));
+            }
+        }
+    }
+
+    private void touch(TransactionId tid, PageId pid){
+        touched.computeIfAbsent(tid,k->ConcurrentHashMap.newKeySet()).add(pid);
+    }
 
-    private final int numPages;
-    private Graph g;
+    private Set<PageId> touchedBy(TransactionId tid){
+        Set<PageId> pages=touched.get(tid);
+        return pages==null?Collections.emptySet():pages;
+    }
 
-//    LinkedList<Page> pageList;
+    /**
+     * Returns the ring a sequential scan of a table of tablePages pages
+     * should read through, or null if the scan should go through the pool
+     * as usual. Only tables larger than the pool are scanned through a ring:
+     * a smaller one can stay cached for the next scan, while a larger one
+     * would only push out its own pages before they are read again.
+     */
+    public BufferRing scanRing(int tablePages) {
+        // large scans go through the general partition
+        int pages=general.capacity;
+        if(tablePages<=pages){
+            return null;
+        }
+        return new BufferRing(Math.max(1,Math.min(BufferRing.DEFAULT_FRAMES,pages/8)));
+    }
 
+    private void acquireLock(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        if(tid==null){
+            return;
+        }
+        Lock.LockType lockType=perm==Permissions.READ_ONLY? Lock.LockType.SHARING: Lock.LockType.EXCLUSIVE;
+        // waits in the queue of the page until a release grants it
+        lockManager.acquire(tid,pid,lockType);
+    }
 
+    /**
+     * Returns the frame of the cached page, reading it from disk on a miss.
+     * Concurrent misses on the same page share one read.
+     */
+    private Frame fetchPage(PageId pid, BufferRing ring) throws DbException {
+        while(true){
+            Frame fr=frames.get(pid);
+            if(fr==null){
+                // take a slot first, so every frame in the table holds one
+                Partition part=partitionOf(pid);
+                reserveFrame(part,ring);
+                Frame fresh=new Frame(part);
+                fresh.ring=ring;
+                fr=addFrame(pid,fresh);
+                if(fr==fresh){
+                    if(ring!=null){
+                        ring.add(pid);
+                    }
+                    load(pid,fresh);
+                    return fresh;
+                }
+                freeSlot(part);
+            }
+            if(fr.page==null){
+                awaitLoad(fr);
+            }
+            if(fr.ring!=ring&&fr.ring!=null){
+                // someone else wants the page too: it joins the pool
+                fr.ring=null;
+            }
+            if(fr.ring==null){
+                fr.part.policy.access(pid);
+                fr.uses++;
+            }
+            return fr;
+        }
+    }
 
-    private ConcurrentHashMap<PageId,Page> pageCache;
+    private Page load(PageId pid, Frame fr) throws DbException {
+        try{
+            Page page=readPage(pid);
+            boolean dropped;
+            synchronized (fr){
+                fr.page=page;
+                dropped=fr.evicted;
+            }
+            if(dropped){
+                // discarded while it was read
+                releaseFrame(page);
+            }
+            fr.loaded.complete(page);
+            return page;
+        }catch (RuntimeException e){
+            removeFrame(pid,fr);
+            fr.loaded.completeExceptionally(e);
+            throw e;
+        }
+    }
 
+    /**
+     * Reads a page from disk with {@link DbFile#readPage}. For a HeapFile
+     * page a free frame of the arena is set aside first, which the file
+     * takes with {@link #claimFrame} to read the page into.
+     */
+    private Page readPage(PageId pid) {
+        DbFile file=Database.getCatalog().getDatabaseFile(pid.getTableId());
+        ByteBuffer frame=file instanceof HeapFile&&arena.getFrameSize()==pageSize?arena.allocate():null;
+        if(frame==null){
+            return file.readPage(pid);
+        }
+        FrameClaim claim=new FrameClaim(frame);
+        claims.put(pid,claim);
+        Page page=null;
+        try{
+            page=file.readPage(pid);
+        }finally {
+            claims.remove(pid,claim);
+            if(!(page instanceof HeapPage&&((HeapPage) page).frame()==frame)){
+                arena.release(frame);
+            }
+        }
+        return page;
+    }
 
-    private ConcurrentLinkedDeque<PageId> pageList;
+    /**
+     * Hands a HeapFile the frame set aside for the page it is reading for
+     * the pool; the page read into it then keeps it.
+     *
+     * @return the frame, or null if the calling thread is not reading pid
+     *         for the pool or no frame was free
+     */
+    ByteBuffer claimFrame(PageId pid) {
+        FrameClaim claim=claims.get(pid);
+        if(claim==null||claim.reader!=Thread.currentThread()||!claims.remove(pid,claim)){
+            return null;
+        }
+        return claim.frame;
+    }
 
-    private LockManager lockManager;
+    /**
+     * Gives the arena frame of a page that left the pool back, once the
+     * page is no longer referenced.
+     */
+    private void releaseFrame(Page page) {
+        if(page instanceof HeapPage){
+            ByteBuffer frame=((HeapPage) page).frame();
+            if(frame!=null){
+                arena.retire(frame,page);
+            }
+        }
+    }
 
+    /**
+     * Puts fr in the table unless pid has a frame already.
+     *
+     * @return the frame of pid now in the table
+     */
+    private Frame addFrame(PageId pid, Frame fr) {
+        return frames.computeIfAbsent(pid, k -> {
+            fr.part.policy.admit(k);
+            return fr;
+        });
+    }
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Removes fr from the table if it is the frame of pid, freeing its slot.
      *
-     * @param numPages maximum number of pages in this buffer pool.
+     * @return whether fr was removed
      */
-    public BufferPool(int numPages) {
-        // some code goes here
-//        pageList= new LinkedList<Page>();
-        this.numPages=numPages;
-        this.pageList=new ConcurrentLinkedDeque<>();
-        this.pageCache= new ConcurrentHashMap<>();
-        this.lockManager = new LockManager();
-        this.g= new Graph();
+    private boolean removeFrame(PageId pid, Frame fr) {
+        boolean[] removed = {false};
+        frames.computeIfPresent(pid, (k, cur) -> {
+            if (cur != fr) {
+                return cur;
+            }
+            fr.part.policy.remove(k);
+            removed[0] = true;
+            return null;
+        });
+        if (removed[0]) {
+            Page page;
+            synchronized (fr) {
+                fr.evicted = true;
+                page = fr.page;
+            }
+            releaseFrame(page);
+            freeSlot(fr.part);
+        }
+        return removed[0];
     }
 
-    
-    public static int getPageSize() {
-      return pageSize;
+    /** Waits for another thread to read the page of fr, and fails like it did. */
+    private static Page awaitLoad(Frame fr) {
+        boolean interrupted=false;
+        try{
+            while(true){
+                try{
+                    return fr.loaded.get();
+                }catch (InterruptedException e){
+                    interrupted=true;
+                }catch (ExecutionException e){
+                    if(e.getCause() instanceof RuntimeException){
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        }finally {
+            if(interrupted){
+                Thread.currentThread().interrupt();
+            }
+        }
     }
-    
-    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
-    public static void setPageSize(int pageSize) {
-    	BufferPool.pageSize = pageSize;
+
+    /**
+     * Takes one of the slots of part; once ring is full, the slot of its
+     * oldest page if that page is still only the ring's and clean.
+     */
+    private void reserveFrame(Partition part, BufferRing ring) throws DbException {
+        PageId old=ring==null?null:ring.recycle();
+        Frame fr=old==null?null:frames.get(old);
+        if(fr!=null){
+            synchronized (fr){
+                if(fr.ring==ring&&isEvictable(fr)&&removeFrame(old,fr)){
+                    fr.evicted=true;
+                }
+            }
+        }
+        reserveFrame(part);
     }
-    
-    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
-    public static void resetPageSize() {
-    	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
+
+    /** Takes one of the slots of part, evicting one of its pages if all are in use. */
+    private void reserveFrame(Partition part) throws DbException {
+        while(true){
+            int n=part.used.get();
+            if(n<part.capacity){
+                if(part.used.compareAndSet(n,n+1)){
+                    used.incrementAndGet();
+                    return;
+                }
+            }else{
+                evictPage(part);
+                if(part.used.get()>=part.capacity&&isShrinking()){
+                    // over budget: take the slot of the evicted page, the
+                    // shrinker sheds the rest
+                    part.used.incrementAndGet();
+                    used.incrementAndGet();
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Gives back a slot of part. */
+    private void freeSlot(Partition part) {
+        part.used.decrementAndGet();
+        used.decrementAndGet();
     }
 
     /**
-     * Retrieve the specified page with the associated permissions.
-     * Will acquire a lock and may block if that lock is held by another
-     * transaction.
-     * <p>
-     * The retrieved page should be looked up in the buffer pool.  If it
-     * is present, it should be returned.  If it is not present, it should
-     * be added to the buffer pool and returned.  If there is insufficient
-     * space in the buffer pool, a page should be evicted and the new page
-     * should be added in its place.
-     *
-     * @param tid the ID of the transaction requesting the page
-     * @param pid the ID of the requested page
-     * @param perm the requested permissions on the page
+     * Puts a page a transaction just dirtied in the table, replacing the
+     * version there, which may be a copy read from disk since the dirtied
+     * one was evicted.
      */
-    public  synchronized Page getPage(TransactionId tid, PageId pid, Permissions perm)
-        throws TransactionAbortedException, DbException {
-        Lock.LockType lockType=perm==Permissions.READ_ONLY? Lock.LockType.SHARING: Lock.LockType.EXCLUSIVE;
-        long st=System.currentTimeMillis();
-        boolean isacquired=false;
-        isacquired= tid == null || lockManager.getLock(tid, pid, lockType);
-
-        while(!isacquired){
-            long now=System.currentTimeMillis();
-//            if(now-st>50){
-//                throw new TransactionAbortedException();
-//            }
-                System.out.println("进行判断");
-                for(TransactionId owner:lockManager.getCurrentOwners(pid)){
-                    g.add_edge(tid,owner);
-//                    System.out.println("加边: a:"+tid.getId()+" -> b:"+owner.getId());
+    private void installDirty(Page p) throws DbException {
+        PageId pid=p.getId();
+        while(true){
+            Frame fr=frames.get(pid);
+            if(fr==null){
+                Partition part=partitionOf(pid);
+                reserveFrame(part);
+                Frame fresh=new Frame(part,p);
+                if(addFrame(pid,fresh)==fresh){
+                    return;
                 }
-                if(!g.topological_sort()) {
-                    // must have a circle
-                    // abort itself
-                    System.out.println("有环解环 abort tid:"+tid.getId()   );
-                    g.delete_edge(tid);
-                    // 加个backofftime
-                    try {
-//                        System.out.println("backofftime");
-                        TimeUnit.MILLISECONDS.sleep(30);
-                    } catch (InterruptedException e) {
-                        throw new RuntimeException(e);
+                freeSlot(part);
+                continue;
+            }
+            if(fr.page==null){
+                try{
+                    awaitLoad(fr);
+                }catch (RuntimeException e){
+                    // that read failed; its frame is gone
+                }
+                continue;
+            }
+            synchronized (fr){
+                if(!fr.evicted){
+                    Page old=fr.page;
+                    fr.page=p;
+                    fr.part.policy.access(pid);
+                    if(old!=p){
+                        releaseFrame(old);
                     }
-                    throw new TransactionAbortedException();
+                    return;
                 }
-
-            isacquired=lockManager.getLock(tid,pid,lockType);
+            }
         }
-//        System.out.println("Transaction :"+tid.getId()+" get the "+lockType.toString()+"lock on page:"+pid.getPageNumber());
+    }
 
-        if(pageCache.containsKey(pid)){
-//            assert (pageCache.size()==pageList.size());
-            pageList.remove(pid);
-            pageList.offer(pid);
-//            assert (pageCache.size()==pageList.size());
-            return pageCache.get(pid);
-        }else{
-            // evict
-            if(pageCache.size()==numPages){
-                evictPage();
-            }
-            // get new page from disk
-            DbFile file =Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page page=file.readPage(pid);
-            pageList.offer(pid);
-            pageCache.put(pid,page);
-            return page;
+
+    /**
+     * Asynchronously reads the specified page from disk and installs it in
+     * the buffer pool, so a later {@link #getPage} finds it resident. No lock
+     * is acquired; the transaction that eventually uses the page still takes
+     * its lock in getPage.
+     * <p>
+     * Read-ahead is best effort: the page is skipped if it is already
+     * cached, cannot be read, or no clean page can be evicted to make room.
+     *
+     * @param pid the ID of the page to read ahead
+     */
+    public void prefetchPage(PageId pid) {
+        prefetchPage(pid, null);
+    }
+
+    /**
+     * Reads a page ahead like {@link #prefetchPage(PageId)}, for a scan that
+     * reads through ring.
+     *
+     * @param ring the ring the scan reads through, or null
+     */
+    public void prefetchPage(PageId pid, BufferRing ring) {
+        if (frames.containsKey(pid)) {
+            return;
         }
+        readAheadExecutor.execute(() -> installPrefetched(pid, ring));
     }
 
+    private void installPrefetched(PageId pid, BufferRing ring) {
+        long epoch = writeEpoch.get();
+        Page page;
+        try {
+            page = readPage(pid);
+        } catch (RuntimeException e) {
+            // the table was dropped or the page does not exist (anymore)
+            return;
+        }
+        if (frames.containsKey(pid)) {
+            releaseFrame(page);
+            return;
+        }
+        Partition part = partitionOf(pid);
+        try {
+            reserveFrame(part, ring);
+        } catch (DbException e) {
+            releaseFrame(page);
+            return;
+        }
+        Frame fr = new Frame(part, page);
+        fr.ring = ring;
+        boolean[] installed = {false};
+        frames.compute(pid, (k, cur) -> {
+            if (cur != null || epoch != writeEpoch.get()) {
+                return cur;
+            }
+            part.policy.admit(k);
+            installed[0] = true;
+            return fr;
+        });
+        if (!installed[0]) {
+            freeSlot(part);
+            releaseFrame(page);
+        } else if (ring != null) {
+            ring.add(pid);
+        }
+    }
 
     /**
      * Releases the lock on a page.
@@ -166,6 +1393,11 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1|lab2
         lockManager.releaseLock(tid,pid);
+        Frame fr=frames.get(pid);
+        Page page=fr==null?null:fr.page;
+        if(page==null||page.isDirty()!=tid){
+            touchedBy(tid).remove(pid);
+        }
     }
 
     /**
@@ -179,6 +1411,171 @@ public class BufferPool {
         transactionComplete(tid,true);
     }
 
+    /**
+     * Locks a whole table for the transaction, shared for READ_ONLY and
+     * exclusive for READ_WRITE, so that it takes no page locks under it,
+     * waiting for the lock if need be.
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+        throws TransactionAbortedException {
+        if(tid==null){
+            return;
+        }
+        lockManager.acquireTable(tid,tableId,perm==Permissions.READ_ONLY? Lock.LockType.SHARING: Lock.LockType.EXCLUSIVE);
+    }
+
+    /**
+     * Locks a tuple for the transaction, shared for READ_ONLY and exclusive
+     * for READ_WRITE, waiting for the lock if need be.
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+        if(tid==null){
+            return;
+        }
+        lockManager.acquireRecord(tid,rid,perm==Permissions.READ_ONLY? Lock.LockType.SHARING: Lock.LockType.EXCLUSIVE);
+    }
+
+    /**
+     * Locks a tuple exclusively for the transaction if that can be done
+     * without waiting, e.g. an empty slot to insert into.
+     *
+     * @return whether tid now holds the lock
+     */
+    public boolean tryLockRecord(TransactionId tid, RecordId rid) {
+        return tid==null||lockManager.getRecordLock(tid,rid, Lock.LockType.EXCLUSIVE);
+    }
+
+    /**
+     * Whether tid may change tuples of the page alongside other
+     * transactions; if not, because the page was written to disk with the
+     * changes of another one still running, it has to be locked
+     * EXCLUSIVE first. Called under the monitor of the page.
+     */
+    public boolean mayWriteRecords(TransactionId tid, HeapPage page) {
+        for(Map.Entry<TransactionId,ConcurrentHashMap<PageId,Page>> e:stolen.entrySet()){
+            if(!e.getKey().equals(tid)&&e.getValue().containsKey(page.getId())){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Notes that tid inserted a tuple into the slot rid names, or deleted
+     * the given tuple from it, under a record lock. Called under the
+     * monitor of the page, right after the change.
+     *
+     * @param deleted the tuple deleted, or null for an insert
+     */
+    public void recordWritten(TransactionId tid, HeapPage page, RecordId rid, Tuple deleted) {
+        page.markDirty(true,tid);
+        if(tid==null){
+            return;
+        }
+        touch(tid,page.getId());
+        recordWrites.computeIfAbsent(page.getId(),k->new RecordWrites(page))
+                .byTid.computeIfAbsent(tid,k->new ArrayList<>())
+                .add(new RecordWrite(rid,deleted));
+    }
+
+    /** Takes back writes on page, the last one first. */
+    private static void undo(HeapPage page, List<RecordWrite> writes) throws DbException {
+        for(int i=writes.size()-1;i>=0;i--){
+            RecordWrite w=writes.get(i);
+            if(w.deleted==null){
+                page.deleteTuple(w.rid);
+            }else{
+                page.insertTuple(w.deleted,w.rid.getTupleNumber());
+            }
+        }
+    }
+
+    /**
+     * Writes the pages tid changed under record locks, each without the
+     * changes of the other transactions still running on it, which keep
+     * it dirty.
+     */
+    private void commitRecords(TransactionId tid) throws IOException {
+        for(PageId pid:touchedBy(tid)){
+            RecordWrites rw=recordWrites.get(pid);
+            if(rw==null){
+                continue;
+            }
+            synchronized (rw){
+                HeapPage page=rw.page;
+                HeapPage image;
+                Page before;
+                synchronized (page){
+                    if(!rw.byTid.containsKey(tid)){
+                        continue;
+                    }
+                    try{
+                        image=rw.without(tid);
+                    }catch (DbException e){
+                        throw new IOException(e.getMessage());
+                    }
+                    before=page.getBeforeImage();
+                }
+                // write ahead, not under the page's monitor, see flushPage
+                Database.getLogFile().logWrite(tid,before,image);
+                Database.getLogFile().force();
+                synchronized (page){
+                    HeapFile file=(HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+                    file.writePage(image);
+                    // the image lacks what the other writers did to the page
+                    file.pageChanged(page);
+                    writeEpoch.incrementAndGet();
+                    page.setBeforeImage(image.getPageData());
+                    rw.byTid.remove(tid);
+                    settle(pid,rw);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes back the changes tid made under record locks, leaving those of
+     * the other transactions on the same pages.
+     */
+    private void undoRecords(TransactionId tid){
+        for(PageId pid:touchedBy(tid)){
+            RecordWrites rw=recordWrites.get(pid);
+            if(rw==null){
+                continue;
+            }
+            HeapPage page=rw.page;
+            synchronized (page){
+                List<RecordWrite> writes=rw.byTid.remove(tid);
+                Frame fr=frames.get(pid);
+                // unless a rollback put the page back already
+                if(writes!=null&&fr!=null&&fr.page==page){
+                    try{
+                        undo(page,writes);
+                    }catch (DbException e){
+                        throw new RuntimeException(e);
+                    }
+                }
+                settle(pid,rw);
+            }
+        }
+    }
+
+    /**
+     * Leaves the page dirty for one of the transactions still changing it,
+     * or clean, as it was last written, if there is none. Called under the
+     * monitor of the page.
+     */
+    private void settle(PageId pid, RecordWrites rw){
+        TransactionId other=rw.other(null);
+        if(other==null){
+            recordWrites.remove(pid,rw);
+            rw.page.markDirty(false,null);
+        }else{
+            rw.page.markDirty(true,other);
+        }
+    }
+
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
@@ -199,31 +1596,79 @@ public class BufferPool {
         // not necessary for lab1|lab2
         if(commit){
             try {
+                commitRecords(tid);
                 flushPages(tid);
+                stampSidecars(touchedBy(tid));
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
+            stolen.remove(tid);
         }else{
             // when abort
+            // tuples changed next to other transactions are put back one by one
+            undoRecords(tid);
             // release all dirty pages caused by this transaction
             // and read them form the disk
             restorePages(tid);
+            // pages written early go back to their before images
+            undoStolenPages(tid);
         }
+        writes.remove(tid);
+        touched.remove(tid);
+        releasePins(tid);
         // 释放锁
         lockManager.realeaseAllLocks(tid);
-//        g.delete_edge(tid);
 //        assert (pageCache.size()==pageList.size());
     }
 
-    public synchronized void restorePages(TransactionId tid){
-        for (Map.Entry<PageId, Page> entry : pageCache.entrySet()) {
-            PageId pid = entry.getKey();
-            Page page = entry.getValue();
-            if (page.isDirty() == tid) {
-                int tableId = pid.getTableId();
-                DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
-                Page cleanPage = dbFile.readPage(pid);
-                pageCache.put(pid, cleanPage);
+    private void undoStolenPages(TransactionId tid){
+        Map<PageId,Page> before=stolen.remove(tid);
+        if(before==null){
+            return;
+        }
+        for(Page p:before.values()){
+            try {
+                Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            discardPage(p.getId());
+        }
+    }
+
+    /**
+     * Drops the pages dirtied by tid from the pool, so they are read from
+     * disk again when next needed, and waits for writes of them still in
+     * flight (by the page cleaner, say) to finish.
+     * <p>
+     * The clean pages tid locked exclusively go too: an insert or delete
+     * that was aborted half way, waiting for a lock, may have changed some
+     * of its pages already without marking them dirty, as a B+ tree delete
+     * does with the leaf before it merges or redistributes it.
+     */
+    public void restorePages(TransactionId tid){
+        writeEpoch.incrementAndGet();
+        List<Page> dropped = new ArrayList<>();
+        for (PageId pid : touchedBy(tid)) {
+            Frame fr = frames.get(pid);
+            Page page = fr == null ? null : fr.page;
+            if (page == null) {
+                continue;
+            }
+            TransactionId dirtier = page.isDirty();
+            boolean changed = dirtier == tid
+                    || dirtier == null && lockManager.holdLock(tid, pid, Lock.LockType.EXCLUSIVE);
+            if (changed && removeFrame(pid, fr)) {
+                synchronized (fr) {
+                    fr.evicted = true;
+                }
+                dropped.add(page);
+            }
+        }
+        for (Page page : dropped) {
+            // flushPage writes a page only while it is in the pool
+            synchronized (page) {
+                page.markDirty(false, null);
             }
         }
     }
@@ -252,15 +1697,17 @@ public class BufferPool {
         if(DbFile==null){
             throw new IOException("DbFile error");
         }
-        List<Page> pageDirtyList=DbFile.insertTuple(tid,t);
-        for(Page p:pageDirtyList){
-            // 这最好的办法还是做一个lrucache 我当时没做 通过这个管理比较好
-            p.markDirty(true,tid);
-            // 可能page被别的置换走了? 但是这个加了必然出错的
-            if(pageCache.size()==numPages){
-                evictPage();
+        Writes w=beginWrites(tid);
+        try{
+            List<Page> pageDirtyList=DbFile.insertTuple(tid,t);
+            for(Page p:pageDirtyList){
+                p.markDirty(true,tid);
+                touch(tid,p.getId());
+                // 可能page被别的置换走了, 重新放回去
+                installDirty(p);
             }
-            pageCache.put(p.getId(),p);
+        }finally {
+            endWrites(w);
         }
 //        System.out.println("Transaction:"+tid.getId()+" insert "+t.toString()+" into table:"+tableId);
         // not on the disk, but on the bufferpool
@@ -286,13 +1733,16 @@ public class BufferPool {
 
         DbFile DbFile=Database.getCatalog().getDatabaseFile(tableId);
 //        assert (pageCache.size()==pageList.size());
-        List<Page> pageDirtyList=DbFile.deleteTuple(tid,t);
-        for(Page p:pageDirtyList){
-            p.markDirty(true,tid);
-            if(pageCache.size()==numPages){
-                evictPage();
+        Writes w=beginWrites(tid);
+        try{
+            List<Page> pageDirtyList=DbFile.deleteTuple(tid,t);
+            for(Page p:pageDirtyList){
+                p.markDirty(true,tid);
+                touch(tid,p.getId());
+                installDirty(p);
             }
-            pageCache.put(p.getId(),p);
+        }finally {
+            endWrites(w);
         }
 //        System.out.println("Transaction:"+tid.getId()+" delete "+t.toString());
         // some code goes here
@@ -300,20 +1750,37 @@ public class BufferPool {
         // not necessary for lab1
     }
 
+    private Writes beginWrites(TransactionId tid){
+        Writes w=writes.computeIfAbsent(tid,k->new Writes());
+        w.thread=Thread.currentThread();
+        w.seq.incrementAndGet();
+        return w;
+    }
+
+    private static void endWrites(Writes w){
+        w.seq.incrementAndGet();
+        w.thread=null;
+    }
+
     /**
      * Flush all dirty pages to disk.
+     * Pages of running transactions are written early, see
+     * {@link #setStealEnabled(boolean)}.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for (Map.Entry<PageId, Page> entry : pageCache.entrySet()) {
-            Page page = entry.getValue();
-            if (page.isDirty() != null) {
-                flushPage(page.getId());
+        List<PageId> flushed = new ArrayList<>();
+        for (Frame fr : frames.values()) {
+            Page page = fr.page;
+            if (page != null && page.isDirty() != null) {
+                flushPage(page, true);
+                flushed.add(page.getId());
             }
         }
+        stampSidecars(flushed);
 //        assert (pageList.size()==0);
 
     }
@@ -326,45 +1793,104 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
-        pageCache.remove(pid);
-        pageList.remove(pid);
+    public void discardPage(PageId pid) {
+        // the caller may have changed the page on disk behind our back
+        writeEpoch.incrementAndGet();
+        Frame fr=frames.get(pid);
+        if(fr!=null&&removeFrame(pid,fr)){
+            synchronized (fr){
+                fr.evicted=true;
+            }
+        }
     }
 
     /**
      * Flushes a certain page to disk
-     * @param pid an ID indicating the page to flush
+     * @param p the page to flush
+     * @param early whether the transaction that dirtied p may still be
+     *              running; p is then only marked clean if that
+     *              transaction changed no page while it was written
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(Page p, boolean early) throws IOException {
         // some code goes here
         // not necessary for lab1
-            Page p=pageCache.get(pid);
-            TransactionId dirtier = p.isDirty();
-            if (dirtier != null){
-                Database.getLogFile().logWrite(dirtier, p.getBeforeImage(), p);
-                Database.getLogFile().force();
-            }//??
-//            pageList.remove(pid);
-//            pageCache.remove(pid);
-            DbFile dbFile=Database.getCatalog().getDatabaseFile(pid.getTableId());
+        TransactionId dirtier = p.isDirty();
+        Writes w = dirtier == null ? null : writes.get(dirtier);
+        long seq = w == null ? 0 : w.seq.get();
+        if (dirtier != null){
+            if (early) {
+                synchronized (p) {
+                    RecordWrites rw = recordWrites.get(p.getId());
+                    if (rw != null && rw.other(dirtier) != null) {
+                        // changed by several transactions; see getRecordPage
+                        return;
+                    }
+                    // the first before image is the one of the last commit
+                    stolen.computeIfAbsent(dirtier, k -> new ConcurrentHashMap<>())
+                            .putIfAbsent(p.getId(), p.getBeforeImage());
+                }
+            }
+            // write ahead: the log record reaches the disk before the page.
+            // not under the page's monitor, a checkpoint takes them the other way round
+            Database.getLogFile().logWrite(dirtier, p.getBeforeImage(), p);
+            Database.getLogFile().force();
+        }//??
+        // two flushes of one page must not interleave
+        synchronized (p) {
+            Frame fr = frames.get(p.getId());
+            if (fr == null || fr.page != p) {
+                // dropped on abort, or replaced by a newer version
+                return;
+            }
+            DbFile dbFile=Database.getCatalog().getDatabaseFile(p.getId().getTableId());
 //            System.out.println("page "+p.getId()+" is flushed");
             dbFile.writePage(p);
-            p.markDirty(false,null);
+            // after the write: a read-ahead that overlapped it is not installed
+            writeEpoch.incrementAndGet();
+            boolean quiet = !early || dirtier == null
+                    || (w == null ? writes.get(dirtier) == null
+                        : w.seq.get() == seq && (seq % 2 == 0 || w.thread == Thread.currentThread()));
+            if (quiet && p.isDirty() == dirtier) {
+                p.markDirty(false,null);
+            }
+        }
+    }
+
+    /**
+     * Stamps the sidecar files of the heap files the pages belong to, once
+     * per file, after a flush wrote them; see {@link HeapFile#stampSidecars()}.
+     */
+    private static void stampSidecars(Collection<PageId> pids) throws IOException {
+        Set<Integer> tables = new HashSet<>();
+        for (PageId pid : pids) {
+            if (tables.add(pid.getTableId())) {
+                DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                if (file instanceof HeapFile) {
+                    ((HeapFile) file).stampSidecars();
+                }
+            }
+        }
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        // get all pages locked by the transaction
-        for (Map.Entry<PageId, Page> entry : pageCache.entrySet()) {
-            Page page = entry.getValue();
-
+        // only the pages the transaction may have changed
+        for (PageId pid : touchedBy(tid)) {
+            Frame fr = frames.get(pid);
+            Page page = fr == null ? null : fr.page;
+            if (page == null) {
+                continue;
+            }
             if (page.isDirty() == tid) {
-                flushPage(page.getId());
+                flushPage(page, false);
+            }
+            if (page.isDirty() == null) {
+                // not a page another transaction dirtied after tid let go of it
+                page.setBeforeImage();
             }
-            page.setBeforeImage();
         }
     }
 
@@ -372,21 +1898,85 @@ public class BufferPool {
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage(Partition part) throws DbException {
         // some code goes here
         // not necessary for lab1
-        for(PageId vicim:pageList){
-            if(pageCache.get(vicim).isDirty()==null){
-                // 这里也需要同时取掉list
-                pageList.remove(vicim);
-                discardPage(vicim);
-                return;
-            }else{
-                pageList.remove(vicim);
-                pageList.addFirst(vicim);
+        ReplacementPolicy policy=part.policy;
+        for(int steals=0;;){
+            PageId victimId=policy.victim(pid->isEvictable(frames.get(pid)));
+            if(victimId==null&&steal&&steals<part.capacity){
+                // STEAL: write the page the policy would evict, then evict it
+                PageId dirtyId=policy.victim(pid->{
+                    Frame fr=frames.get(pid);
+                    return fr!=null&&fr.page!=null&&fr.pins==0;
+                });
+                Frame fr=dirtyId==null?null:frames.get(dirtyId);
+                Page page=fr==null?null:fr.page;
+                if(page!=null){
+                    steals++;
+                    try{
+                        flushPage(page,true);
+                    }catch (IOException e){
+                        throw new DbException("cannot write page "+dirtyId+" to evict it: "+e.getMessage());
+                    }
+                    PageCleaner c=cleaner;
+                    if(c!=null){
+                        // a miss had to write: the cleaner is behind
+                        c.wake();
+                    }
+                    continue;
+                }
+            }
+            if(victimId==null){
+                if(part.used.get()<part.capacity){
+                    // another thread freed a slot meanwhile
+                    return;
+                }
+                throw  new DbException("All dirty");
+            }
+            Frame victim=frames.get(victimId);
+            if(victim==null){
+                continue;
+            }
+            synchronized (victim){
+                if(isEvictable(victim)&&removeFrame(victimId,victim)){
+                    victim.evicted=true;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Evicts the clean, unpinned page the policy of part picks.
+     *
+     * @return false if there is none
+     */
+    private boolean evictClean(Partition part){
+        while(true){
+            PageId victimId=part.policy.victim(pid->isEvictable(frames.get(pid)));
+            if(victimId==null){
+                return false;
+            }
+            Frame victim=frames.get(victimId);
+            if(victim==null){
+                continue;
+            }
+            synchronized (victim){
+                if(isEvictable(victim)&&removeFrame(victimId,victim)){
+                    victim.evicted=true;
+                    return true;
+                }
             }
         }
-        throw  new DbException("All dirty");
     }
 
+    /** whether the page of fr is read, clean and not pinned */
+    private static boolean isEvictable(Frame fr){
+        Page page=fr==null?null:fr.page;
+        return page!=null&&page.isDirty()==null&&fr.pins==0;
+    }
+
+
+
 }
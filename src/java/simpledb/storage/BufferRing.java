@@ -0,0 +1,47 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+
+/**
+ * A small ring of BufferPool frames that a large sequential scan reads
+ * through. Once the ring is full, each page the scan reads from disk takes
+ * the frame of the oldest page the scan read, so the scan occupies a few
+ * frames of the pool instead of pushing the rest of its working set out. A
+ * page of the ring that another transaction or scan uses in the meantime,
+ * or that is dirtied, joins the main pool and is no longer recycled.
+ * <p>
+ * See {@link BufferPool#scanRing(int)} for when scans use a ring.
+ *
+ * @Threadsafe
+ */
+public class BufferRing {
+
+    /** frames of a ring unless the pool is small */
+    public static final int DEFAULT_FRAMES = 16;
+
+    private final int frames;
+    private final ArrayDeque<PageId> pages;
+
+    /**
+     * @param frames number of frames in the ring
+     */
+    public BufferRing(int frames) {
+        this.frames = Math.max(1, frames);
+        this.pages = new ArrayDeque<>();
+    }
+
+    /** @return the number of frames in the ring */
+    public int getFrames() {
+        return frames;
+    }
+
+    /** Records that the scan read pid into the pool. */
+    synchronized void add(PageId pid) {
+        pages.add(pid);
+    }
+
+    /** @return the page whose frame the next page read should take, or null while the ring is not full */
+    synchronized PageId recycle() {
+        return pages.size() >= frames ? pages.poll() : null;
+    }
+}
@@ -0,0 +1,138 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance): pages sit in the slots of a ring, each with a
+ * reference bit that a hit sets. To find a victim a hand sweeps the ring,
+ * clearing set bits, and stops at the first evictable page whose bit is
+ * clear. A hit takes no lock and writes nothing shared with other pages,
+ * which makes CLOCK the policy of choice for large pools under many
+ * concurrent readers.
+ *
+ * @Threadsafe
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private static final class Entry {
+        final PageId pid;
+        final int slot;
+        volatile boolean referenced;
+
+        Entry(PageId pid, int slot) {
+            this.pid = pid;
+            this.slot = slot;
+        }
+    }
+
+    private final ConcurrentHashMap<PageId, Entry> entries = new ConcurrentHashMap<>();
+    private Entry[] ring;
+    /** slots below ring.length that are empty */
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    /** slots in use, or freed, so far */
+    private int used;
+    private int hand;
+
+    public ClockPolicy() {
+        this(64);
+    }
+
+    /**
+     * @param capacity number of pages expected, to size the ring; it grows
+     *                 if more are admitted
+     */
+    public ClockPolicy(int capacity) {
+        this.ring = new Entry[Math.max(1, capacity)];
+    }
+
+    @Override
+    public synchronized void admit(PageId pid) {
+        Entry e = entries.get(pid);
+        if (e != null) {
+            e.referenced = true;
+            return;
+        }
+        int slot;
+        if (!freeSlots.isEmpty()) {
+            slot = freeSlots.poll();
+        } else {
+            if (used == ring.length) {
+                ring = Arrays.copyOf(ring, ring.length * 2);
+            }
+            slot = used++;
+        }
+        e = new Entry(pid, slot);
+        ring[slot] = e;
+        entries.put(pid, e);
+    }
+
+    @Override
+    public void access(PageId pid) {
+        Entry e = entries.get(pid);
+        // read before write: no cache line ping-pong for hot pages
+        if (e != null && !e.referenced) {
+            e.referenced = true;
+        }
+    }
+
+    @Override
+    public synchronized void remove(PageId pid) {
+        Entry e = entries.remove(pid);
+        if (e != null) {
+            ring[e.slot] = null;
+            freeSlots.push(e.slot);
+        }
+    }
+
+    @Override
+    public synchronized PageId victim(Predicate<PageId> evictable) {
+        if (used == 0) {
+            return null;
+        }
+        // two turns: the first may only clear reference bits
+        for (int steps = 0; steps < 2 * used; steps++) {
+            Entry e = ring[hand];
+            hand = (hand + 1) % used;
+            if (e == null) {
+                continue;
+            }
+            if (e.referenced) {
+                e.referenced = false;
+            } else if (evictable.test(e.pid)) {
+                return e.pid;
+            }
+        }
+        // every evictable page was referenced again during the sweep
+        for (int steps = 0; steps < used; steps++) {
+            Entry e = ring[hand];
+            hand = (hand + 1) % used;
+            if (e != null && evictable.test(e.pid)) {
+                return e.pid;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Referenced pages first, then the others in the reverse order the hand
+     * reaches them.
+     */
+    @Override
+    public synchronized List<PageId> hottest() {
+        List<PageId> referenced = new ArrayList<>();
+        List<PageId> others = new ArrayList<>();
+        for (int steps = 1; steps <= used; steps++) {
+            Entry e = ring[(hand - steps + used) % used];
+            if (e != null) {
+                (e.referenced ? referenced : others).add(e.pid);
+            }
+        }
+        referenced.addAll(others);
+        return referenced;
+    }
+}
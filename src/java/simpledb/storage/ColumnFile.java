@@ -0,0 +1,353 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * ColumnFile is an implementation of a DbFile that stores every column of
+ * its TupleDesc in a sequence of pages of its own, so a scan that needs only
+ * a few columns of a wide table reads only their pages (see
+ * {@link #iterator(TransactionId, int[])}).
+ * <p>
+ * Column i is stored in the file <code>&lt;f&gt;.col&lt;i&gt;</code> as
+ * consecutive ColumnPages. Every row of the table has the same number in all
+ * columns, and row r of column i lives in slot
+ * <code>r % slotsPerPage</code> of page <code>r / slotsPerPage</code>, where
+ * slotsPerPage depends on the size of the column's type. A row is stored in
+ * all columns or in none, so the used slots of any column tell which rows
+ * exist. The RecordId of a tuple points at its slot in column 0.
+ *
+ * @see ColumnPage
+ */
+public class ColumnFile implements DbFile {
+
+    private final File f;
+    private final TupleDesc td;
+    private final File[] columnFiles;
+    /** empty slots of the pages of column 0, i.e. free rows */
+    private final FreeSpaceMap freeSpace;
+
+    /**
+     * Constructs a column file whose column files live next to f.
+     *
+     * @param f the base name of the files of this table; also identifies the table
+     * @param td the schema of the tuples in the file
+     */
+    public ColumnFile(File f, TupleDesc td) {
+        this.f = f;
+        this.td = td;
+        this.columnFiles = new File[td.numFields()];
+        for (int i = 0; i < columnFiles.length; i++) {
+            columnFiles[i] = new File(f.getPath() + ".col" + i);
+        }
+        this.freeSpace = new FreeSpaceMap(this, columnFiles.length > 0 ? columnFiles[0] : f);
+    }
+
+    /** @return the base File of this table */
+    public File getFile() {
+        return f;
+    }
+
+    /** @return the file holding the pages of the specified column */
+    public File getColumnFile(int column) {
+        return columnFiles[column];
+    }
+
+    public int getId() {
+        return f.getAbsoluteFile().hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Returns the TupleDesc of the tuples returned by a scan of the specified
+     * columns.
+     */
+    public TupleDesc getTupleDesc(int[] columns) {
+        Type[] types = new Type[columns.length];
+        String[] names = new String[columns.length];
+        for (int j = 0; j < columns.length; j++) {
+            types[j] = td.getFieldType(columns[j]);
+            names[j] = td.getFieldName(columns[j]);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    /** @return the number of pages of the specified column */
+    public int numPages(int column) {
+        return (int) (columnFiles[column].length() / BufferPool.getPageSize());
+    }
+
+    /** @return the number of pages of all columns together */
+    public int numPages() {
+        int n = 0;
+        for (int i = 0; i < columnFiles.length; i++) {
+            n += numPages(i);
+        }
+        return n;
+    }
+
+    /** @return the number of pages of the specified columns together */
+    @Override
+    public int numPages(int[] columns) {
+        int n = 0;
+        for (int column : columns) {
+            n += numPages(column);
+        }
+        return n;
+    }
+
+    private int slotsPerPage(int column) {
+        return ColumnPage.slotsPerPage(td.getFieldType(column));
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) throws IllegalArgumentException {
+        if (!(pid instanceof ColumnPageId)) {
+            throw new IllegalArgumentException("not a page of a column file: " + pid);
+        }
+        ColumnPageId cid = (ColumnPageId) pid;
+        int column = cid.getColumn();
+        int pgNo = cid.getPageNumber();
+        if (column < 0 || column >= columnFiles.length || pgNo < 0 || pgNo >= numPages(column)) {
+            throw new IllegalArgumentException(cid + " is invalid!");
+        }
+        int pageSize = BufferPool.getPageSize();
+        byte[] data = new byte[pageSize];
+        try {
+            int read = Database.getFileChannelManager().read(this, columnFiles[column],
+                    ByteBuffer.wrap(data), (long) pgNo * pageSize);
+            if (read != pageSize) {
+                throw new IllegalArgumentException(cid + " read " + read + " bytes");
+            }
+            ColumnPage page = new ColumnPage(cid, data);
+            if (column == 0) {
+                freeSpace.update(pgNo, page.getNumEmptySlots());
+            }
+            return page;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        throw new IllegalArgumentException(cid + " is invalid!");
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        ColumnPageId cid = (ColumnPageId) page.getId();
+        long offset = (long) cid.getPageNumber() * BufferPool.getPageSize();
+        Database.getFileChannelManager().write(this, columnFiles[cid.getColumn()],
+                ByteBuffer.wrap(page.getPageData(), 0, BufferPool.getPageSize()), offset);
+        if (cid.getColumn() == 0) {
+            freeSpace.pageWritten(cid.getPageNumber(), ((ColumnPage) page).getNumEmptySlots());
+        }
+    }
+
+    /** Appends empty pages to a column until it has page pgNo. */
+    private synchronized void ensurePage(int column, int pgNo) throws IOException {
+        for (int n = numPages(column); n <= pgNo; n++) {
+            writePage(new ColumnPage(new ColumnPageId(getId(), column, n), ColumnPage.createEmptyPageData()));
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public List<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!t.getTupleDesc().equals(td)) {
+            throw new DbException("the tupledesc is mismatch");
+        }
+        // find a free row through the pages of column 0; a row is only
+        // taken while its page is locked, so a page appended here may still
+        // be filled up by someone else first
+        int row = -1;
+        int from = 0;
+        while (row < 0) {
+            for (int i = freeSpace.nextPageWithSpace(from, numPages(0)); i >= 0 && row < 0;
+                 i = freeSpace.nextPageWithSpace(i + 1, numPages(0))) {
+                ColumnPageId pid = new ColumnPageId(getId(), 0, i);
+                boolean held = Database.getBufferPool().holdsLock(tid, pid);
+                ColumnPage page = (ColumnPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+                for (int s = 0; s < page.getNumSlots(); s++) {
+                    if (!page.isSlotUsed(s)) {
+                        row = i * page.getNumSlots() + s;
+                        break;
+                    }
+                }
+                if (row < 0) {
+                    // stale hint; don't keep a lock we only took to look at the page
+                    freeSpace.update(i, 0);
+                    if (!held) {
+                        Database.getBufferPool().unsafeReleasePage(tid, pid);
+                    }
+                }
+            }
+            if (row < 0) {
+                synchronized (this) {
+                    from = numPages(0);
+                    ensurePage(0, from);
+                }
+            }
+        }
+
+        List<Page> pageList = new ArrayList<>();
+        for (int c = 0; c < columnFiles.length; c++) {
+            int perPage = slotsPerPage(c);
+            ColumnPageId pid = new ColumnPageId(getId(), c, row / perPage);
+            ensurePage(c, pid.getPageNumber());
+            ColumnPage page = (ColumnPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+            page.setField(row % perPage, t.getField(c));
+            if (c == 0) {
+                freeSpace.update(pid.getPageNumber(), page.getNumEmptySlots());
+            }
+            pageList.add(page);
+        }
+        t.setRecordId(new RecordId(new ColumnPageId(getId(), 0, row / slotsPerPage(0)), row % slotsPerPage(0)));
+        return pageList;
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
+            TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !(rid.getPageId() instanceof ColumnPageId)
+                || rid.getPageId().getTableId() != getId()) {
+            throw new DbException("the tuple cannot be deleted or is not a member of the file");
+        }
+        int row = rid.getPageId().getPageNumber() * slotsPerPage(0) + rid.getTupleNumber();
+        ArrayList<Page> pageList = new ArrayList<>();
+        for (int c = 0; c < columnFiles.length; c++) {
+            int perPage = slotsPerPage(c);
+            ColumnPageId pid = new ColumnPageId(getId(), c, row / perPage);
+            if (pid.getPageNumber() >= numPages(c)) {
+                throw new DbException("the tuple cannot be deleted or is not a member of the file");
+            }
+            ColumnPage page = (ColumnPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+            if (!page.isSlotUsed(row % perPage)) {
+                throw new DbException("Slot is not used");
+            }
+            page.clearSlot(row % perPage);
+            if (c == 0) {
+                freeSpace.update(pid.getPageNumber(), page.getNumEmptySlots());
+            }
+            pageList.add(page);
+        }
+        return pageList;
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        int[] all = new int[td.numFields()];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = i;
+        }
+        return iterator(tid, all);
+    }
+
+    /**
+     * Returns an iterator over the specified columns of all the tuples in
+     * this file. Only the pages of those columns are read. The returned
+     * tuples have the TupleDesc {@link #getTupleDesc(int[])} and the RecordId
+     * of the full tuple, so they can be passed to deleteTuple.
+     *
+     * @param tid the transaction the scan runs in
+     * @param columns indexes of the columns to return, in the TupleDesc of the file
+     */
+    public DbFileIterator iterator(TransactionId tid, int[] columns) {
+        return new ColumnFileIterator(this, tid, columns.clone());
+    }
+
+    private static class ColumnFileIterator implements DbFileIterator {
+
+        private final ColumnFile file;
+        private final TransactionId tid;
+        private final int[] columns;
+        private final TupleDesc projected;
+        /** the column whose used slots tell which rows exist */
+        private final int driver;
+        private final int driverPerPage;
+
+        /** next page of the driver column to read */
+        private int pageNo;
+        private Iterator<Tuple> it;
+
+        ColumnFileIterator(ColumnFile file, TransactionId tid, int[] columns) {
+            this.file = file;
+            this.tid = tid;
+            this.columns = columns;
+            this.projected = file.getTupleDesc(columns);
+            this.driver = columns.length > 0 ? columns[0] : 0;
+            this.driverPerPage = file.slotsPerPage(driver);
+        }
+
+        /** Reads the rows of the next page of the driver column. */
+        private Iterator<Tuple> readPage(int pgNo) throws DbException, TransactionAbortedException {
+            int tableId = file.getId();
+            ColumnPage driverPage = (ColumnPage) Database.getBufferPool().getPage(tid,
+                    new ColumnPageId(tableId, driver, pgNo), Permissions.READ_ONLY);
+            ColumnPage[] pages = new ColumnPage[columns.length];
+            int perPage0 = file.slotsPerPage(0);
+            List<Tuple> tuples = new ArrayList<>();
+            for (int s = 0; s < driverPerPage; s++) {
+                if (!driverPage.isSlotUsed(s)) continue;
+                int row = pgNo * driverPerPage + s;
+                Tuple t = new Tuple(projected);
+                for (int j = 0; j < columns.length; j++) {
+                    int perPage = file.slotsPerPage(columns[j]);
+                    int colPgNo = row / perPage;
+                    if (pages[j] == null || pages[j].getId().getPageNumber() != colPgNo) {
+                        pages[j] = (ColumnPage) Database.getBufferPool().getPage(tid,
+                                new ColumnPageId(tableId, columns[j], colPgNo), Permissions.READ_ONLY);
+                    }
+                    t.setField(j, pages[j].getField(row % perPage));
+                }
+                t.setRecordId(new RecordId(new ColumnPageId(tableId, 0, row / perPage0), row % perPage0));
+                tuples.add(t);
+            }
+            return tuples.iterator();
+        }
+
+        @Override
+        public void open() throws DbException, TransactionAbortedException {
+            pageNo = 0;
+            it = Collections.emptyIterator();
+        }
+
+        @Override
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (it == null) return false;
+            while (!it.hasNext()) {
+                if (pageNo >= file.numPages(driver)) {
+                    return false;
+                }
+                it = readPage(pageNo++);
+            }
+            return true;
+        }
+
+        @Override
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            if (!hasNext()) throw new NoSuchElementException("not open");
+            return it.next();
+        }
+
+        @Override
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        @Override
+        public void close() {
+            it = null;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+/**
+ * Each instance of ColumnPage stores the values of one column for a range of
+ * rows of a ColumnFile. Its format is that of a HeapPage whose tuples have a
+ * single field: a header bitmap of the slots in use followed by
+ * {@link #slotsPerPage(Type)} fixed-size slots. Slot i of page p of a column
+ * holds the value of row <code>p * slotsPerPage + i</code>.
+ *
+ * @see ColumnFile
+ */
+public class ColumnPage implements Page {
+
+    final ColumnPageId pid;
+    final Type type;
+    final byte[] header;
+    final int numSlots;
+    /** decoded values; null for a used slot not decoded yet */
+    final Field[] values;
+    /** the page bytes this page was created from; never modified */
+    private final byte[] source;
+    private int numEmptySlots;
+    private boolean dirty;
+    private TransactionId tid;
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Create a ColumnPage from a set of bytes of data read from disk. The
+     * page keeps a reference to data, so the caller must not modify the
+     * array afterwards.
+     */
+    public ColumnPage(ColumnPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.type = Database.getCatalog().getTupleDesc(id.getTableId()).getFieldType(id.getColumn());
+        this.numSlots = slotsPerPage(type);
+        this.header = new byte[headerSize(numSlots)];
+        if (data.length < header.length + numSlots * type.getLen()) {
+            throw new IOException("page " + id + " is truncated");
+        }
+        System.arraycopy(data, 0, header, 0, header.length);
+        this.values = new Field[numSlots];
+        this.source = data;
+        int used = 0;
+        for (int i = 0; i < numSlots; i++)
+            if (isSlotUsed(i)) used++;
+        numEmptySlots = numSlots - used;
+
+        // data is never modified, so it doubles as the before image
+        synchronized (oldDataLock) {
+            oldData = data;
+        }
+    }
+
+    /**
+     * Returns the number of values of the specified type a page holds.
+     */
+    public static int slotsPerPage(Type type) {
+        return (BufferPool.getPageSize() * 8) / (type.getLen() * 8 + 1);
+    }
+
+    private static int headerSize(int numSlots) {
+        return (numSlots + 7) / 8;
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public ColumnPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new ColumnPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData();
+        }
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public ColumnPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Returns the value in a used slot, decoding it the first time it is
+     * accessed.
+     *
+     * @throws NoSuchElementException if the slot is empty
+     */
+    public Field getField(int slot) throws NoSuchElementException {
+        if (!isSlotUsed(slot)) {
+            throw new NoSuchElementException("slot " + slot + " of " + pid + " is empty");
+        }
+        Field f = values[slot];
+        if (f == null) {
+            ByteBuffer buf = ByteBuffer.wrap(source, header.length + slot * type.getLen(), type.getLen());
+            try {
+                f = type.parse(buf);
+            } catch (java.text.ParseException e) {
+                e.printStackTrace();
+                throw new NoSuchElementException("parsing error!");
+            }
+            values[slot] = f;
+        }
+        return f;
+    }
+
+    /**
+     * Stores a value in a slot and marks the slot used.
+     */
+    public void setField(int slot, Field f) {
+        if (f.getType() != type) {
+            throw new IllegalArgumentException("field of type " + f.getType() + " in a column of " + type);
+        }
+        markSlotUsed(slot, true);
+        values[slot] = f;
+    }
+
+    /**
+     * Empties a slot.
+     */
+    public void clearSlot(int slot) {
+        markSlotUsed(slot, false);
+        values[slot] = null;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     *
+     * @see #ColumnPage
+     */
+    public byte[] getPageData() {
+        int len = type.getLen();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.write(header);
+            for (int i = 0; i < numSlots; i++) {
+                if (!isSlotUsed(i)) {
+                    dos.write(new byte[len]);
+                } else if (values[i] == null) {
+                    // never decoded: copy its bytes as they are
+                    dos.write(source, header.length + i * len, len);
+                } else {
+                    int start = dos.size();
+                    values[i].serialize(dos);
+                    // pad short (VARCHAR) values out to the fixed slot size
+                    for (int k = dos.size() - start; k < len; k++)
+                        dos.writeByte(0);
+                }
+            }
+            dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * ColumnPage.
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()]; //all 0
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        this.tid = tid;
+    }
+
+    public TransactionId isDirty() {
+        return dirty ? tid : null;
+    }
+
+    /** @return the number of slots of this page */
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    /**
+     * Returns the number of empty slots on this page.
+     */
+    public int getNumEmptySlots() {
+        return numEmptySlots;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return i >= 0 && i < numSlots && (header[i / 8] >> (i % 8) & 1) == 1;
+    }
+
+    private void markSlotUsed(int i, boolean value) {
+        if (i < 0 || i >= numSlots) {
+            throw new IllegalArgumentException("slot " + i + " of " + pid + " does not exist");
+        }
+        if (isSlotUsed(i) != value) {
+            numEmptySlots += value ? -1 : 1;
+        }
+        if (value) {
+            header[i / 8] |= (byte) (1 << (i % 8));
+        } else {
+            header[i / 8] &= (byte) ~(1 << (i % 8));
+        }
+    }
+}
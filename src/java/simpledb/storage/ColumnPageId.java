@@ -0,0 +1,69 @@
+package simpledb.storage;
+
+import java.util.Objects;
+
+/** Unique identifier for ColumnPage objects. */
+public class ColumnPageId implements PageId {
+
+    private final int tableId;
+    private final int column;
+    private final int pgNo;
+
+    /**
+     * Constructor. Create a page id structure for a specific page of one
+     * column of a specific table.
+     *
+     * @param tableId The table that is being referenced
+     * @param column The index of the column in the TupleDesc of the table
+     * @param pgNo The page number in the pages of that column
+     */
+    public ColumnPageId(int tableId, int column, int pgNo) {
+        this.tableId = tableId;
+        this.column = column;
+        this.pgNo = pgNo;
+    }
+
+    /** @return the table associated with this PageId */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /** @return the column of the table whose values the page holds */
+    public int getColumn() {
+        return column;
+    }
+
+    /**
+     * @return the page number among the pages of column getColumn()
+     */
+    public int getPageNumber() {
+        return pgNo;
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof ColumnPageId)) {
+            return false;
+        }
+        ColumnPageId other = (ColumnPageId) o;
+        return tableId == other.tableId && column == other.column && pgNo == other.pgNo;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(tableId, column, pgNo);
+    }
+
+    /**
+     *  Return a representation of this object as an array of
+     *  integers, for writing to disk.  Size of returned array must contain
+     *  number of integers that corresponds to number of args to one of the
+     *  constructors.
+     */
+    public int[] serialize() {
+        return new int[]{tableId, column, pgNo};
+    }
+
+    public String toString() {
+        return "ColumnPageId(" + tableId + ", " + column + ", " + pgNo + ")";
+    }
+}
@@ -0,0 +1,341 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * CompressedPageStore keeps the pages of a DbFile compressed with
+ * {@link LZCodec}. A page is stored in an extent of the data file just large
+ * enough for its compressed bytes (rounded up to {@value #GRANULE} bytes),
+ * and a page map sidecar (<code>&lt;data file&gt;.pmap</code>) maps each
+ * logical page number to its extent. Pages that do not compress are stored
+ * as they are.
+ * <p>
+ * A page rewritten with compressed bytes that still fit its extent is
+ * overwritten in place. Otherwise it moves to a free extent or the end of
+ * the file and its old extent is freed, but only after the page map points
+ * to the new one, so a crash never leaves the map pointing at another page.
+ * <p>
+ * A data file that is not compressed yet (such as one written by
+ * {@link HeapFileEncoder}) is compressed when first accessed: a file of
+ * pages of {@link BufferPool#getPageSize()} bytes, optionally preceded by a
+ * header page of another size that becomes logical page 0.
+ *
+ * @Threadsafe
+ */
+public class CompressedPageStore {
+
+    /** starts every compressed data file */
+    private static final byte[] MAGIC = {'S', 'D', 'B', 'L', 'Z', 'P', 'G', '1'};
+    /** extents are allocated in multiples of this many bytes */
+    static final int GRANULE = 64;
+    /** bytes of a page map entry: long offset, int capacity, int length */
+    private static final int ENTRY_SIZE = 16;
+
+    private final DbFile dbFile;
+    private final File dataFile;
+    private final File mapFile;
+    private final int rawHeaderSize;
+    private final ReentrantReadWriteLock lock;
+
+    private long[] offsets;
+    private int[] capacities;
+    private int[] lengths;
+    private int size;
+    /** free extents: capacity to offsets */
+    private final TreeMap<Integer, ArrayDeque<Long>> free;
+    /** end of the last extent */
+    private long end;
+    private volatile boolean loaded;
+
+    /**
+     * @param dbFile the DbFile whose pages are stored
+     * @param dataFile the data file of dbFile
+     * @param rawHeaderSize size of the header page an uncompressed data file
+     *                      starts with, or 0 if it has none
+     */
+    public CompressedPageStore(DbFile dbFile, File dataFile, int rawHeaderSize) {
+        this.dbFile = dbFile;
+        this.dataFile = dataFile;
+        this.mapFile = new File(dataFile.getPath() + ".pmap");
+        this.rawHeaderSize = rawHeaderSize;
+        this.lock = new ReentrantReadWriteLock();
+        this.offsets = new long[0];
+        this.capacities = new int[0];
+        this.lengths = new int[0];
+        this.size = 0;
+        this.free = new TreeMap<>();
+        this.end = MAGIC.length;
+        this.loaded = false;
+    }
+
+    /** @return the page map sidecar file */
+    public File getMapFile() {
+        return mapFile;
+    }
+
+    /** @return the number of pages stored */
+    public int numPages() {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** @return the bytes the stored pages take up on disk, with their extents */
+    public long storedBytes() {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            long total = 0;
+            for (int i = 0; i < size; i++) {
+                total += capacities[i];
+            }
+            return total;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads a page into dst, which must have the size the page was written
+     * with.
+     *
+     * @throws IllegalArgumentException if the page does not exist
+     */
+    public void readPage(int pgNo, byte[] dst) throws IOException {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            if (pgNo < 0 || pgNo >= size) {
+                throw new IllegalArgumentException("page " + pgNo + " of " + dataFile + " does not exist");
+            }
+            byte[] stored = new byte[lengths[pgNo]];
+            int read = Database.getFileChannelManager().read(dbFile, dataFile, ByteBuffer.wrap(stored), offsets[pgNo]);
+            if (read != stored.length) {
+                throw new IOException("page " + pgNo + " of " + dataFile + " is truncated");
+            }
+            if (stored.length == dst.length) {
+                // stored as is
+                System.arraycopy(stored, 0, dst, 0, stored.length);
+            } else if (LZCodec.decompress(stored, 0, stored.length, dst) != dst.length) {
+                throw new IOException("page " + pgNo + " of " + dataFile + " has the wrong size");
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Compresses and writes a page, which is either an existing page or the
+     * page right after the last one.
+     */
+    public void writePage(int pgNo, byte[] data) throws IOException {
+        byte[] compressed = new byte[data.length - 1];
+        int n = LZCodec.compress(data, 0, data.length, compressed);
+        byte[] stored = n < 0 ? data : compressed;
+        int length = n < 0 ? data.length : n;
+
+        ensureLoaded();
+        lock.writeLock().lock();
+        try {
+            if (pgNo < 0 || pgNo > size) {
+                throw new IllegalArgumentException("page " + pgNo + " of " + dataFile
+                        + " is past the end of the file (" + size + " pages)");
+            }
+            boolean moved = pgNo == size || length > capacities[pgNo];
+            long offset = moved ? allocate(roundUp(length)) : offsets[pgNo];
+            int capacity = moved ? roundUp(length) : capacities[pgNo];
+            Database.getFileChannelManager().write(dbFile, dataFile, ByteBuffer.wrap(stored, 0, length), offset);
+            Database.getFileChannelManager().write(dbFile, mapFile, entry(offset, capacity, length),
+                    (long) pgNo * ENTRY_SIZE);
+            if (pgNo == size) {
+                ensureCapacity(size + 1);
+                size++;
+            } else if (moved) {
+                release(offsets[pgNo], capacities[pgNo]);
+            }
+            offsets[pgNo] = offset;
+            capacities[pgNo] = capacity;
+            lengths[pgNo] = length;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static int roundUp(int length) {
+        return (length + GRANULE - 1) / GRANULE * GRANULE;
+    }
+
+    private static ByteBuffer entry(long offset, int capacity, int length) {
+        ByteBuffer buf = ByteBuffer.allocate(ENTRY_SIZE);
+        buf.putLong(offset).putInt(capacity).putInt(length);
+        buf.flip();
+        return buf;
+    }
+
+    /** takes the smallest free extent large enough, or grows the file */
+    private long allocate(int capacity) {
+        Map.Entry<Integer, ArrayDeque<Long>> e = free.ceilingEntry(capacity);
+        if (e == null) {
+            long offset = end;
+            end += capacity;
+            return offset;
+        }
+        long offset = e.getValue().poll();
+        if (e.getValue().isEmpty()) {
+            free.remove(e.getKey());
+        }
+        if (e.getKey() > capacity) {
+            release(offset + capacity, e.getKey() - capacity);
+        }
+        return offset;
+    }
+
+    private void release(long offset, int capacity) {
+        free.computeIfAbsent(capacity, k -> new ArrayDeque<>()).add(offset);
+    }
+
+    private void ensureCapacity(int n) {
+        if (n > offsets.length) {
+            int newLength = Math.max(n, offsets.length * 2);
+            offsets = Arrays.copyOf(offsets, newLength);
+            capacities = Arrays.copyOf(capacities, newLength);
+            lengths = Arrays.copyOf(lengths, newLength);
+        }
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (!loaded) {
+                load();
+                loaded = true;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("cannot open the compressed pages of " + dataFile, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void load() throws IOException {
+        File tmpMap = new File(mapFile.getPath() + ".tmp");
+        if (!isCompressed()) {
+            if (dataFile.length() > 0) {
+                compressRawFile(tmpMap);
+            } else {
+                Database.getFileChannelManager().write(dbFile, dataFile, ByteBuffer.wrap(MAGIC), 0);
+                Database.getFileChannelManager().getChannel(dbFile, mapFile).truncate(0);
+                return;
+            }
+        }
+        if (!mapFile.exists()) {
+            if (!tmpMap.exists()) {
+                throw new IOException("page map " + mapFile + " is missing");
+            }
+            // a crash interrupted compressRawFile after the data file was replaced
+            Files.move(tmpMap.toPath(), mapFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate((int) (mapFile.length() / ENTRY_SIZE * ENTRY_SIZE));
+        Database.getFileChannelManager().read(dbFile, mapFile, buf, 0);
+        buf.flip();
+        int n = buf.remaining() / ENTRY_SIZE;
+        ensureCapacity(n);
+        size = 0;
+        while (size < n) {
+            long offset = buf.getLong();
+            int capacity = buf.getInt();
+            int length = buf.getInt();
+            if (capacity == 0) {
+                // a map entry that never made it to disk
+                break;
+            }
+            offsets[size] = offset;
+            capacities[size] = capacity;
+            lengths[size] = length;
+            size++;
+        }
+
+        // everything between the extents in use is free
+        Integer[] byOffset = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            byOffset[i] = i;
+        }
+        Arrays.sort(byOffset, Comparator.comparingLong(i -> offsets[i]));
+        end = MAGIC.length;
+        for (int i : byOffset) {
+            if (offsets[i] > end) {
+                release(end, (int) (offsets[i] - end));
+            }
+            end = Math.max(end, offsets[i] + capacities[i]);
+        }
+    }
+
+    private boolean isCompressed() throws IOException {
+        if (dataFile.length() < MAGIC.length) {
+            return false;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(MAGIC.length);
+        Database.getFileChannelManager().read(dbFile, dataFile, buf, 0);
+        return Arrays.equals(buf.array(), MAGIC);
+    }
+
+    /**
+     * Compresses an uncompressed data file into a new file and a new page
+     * map, then puts both in place.
+     */
+    private void compressRawFile(File tmpMap) throws IOException {
+        File tmpData = new File(dataFile.getPath() + ".tmp");
+        int pageSize = BufferPool.getPageSize();
+        try (FileChannel in = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(tmpData.toPath(), StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+             FileChannel map = FileChannel.open(tmpMap.toPath(), StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            out.write(ByteBuffer.wrap(MAGIC));
+            long pos = 0;
+            long offset = MAGIC.length;
+            while (true) {
+                byte[] page = new byte[pos == 0 && rawHeaderSize > 0 ? rawHeaderSize : pageSize];
+                ByteBuffer buf = ByteBuffer.wrap(page);
+                while (buf.hasRemaining() && in.read(buf, pos + buf.position()) > 0) {
+                }
+                if (buf.hasRemaining()) {
+                    // a partial page at the end is not a page
+                    break;
+                }
+                pos += page.length;
+                byte[] compressed = new byte[page.length - 1];
+                int n = LZCodec.compress(page, 0, page.length, compressed);
+                ByteBuffer stored = n < 0 ? ByteBuffer.wrap(page) : ByteBuffer.wrap(compressed, 0, n);
+                int length = stored.remaining();
+                while (stored.hasRemaining()) {
+                    out.write(stored, offset + stored.position());
+                }
+                map.write(entry(offset, roundUp(length), length));
+                offset += roundUp(length);
+            }
+        }
+        // nothing of this DbFile may keep the old data file open
+        Database.getFileChannelManager().close(dbFile);
+        Files.move(tmpData.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tmpMap.toPath(), mapFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -93,4 +93,20 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     TupleDesc getTupleDesc();
+
+    /**
+     * Returns the number of pages in this DbFile.
+     */
+    int numPages();
+
+    /**
+     * Returns the number of pages a sequential scan reads that only needs
+     * the specified fields; all of them unless the file stores fields
+     * apart.
+     *
+     * @param fields indexes of the fields read
+     */
+    default int numPages(int[] fields) {
+        return numPages();
+    }
 }
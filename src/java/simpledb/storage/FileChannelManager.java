@@ -0,0 +1,166 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FileChannelManager keeps a single open FileChannel for every file of a
+ * DbFile (its data file and any sidecar files), so page reads and writes do
+ * not have to open and close the backing file on every access. All I/O
+ * goes through positional read/write, which never touches the shared
+ * channel position, so any number of threads may read pages of the same
+ * file concurrently.
+ * <p>
+ * Channels are opened lazily on first access and released by
+ * {@link #close(DbFile)} / {@link #closeAll()}, which the Catalog and
+ * Database call when tables are dropped or the database is reset.
+ *
+ * @Threadsafe
+ */
+public class FileChannelManager {
+
+    private final ConcurrentHashMap<DbFile, ConcurrentHashMap<File, FileChannel>> channels;
+
+    public FileChannelManager() {
+        this.channels = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns the open channel of a file belonging to the specified DbFile,
+     * opening (and creating) the file if it is not open yet.
+     *
+     * @param dbFile the DbFile owning the channel
+     * @param f the file on disk backing dbFile, or one of its sidecar files
+     */
+    public FileChannel getChannel(DbFile dbFile, File f) throws IOException {
+        ConcurrentHashMap<File, FileChannel> files = channels.get(dbFile);
+        FileChannel fc = files == null ? null : files.get(f);
+        if (fc != null && fc.isOpen()) {
+            return fc;
+        }
+        synchronized (this) {
+            files = channels.computeIfAbsent(dbFile, k -> new ConcurrentHashMap<>());
+            fc = files.get(f);
+            if (fc == null || !fc.isOpen()) {
+                fc = FileChannel.open(f.toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                files.put(f, fc);
+            }
+            return fc;
+        }
+    }
+
+    /**
+     * Reads bytes from the given position of the file until buf is full or
+     * the end of the file is reached.
+     *
+     * @return the number of bytes read, which is smaller than the buffer
+     *         only if the end of the file was reached
+     */
+    public int read(DbFile dbFile, File f, ByteBuffer buf, long position) throws IOException {
+        int start = buf.position();
+        try {
+            return readFrom(getChannel(dbFile, f), buf, position);
+        } catch (ClosedChannelException e) {
+            // the channel was closed under us (interrupted reader, or a
+            // concurrent close); reopen it once and retry
+            buf.position(start);
+            return readFrom(getChannel(dbFile, f), buf, position);
+        }
+    }
+
+    /**
+     * Writes all remaining bytes of buf at the given position of the file,
+     * growing the file if needed.
+     */
+    public void write(DbFile dbFile, File f, ByteBuffer buf, long position) throws IOException {
+        int start = buf.position();
+        try {
+            writeTo(getChannel(dbFile, f), buf, position);
+        } catch (ClosedChannelException e) {
+            buf.position(start);
+            writeTo(getChannel(dbFile, f), buf, position);
+        }
+    }
+
+    /**
+     * Closes every open channel of the specified DbFile, after stamping the
+     * sidecar files of a HeapFile.
+     */
+    public synchronized void close(DbFile dbFile) {
+        if (dbFile instanceof HeapFile) {
+            try {
+                ((HeapFile) dbFile).stampSidecars();
+            } catch (IOException e) {
+                // the sidecars are discarded on the next load, which is safe
+                e.printStackTrace();
+            }
+        }
+        ConcurrentHashMap<File, FileChannel> files = channels.remove(dbFile);
+        if (files != null) {
+            for (FileChannel fc : files.values()) {
+                closeQuietly(fc);
+            }
+        }
+    }
+
+    /** Closes the channel of one file of the specified DbFile, if it is open. */
+    public synchronized void close(DbFile dbFile, File f) {
+        ConcurrentHashMap<File, FileChannel> files = channels.get(dbFile);
+        if (files != null) {
+            closeQuietly(files.remove(f));
+        }
+    }
+
+    /** Closes every open channel. */
+    public synchronized void closeAll() {
+        for (DbFile dbFile : channels.keySet()) {
+            close(dbFile);
+        }
+    }
+
+    /** @return the number of channels currently open */
+    public int numOpenChannels() {
+        int n = 0;
+        for (Map<File, FileChannel> files : channels.values()) {
+            n += files.size();
+        }
+        return n;
+    }
+
+    private static int readFrom(FileChannel fc, ByteBuffer buf, long position) throws IOException {
+        int total = 0;
+        while (buf.hasRemaining()) {
+            int n = fc.read(buf, position + total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private static void writeTo(FileChannel fc, ByteBuffer buf, long position) throws IOException {
+        long pos = position;
+        while (buf.hasRemaining()) {
+            pos += fc.write(buf, pos);
+        }
+    }
+
+    private static void closeQuietly(FileChannel fc) {
+        if (fc == null) {
+            return;
+        }
+        try {
+            fc.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package simpledb.storage;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * FrameArena hands out fixed-size page frames carved out of direct
+ * ByteBuffers, so the bytes of the pages cached by the BufferPool live
+ * outside the Java heap and a large pool adds little work for the garbage
+ * collector. Frames are carved in chunks of {@link #CHUNK_FRAMES} as the
+ * pool fills up, up to a maximum number of frames, and are reused once
+ * released. A chunk goes back to the operating system once none of its
+ * frames is in use after the arena shrank, see {@link #setMaxFrames(int)},
+ * or once the arena is dropped.
+ * <p>
+ * Only the raw page bytes live in the frames. A HeapPage still decodes the
+ * slots it is asked for into Tuples on the heap and keeps them until it is
+ * dropped, so a pool of pages read in full holds their tuples on the heap
+ * as well. A page that left the pool may still be referenced, so its frame
+ * is not released but retired, see {@link #retire}: it is reused, without
+ * copying anything, once the garbage collector found the page unreachable.
+ * Until then the pool reads new pages onto the heap if it runs out of
+ * frames.
+ *
+ * @Threadsafe
+ */
+public class FrameArena {
+
+    /** frames carved out of one direct buffer */
+    public static final int CHUNK_FRAMES = 64;
+
+    private final int frameSize;
+    private int maxFrames;
+    private int carved;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    /** ByteBuffer.equals compares contents, so frames are told apart by identity */
+    private final Set<ByteBuffer> inUse = Collections.newSetFromMap(new IdentityHashMap<>());
+    /** frames in use whose page left the pool, by frame */
+    private final Map<ByteBuffer, Retired> retired = new IdentityHashMap<>();
+    /** where the garbage collector puts the retired frames whose page is gone */
+    private final ReferenceQueue<Object> gone = new ReferenceQueue<>();
+
+    /** a retired frame, weakly referencing the page still in it */
+    private static final class Retired extends WeakReference<Object> {
+        final ByteBuffer frame;
+
+        Retired(Object holder, ByteBuffer frame, ReferenceQueue<Object> q) {
+            super(holder, q);
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * @param maxFrames the most frames the arena hands out at a time
+     * @param frameSize the size of a frame in bytes, the page size
+     */
+    public FrameArena(int maxFrames, int frameSize) {
+        this.maxFrames = maxFrames;
+        this.frameSize = frameSize;
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    public synchronized int getMaxFrames() {
+        return maxFrames;
+    }
+
+    /**
+     * Changes the most frames the arena hands out at a time. Frames over
+     * the new limit are dropped as soon as they are free.
+     */
+    public synchronized void setMaxFrames(int maxFrames) {
+        this.maxFrames = maxFrames;
+        while (carved > maxFrames && !free.isEmpty()) {
+            free.poll();
+            carved--;
+        }
+    }
+
+    /** @return the number of frames handed out and not released yet, retired ones included */
+    public synchronized int framesInUse() {
+        reclaim();
+        return inUse.size();
+    }
+
+    /**
+     * @return a free frame with position 0 and limit {@link #getFrameSize()},
+     *         or null if every frame is in use
+     */
+    public synchronized ByteBuffer allocate() {
+        reclaim();
+        if (free.isEmpty() && carved < maxFrames) {
+            carve();
+        }
+        ByteBuffer frame = free.poll();
+        if (frame != null) {
+            inUse.add(frame);
+        }
+        return frame;
+    }
+
+    /**
+     * Gives a frame back for reuse.
+     *
+     * @return false if frame was not handed out by this arena, or was
+     *         released already
+     */
+    public synchronized boolean release(ByteBuffer frame) {
+        if (!inUse.remove(frame)) {
+            return false;
+        }
+        retired.remove(frame);
+        if (carved > maxFrames) {
+            // the arena shrank: the garbage collector frees the chunk with its last frame
+            carved--;
+            return true;
+        }
+        frame.clear();
+        free.push(frame);
+        return true;
+    }
+
+    /**
+     * Gives a frame back once holder, the page in it, is no longer
+     * referenced. Until then the frame stays in use and holder may keep
+     * reading it.
+     *
+     * @return false if frame was not handed out by this arena, or was
+     *         released or retired already
+     */
+    public synchronized boolean retire(ByteBuffer frame, Object holder) {
+        if (!inUse.contains(frame) || retired.containsKey(frame)) {
+            return false;
+        }
+        retired.put(frame, new Retired(holder, frame, gone));
+        return true;
+    }
+
+    /** Releases the retired frames whose page the garbage collector found unreachable. */
+    private void reclaim() {
+        Retired r;
+        while ((r = (Retired) gone.poll()) != null) {
+            if (retired.get(r.frame) == r) {
+                release(r.frame);
+            }
+        }
+    }
+
+    private void carve() {
+        int n = Math.min(CHUNK_FRAMES, maxFrames - carved);
+        ByteBuffer chunk;
+        try {
+            chunk = ByteBuffer.allocateDirect(n * frameSize);
+        } catch (OutOfMemoryError e) {
+            // out of direct memory: the pool reads the rest of its pages onto the heap
+            maxFrames = carved;
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            chunk.limit((i + 1) * frameSize);
+            chunk.position(i * frameSize);
+            free.add(chunk.slice());
+        }
+        carved += n;
+    }
+}
@@ -0,0 +1,205 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FreeSpaceMap records, for every page of a HeapFile, how many empty tuple
+ * slots the page has, so inserts can go straight to a page with room.
+ * <p>
+ * The counts are persisted in a sidecar file next to the data file
+ * (<code>&lt;data file&gt;.fsm</code>), two bytes per page holding the count
+ * plus one, and an entry is written whenever its page is written to disk.
+ * The sidecar starts with the modification time and length of the data
+ * file, written by {@link #writeStamp()} once the pages of a flush are
+ * written, or when the file is closed; if they no longer match when the map
+ * is loaded, the data file was changed by something else, or after the last
+ * stamp, and the sidecar is discarded.
+ * Pages the map knows nothing about (a zero entry, or no usable sidecar)
+ * are treated as possibly having room. For a SlottedHeapFile the recorded
+ * free space is a number of free bytes rather than of empty slots.
+ * <p>
+ * The map is only a hint: a page may turn out to be full when it is locked,
+ * in which case the caller corrects the entry and moves on. It must never
+ * claim a page is full when it is not, which is why counts read back from
+ * disk (including after an abort) always replace the in-memory ones.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    /** count of a page whose free space is not known */
+    private static final short UNKNOWN = -1;
+
+    /** bytes before the first entry: data file mtime (ns) and length */
+    static final int HEADER_SIZE = 16;
+
+    private final DbFile dbFile;
+    private final File dataFile;
+    private final File file;
+
+    private short[] free;
+    private int size;
+    /** pages with free slots, or with an unknown count */
+    private final BitSet candidates;
+    private boolean loaded;
+    /** an entry was written since the stamp */
+    private boolean stampStale;
+
+    /**
+     * @param dbFile the HeapFile whose pages are tracked
+     * @param dataFile the data file of dbFile; the map lives next to it
+     */
+    public FreeSpaceMap(DbFile dbFile, File dataFile) {
+        this.dbFile = dbFile;
+        this.dataFile = dataFile;
+        this.file = new File(dataFile.getPath() + ".fsm");
+        this.free = new short[0];
+        this.size = 0;
+        this.candidates = new BitSet();
+        this.loaded = false;
+    }
+
+    /** @return the sidecar file holding the map */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the first page at or after from that may have an empty slot.
+     *
+     * @param from the first page number to consider
+     * @param numPages the current number of pages of the file
+     * @return a page number, or -1 if every page from on is known to be full
+     */
+    public int nextPageWithSpace(int from, int numPages) {
+        return nextPageWithSpace(from, numPages, 1);
+    }
+
+    /**
+     * Returns the first page at or after from that may have at least
+     * minFree units of free space.
+     *
+     * @param from the first page number to consider
+     * @param numPages the current number of pages of the file
+     * @param minFree the free space needed
+     * @return a page number, or -1 if no page from on is known to have room
+     */
+    public synchronized int nextPageWithSpace(int from, int numPages, int minFree) {
+        ensureSize(numPages);
+        for (int pgNo = candidates.nextSetBit(Math.max(from, 0)); pgNo >= 0 && pgNo < numPages;
+             pgNo = candidates.nextSetBit(pgNo + 1)) {
+            if (free[pgNo] == UNKNOWN || free[pgNo] >= minFree) {
+                return pgNo;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of empty slots recorded for a page, or -1 if it is
+     * not known.
+     */
+    public synchronized int getFreeSlots(int pgNo) {
+        ensureSize(pgNo + 1);
+        return free[pgNo];
+    }
+
+    /** Records the current number of empty slots of a page, in memory only. */
+    public synchronized void update(int pgNo, int emptySlots) {
+        ensureSize(pgNo + 1);
+        free[pgNo] = (short) Math.min(emptySlots, Short.MAX_VALUE);
+        candidates.set(pgNo, emptySlots != 0);
+    }
+
+    /**
+     * Records the number of empty slots of a page that was just written to
+     * disk and persists the entry; the stamp is left to {@link #writeStamp()}.
+     */
+    public synchronized void pageWritten(int pgNo, int emptySlots) throws IOException {
+        update(pgNo, emptySlots);
+        ByteBuffer buf = ByteBuffer.allocate(2);
+        buf.putShort(0, (short) (Math.min(emptySlots, Short.MAX_VALUE - 1) + 1));
+        Database.getFileChannelManager().write(dbFile, file, buf, HEADER_SIZE + (long) pgNo * 2);
+        stampStale = true;
+    }
+
+    /**
+     * Stamps the sidecar with the current state of the data file, if an
+     * entry was written since it was last stamped.
+     */
+    public synchronized void writeStamp() throws IOException {
+        if (stampStale) {
+            Database.getFileChannelManager().write(dbFile, file, dataFileStamp(dataFile), 0);
+            stampStale = false;
+        }
+    }
+
+    /**
+     * @return the header identifying the current contents of a data file,
+     *         also used by the other sidecar files of a HeapFile
+     */
+    static ByteBuffer dataFileStamp(File dataFile) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        buf.putLong(0, Files.getLastModifiedTime(dataFile.toPath()).to(TimeUnit.NANOSECONDS));
+        buf.putLong(8, dataFile.length());
+        return buf;
+    }
+
+    private void ensureSize(int numPages) {
+        if (!loaded) {
+            load();
+        }
+        if (numPages <= size) {
+            return;
+        }
+        if (numPages > free.length) {
+            int newLength = Math.max(numPages, free.length * 2);
+            free = Arrays.copyOf(free, newLength);
+        }
+        Arrays.fill(free, size, numPages, UNKNOWN);
+        candidates.set(size, numPages);
+        size = numPages;
+    }
+
+    private void load() {
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            ByteBuffer stamp = ByteBuffer.allocate(HEADER_SIZE);
+            Database.getFileChannelManager().read(dbFile, file, stamp, 0);
+            stamp.flip();
+            if (!stamp.equals(dataFileStamp(dataFile))) {
+                // the data file changed since; forget everything so stale
+                // entries cannot be mistaken for current ones later
+                Database.getFileChannelManager().getChannel(dbFile, file).truncate(0);
+                return;
+            }
+            long length = Math.max(0, file.length() - HEADER_SIZE);
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(length, Integer.MAX_VALUE) & ~1);
+            int read = Database.getFileChannelManager().read(dbFile, file, buf, HEADER_SIZE);
+            int entries = read / 2;
+            free = new short[entries];
+            for (int i = 0; i < entries; i++) {
+                free[i] = (short) (buf.getShort(i * 2) - 1);
+                candidates.set(i, free[i] != 0);
+            }
+            size = entries;
+        } catch (IOException e) {
+            // the map is only a hint; start over with every page unknown
+            e.printStackTrace();
+            free = new short[0];
+            size = 0;
+            candidates.clear();
+        }
+    }
+}
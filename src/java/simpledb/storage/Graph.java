@@ -23,48 +23,47 @@ public class Graph {
         if(v.equals(w)){
             return;
         }
-        if(adj.containsKey(v)){
-            adj.get(v).add(w);
-            if (indegree.containsKey(w)) {
-                indegree.put(w, indegree.get(w) + 1);
-            } else {
-                vNum++;
-                indegree.put(w, 1);
-            }
-        }else{
-            vNum++;
-            LinkedList list= new LinkedList();
-            list.add(w);
-            adj.put(v,list);
-            if (indegree.containsKey(w)) {
-                indegree.put(w, indegree.get(w) + 1);
-            } else {
-                vNum++;
-                indegree.put(w, 1);
-            }
+        LinkedList<TransactionId> list=adj.computeIfAbsent(v,k->new LinkedList<>());
+        if(list.contains(w)){
+            // 重复等待同一个owner, 不重复加边
+            return;
         }
+        list.add(w);
+        indegree.merge(w,1,Integer::sum);
     }
     public synchronized void delete_edge(TransactionId v){
-        vNum--;
-        adj.remove(v);
+        LinkedList<TransactionId> list=adj.remove(v);
+        if(list==null){
+            return;
+        }
+        for(TransactionId w:list){
+            if(indegree.merge(w,-1,Integer::sum)<=0){
+                indegree.remove(w);
+            }
+        }
     }
     // 还有本身的环
 
     public synchronized boolean topological_sort(){
-        for(TransactionId tid:adj.keySet()){
-            if(indegree.get(tid)==null||indegree.get(tid)==0){
+        // work on a copy, the graph itself stays as it is
+        HashMap<TransactionId,Integer> in=new HashMap<>(indegree);
+        HashSet<TransactionId> vertices=new HashSet<>(adj.keySet());
+        vertices.addAll(in.keySet());
+        vNum=vertices.size();
+        q.clear();
+        for(TransactionId tid:vertices){
+            if(in.getOrDefault(tid,0)==0){
                 q.add(tid);
             }
         }
         int count=0;
         while(!q.isEmpty()){
-            TransactionId ctid=q.getFirst();
-            q.pop();
+            TransactionId ctid=q.pop();
             count++;
             if(adj.get(ctid)!=null){
                 for (TransactionId tid : adj.get(ctid)) {
-                    indegree.put(tid, indegree.get(tid) - 1);
-                    if (indegree.get(tid) == 0) {
+                    in.put(tid, in.get(tid) - 1);
+                    if (in.get(tid) == 0) {
                         q.add(tid);
                     }
                 }
@@ -75,4 +74,45 @@ public class Graph {
         return count<vNum? false:true;
     }
 
+    /**
+     * Returns the transactions on some cycle of waits, in the order they
+     * wait for each other, or null if nobody waits in a cycle.
+     */
+    public synchronized List<TransactionId> find_cycle(){
+        // 1: on the current path, 2: no cycle through it
+        HashMap<TransactionId,Integer> state=new HashMap<>();
+        LinkedList<TransactionId> path=new LinkedList<>();
+        for(TransactionId v:adj.keySet()){
+            if(!state.containsKey(v)){
+                List<TransactionId> cycle=visit(v,state,path);
+                if(cycle!=null){
+                    return cycle;
+                }
+            }
+        }
+        return null;
+    }
+
+    private List<TransactionId> visit(TransactionId v,HashMap<TransactionId,Integer> state,LinkedList<TransactionId> path){
+        state.put(v,1);
+        path.addLast(v);
+        LinkedList<TransactionId> next=adj.get(v);
+        if(next!=null){
+            for(TransactionId w:next){
+                Integer s=state.get(w);
+                if(s==null){
+                    List<TransactionId> cycle=visit(w,state,path);
+                    if(cycle!=null){
+                        return cycle;
+                    }
+                }else if(s==1){
+                    return new ArrayList<>(path.subList(path.indexOf(w),path.size()));
+                }
+            }
+        }
+        state.put(v,2);
+        path.removeLast();
+        return null;
+    }
+
 }
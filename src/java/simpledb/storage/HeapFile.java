@@ -4,10 +4,12 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Permissions;
+import simpledb.execution.Predicate;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -39,23 +41,55 @@ public class HeapFile implements DbFile {
 
         private final TransactionId tid;
 
+        /** number of pages past the current one to read ahead */
+        private final int readAhead;
 
+        /** highest page number a read-ahead was issued for */
+        private int prefetched;
 
+        /** pages the zone map rules out for these predicates are skipped */
+        private final List<Predicate> predicates;
 
         private int pageId;
 
         private Iterator<Tuple> it;
 
-        HeapFileIterator(HeapFile file,TransactionId tid){
+        /** non-null when the table is large enough to be scanned through a ring */
+        private BufferRing ring;
+
+        /** the page it is reading, pinned in the BufferPool */
+        private HeapPageId pinned;
+
+        HeapFileIterator(HeapFile file,TransactionId tid,int readAhead,List<Predicate> predicates){
             this.file=file;
             this.tid=tid;
+            this.readAhead=readAhead;
+            this.predicates=predicates;
+        }
+
+        private boolean mayMatch(int pageId){
+            return predicates.isEmpty()||file.zoneMap.mayMatch(pageId,predicates);
         }
 
         public Iterator<Tuple> getTupleIterator(int pageId) throws DbException, TransactionAbortedException {
-            if(pageId>=0&&pageId< file.numPages()){
+            int numPages=file.numPages();
+            if(pageId>=0&&pageId< numPages){
+                // keep the window of pages after this one in flight
+                int last=Math.min(pageId+readAhead,numPages-1);
+                for(int p=Math.max(prefetched+1,pageId+1);p<=last;p++){
+                    if(mayMatch(p)){
+                        Database.getBufferPool().prefetchPage(new HeapPageId(file.getId(),p),ring);
+                    }
+                    prefetched=p;
+                }
+                unpin();
+                if(!mayMatch(pageId)){
+                    return Collections.emptyIterator();
+                }
                 HeapPageId pid=new HeapPageId(file.getId(), pageId);
-                HeapPage page= (HeapPage) Database.getBufferPool().getPage(tid,pid,Permissions.READ_ONLY);
-                return page.iterator();
+                Page page= Database.getBufferPool().pinPage(tid,pid,Permissions.READ_ONLY,ring);
+                pinned=pid;
+                return file.tupleIterator(page);
             }
             throw  new DbException("get iterator fail! pageNo #" + pageId + "# is invalid!");
         }
@@ -63,6 +97,16 @@ public class HeapFile implements DbFile {
         @Override
         public void open() throws DbException, TransactionAbortedException {
             pageId=0;
+            prefetched=0;
+            if(file.numPages()>=Database.getBufferPool().getLockManager().getEscalationThreshold()){
+                // one table lock instead of a lock per page
+                Database.getBufferPool().lockTable(tid,file.getId(),Permissions.READ_ONLY);
+            }
+            if(ring==null){
+                // large scans must not flush the working set out of the pool;
+                // a rewound scan keeps its ring
+                ring=Database.getBufferPool().scanRing(file.numPages());
+            }
             it=getTupleIterator(pageId);
         }
 
@@ -75,6 +119,7 @@ public class HeapFile implements DbFile {
                     it=getTupleIterator(pageId);
                 }else{
                     it=null;
+                    unpin();
                 }
             }
             if(it==null){
@@ -97,17 +142,163 @@ public class HeapFile implements DbFile {
         @Override
         public void close() {
             it=null;
+            unpin();
+        }
 
+        private void unpin(){
+            if(pinned!=null){
+                Database.getBufferPool().unpinPage(tid,pinned);
+                pinned=null;
+            }
         }
     }
 
     private final BufferPool bufferPool;
 
+    /** non-null when pages are read through a memory mapping of f */
+    private volatile MappedSegments mapped;
+
+    /** free slots per page, so inserts can skip full pages */
+    private final FreeSpaceMap freeSpace;
+
+    /** value ranges per page, so filtered scans can skip pages */
+    private final ZoneMap zoneMap;
+
+    /** non-null when the pages of f are stored compressed */
+    private final CompressedPageStore compressed;
+
+    /** the segment files holding the pages, when they are not compressed */
+    private final SegmentedFile segments;
+
     public HeapFile(File f, TupleDesc td) {
+        this(f,td,false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     *
+     * @param f the file that stores the on-disk backing store for this heap file.
+     * @param td the schema of the tuples in the file
+     * @param mmap if true, pages are decoded straight from a memory mapping of
+     *             the file instead of being read into a fresh buffer. Meant
+     *             for tables that are read far more often than written.
+     * @see #setMmapEnabled(boolean)
+     */
+    public HeapFile(File f, TupleDesc td, boolean mmap) {
+        this(f,td,mmap,false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally
+     * storing its pages compressed.
+     *
+     * @param compress if true, pages are kept compressed in f, see
+     *                 {@link CompressedPageStore}; an uncompressed f is
+     *                 compressed on first access. Cannot be combined with mmap.
+     * @see #HeapFile(File, TupleDesc, boolean)
+     */
+    public HeapFile(File f, TupleDesc td, boolean mmap, boolean compress) {
+        this(f,td,mmap,compress,0);
+    }
+
+    /**
+     * Constructs a heap file whose pages may be spread over several segment
+     * files.
+     *
+     * @param segmentPages if positive, the pages are stored in segments of
+     *                     this many pages, see {@link SegmentedFile}; a
+     *                     longer single file is split on first access.
+     *                     Cannot be combined with mmap or compress.
+     * @see #HeapFile(File, TupleDesc, boolean, boolean)
+     */
+    public HeapFile(File f, TupleDesc td, boolean mmap, boolean compress, int segmentPages) {
         // some code goes here
+        if(compress&&segmentPages>0){
+            throw new IllegalArgumentException("compressed pages cannot be segmented");
+        }
         this.f=f;
         this.td=td;
         this.bufferPool=Database.getBufferPool();
+        this.freeSpace=new FreeSpaceMap(this,f);
+        this.zoneMap=new ZoneMap(this,f,td);
+        this.compressed= compress? new CompressedPageStore(this,f,0):null;
+        this.segments= compress? null:new SegmentedFile(this,f,segmentPages);
+        setMmapEnabled(mmap);
+    }
+
+    /**
+     * Switches the memory-mapped read path on or off.
+     *
+     * @throws IllegalStateException if the pages are stored compressed
+     */
+    public void setMmapEnabled(boolean mmap) {
+        if(mmap&&compressed!=null){
+            throw new IllegalStateException("compressed pages cannot be memory mapped");
+        }
+        if(mmap&&segments.getSegmentPages()>0){
+            throw new IllegalStateException("segmented files cannot be memory mapped");
+        }
+        this.mapped= mmap? new MappedSegments(this,f):null;
+    }
+
+    /** @return true if pages are read through a memory mapping of the file */
+    public boolean isMmapEnabled() {
+        return mapped!=null;
+    }
+
+    /** @return the store of the compressed pages, or null if they are not compressed */
+    public CompressedPageStore getCompressedPageStore() {
+        return compressed;
+    }
+
+    /** @return the segment files of the pages, or null if they are compressed */
+    public SegmentedFile getSegmentedFile() {
+        return segments;
+    }
+
+    /**
+     * Grows the file with empty pages until it has at least numPages pages,
+     * so later inserts do not have to extend it.
+     *
+     * @throws UnsupportedOperationException if the pages are compressed
+     */
+    public void preallocate(int numPages) throws IOException {
+        if(segments==null){
+            throw new UnsupportedOperationException("compressed files cannot be preallocated");
+        }
+        synchronized (this){
+            int from=numPages();
+            segments.preallocate(numPages);
+            // all-zero pages are empty pages of every layout
+            int empty=freeSpaceOf(createPage(new HeapPageId(getId(),0),new byte[BufferPool.getPageSize()]));
+            for(int p=from;p<numPages();p++){
+                freeSpace.update(p,empty);
+            }
+        }
+    }
+
+    /**
+     * Drops every page from numPages on, along with the tuples on them. The
+     * dropped pages are discarded from the BufferPool, so no running
+     * transaction may have modified them.
+     *
+     * @throws UnsupportedOperationException if the pages are compressed
+     */
+    public void truncate(int numPages) throws IOException {
+        if(segments==null){
+            throw new UnsupportedOperationException("compressed files cannot be truncated");
+        }
+        synchronized (this){
+            for(int p=numPages;p<numPages();p++){
+                Database.getBufferPool().discardPage(new HeapPageId(getId(),p));
+                freeSpace.update(p,0);
+            }
+            segments.truncate(numPages);
+            MappedSegments m=mapped;
+            if(m!=null){
+                m.clear();
+            }
+        }
     }
 
     /**
@@ -147,66 +338,127 @@ public class HeapFile implements DbFile {
     }
 
     // see DbFile.java for javadocs
+    // a page the BufferPool reads is read into the frame it set aside, see BufferPool#claimFrame
     public Page readPage(PageId pid) throws IllegalArgumentException {
         // some code goes here
-
         int pgNo=pid.getPageNumber();
         int tableId=pid.getTableId();
         int pageSize= BufferPool.getPageSize();
-        RandomAccessFile rf=null;
+        if(pgNo<0||pgNo>=numPages()){
+            throw new IllegalArgumentException("page "+pgNo+" ,table :"+tableId+"is invalid!");
+        }
+        HeapPageId hid=new HeapPageId(tableId,pgNo);
+        MappedSegments m=mapped;
+        if(m!=null){
+            try{
+                ByteBuffer buf=m.getPage(pgNo);
+                if(buf!=null){
+                    // read in place, not copied
+                    Page page=createPage(hid,buf);
+                    freeSpace.update(pgNo,freeSpaceOf(page));
+                    zoneMap.pageRead(pgNo,tupleIterator(page));
+                    return page;
+                }
+            }catch (IOException e){
+                e.printStackTrace();
+            }
+            throw new IllegalArgumentException("page "+pgNo+" ,table :"+tableId+"is invalid!");
+        }
         try{
-            rf= new RandomAccessFile(f, "r");
-            if((long) pgNo *pageSize>rf.length()){
-                throw new IllegalArgumentException("page "+pgNo+" ,table :"+tableId+"is invalid!");
+            int read;
+            Page page;
+            ByteBuffer frame=compressed==null?Database.getBufferPool().claimFrame(pid):null;
+            if(frame!=null){
+                ByteBuffer buf=frame.duplicate();
+                buf.clear();
+                read=segments.read(pgNo,buf);
+                page=read==pageSize?createPage(hid,frame):null;
+            }else{
+                byte[] data= new byte[pageSize];
+                read= compressed!=null? readCompressed(pgNo,data):segments.read(pgNo,ByteBuffer.wrap(data));
+                page=read==pageSize?createPage(hid,data):null;
             }
-            int offset=pgNo*pageSize;
-            rf.seek(offset);
-            // 暂且这么写
-            byte[] data= new byte[pageSize];
-//            for(int i=0;i<pageSize;i++){
-//                data[i]=rf.readByte();
-//            }
-            int read=rf.read(data,0,BufferPool.getPageSize());
-            if(read!=BufferPool.getPageSize()){
+            if(read!=pageSize){
                 throw new IllegalArgumentException(String.format("table %d page %d read %d bytes not equal to BufferPool.getPageSize() ", tableId, pgNo, read));
             }
-            HeapPageId hid=new HeapPageId(tableId,pgNo);
-            return new HeapPage(hid,data);
+            // what is on disk is the committed state of the page
+            freeSpace.update(pgNo,freeSpaceOf(page));
+            zoneMap.pageRead(pgNo,tupleIterator(page));
+            return page;
         }catch (IOException e){
             e.printStackTrace();
-
-        }finally {
-            if(rf!=null){
-                try {
-                    rf.close();
-                }catch (IOException e){
-                    e.printStackTrace();
-                }
-            }
-
         }
         throw new IllegalArgumentException("page "+pgNo+" ,table :"+tableId+"is invalid!");
-//        return null;
     }
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // Push the specified page to disk.
-        // Check whether the page exists
-        // if exists, find the seek and Override
-        // if not, append the page at the end of the file
-        int offset=page.getId().getPageNumber()*BufferPool.getPageSize();
-            RandomAccessFile rf=null;
-            try{
-                rf=new RandomAccessFile(f,"rw");
+        // the channel grows the file when the page lies past its end
+        MappedSegments m=mapped;
+        if(m!=null&&page instanceof HeapPage){
+            ((HeapPage) page).keepBeforeImage();
+        }
+        if(compressed!=null){
+            compressed.writePage(page.getId().getPageNumber(),Arrays.copyOf(page.getPageData(),BufferPool.getPageSize()));
+        }else{
+            segments.write(page.getId().getPageNumber(),ByteBuffer.wrap(page.getPageData(),0,BufferPool.getPageSize()));
+        }
+        if(m!=null){
+            // a page appended past the mapped region needs a remap on next read
+            m.pageWritten(page.getId().getPageNumber());
+        }
+        freeSpace.pageWritten(page.getId().getPageNumber(),freeSpaceOf(page));
+        zoneMap.pageWritten(page.getId().getPageNumber(),()->tupleIterator(page));
+    }
 
-                rf.seek(offset);
-                rf.write(page.getPageData(),0,BufferPool.getPageSize());
+    /**
+     * Widens the zone map entry of a page by the tuples of live, its version
+     * in the BufferPool, and records the free space of live, in memory only.
+     * Called after writing a version of the page that lacks changes of
+     * running transactions, so that scans do not skip their inserts.
+     */
+    void pageChanged(Page live) {
+        int pgNo=live.getId().getPageNumber();
+        freeSpace.update(pgNo,freeSpaceOf(live));
+        zoneMap.widen(pgNo,tupleIterator(live));
+    }
 
-            }catch (IOException e){
-                e.printStackTrace();
-            }
+    private int readCompressed(int pgNo,byte[] data) throws IOException {
+        compressed.readPage(pgNo,data);
+        return data.length;
+    }
+
+    /**
+     * Decodes a page of this file from its bytes on disk.
+     */
+    protected Page createPage(HeapPageId pid, byte[] data) throws IOException {
+        return new HeapPage(pid,data);
+    }
+
+    /**
+     * Creates the page held in frame, or read in place from the read-only
+     * view of it in the mapped file; a subclass whose pages cannot live in
+     * a frame copies it, leaving the frame free.
+     */
+    protected Page createPage(HeapPageId pid, ByteBuffer frame) throws IOException {
+        return HeapPage.inFrame(pid,frame);
+    }
+
+    /**
+     * Returns the free space of a page of this file, as recorded in the
+     * free-space map: the number of empty tuple slots of a HeapPage.
+     */
+    protected int freeSpaceOf(Page page) {
+        return ((HeapPage) page).getNumEmptySlots();
+    }
+
+    /**
+     * Returns an iterator over the tuples of a page of this file.
+     */
+    protected Iterator<Tuple> tupleIterator(Page page) {
+        return ((HeapPage) page).iterator();
     }
 
     /**
@@ -214,51 +466,108 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        int pageSize= BufferPool.getPageSize();
-        return (int) Math.floor( f.length()*1.0/pageSize);
+        if(compressed!=null){
+            return compressed.numPages();
+        }
+        return segments.numPages();
 
 
 //        return 0;
     }
 
+    /** @return the free-space map of this file */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return freeSpace;
+    }
+
+    /** @return the zone map of this file */
+    public ZoneMap getZoneMap() {
+        return zoneMap;
+    }
+
+    /**
+     * Stamps the sidecar files with the current state of the data file, if
+     * pages were written since. The BufferPool calls it after flushing the
+     * pages of a commit or of the whole pool, and the file is stamped when
+     * its channels are closed.
+     */
+    public void stampSidecars() throws IOException {
+        freeSpace.writeStamp();
+        zoneMap.writeStamp();
+    }
+
     // see DbFile.java for javadocs
     public List<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        // check existing pages first
-        int i=0;
+        // only visit pages the free-space map says may have room
         List<Page> pageList = new ArrayList<>();
-        for(i=0;i<numPages();i++){
+        for(int i=freeSpace.nextPageWithSpace(0,numPages());i>=0;i=freeSpace.nextPageWithSpace(i+1,numPages())){
             HeapPageId pid = new HeapPageId(this.getId(), i);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
-            if (page.getNumEmptySlots() != 0) {
-                page.insertTuple(t);
-//                page.markDirty(true, tid);
+            boolean held=Database.getBufferPool().holdsLock(tid,pid);
+            HeapPage page = insertInto(tid,pid,t);
+            if (page != null) {
                 pageList.add(page);
                 return pageList;
-            }else{
+            }
+            // stale hint, or every empty slot is locked by a running delete;
+            // don't keep a lock we only took to look at the page
+            if(!held){
                 Database.getBufferPool().unsafeReleasePage(tid,pid);
             }
         }
         // then adding new page to the file
-        Database.getCatalog().addTable(this);
-        HeapPageId pid = new HeapPageId(this.getId(), i);
-
-        // directly
-        HeapPage page = new HeapPage(pid,HeapPage.createEmptyPageData());
-        writePage(page);
-        page=(HeapPage) Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
-        if (page.getNumEmptySlots() != 0) {
-                page.insertTuple(t);
-                page.markDirty(true, tid);
+        HeapPageId pid;
+        synchronized (this) {
+            pid = new HeapPageId(this.getId(), numPages());
+            writePage(new HeapPage(pid,HeapPage.createEmptyPageData()));
+        }
+        HeapPage page=insertInto(tid,pid,t);
+        if (page != null) {
                 pageList.add(page);
-
                 return pageList;
         }
         throw new DbException("The file is full and the tuple can not be added");
         // not necessary for lab1
     }
 
+    /**
+     * Inserts t into an empty slot of the page that tid can lock without
+     * waiting, so transactions inserting into the same page do not wait
+     * for each other.
+     *
+     * @return the page, or null if it had no such slot
+     */
+    private HeapPage insertInto(TransactionId tid, HeapPageId pid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        while (true) {
+            HeapPage page = (HeapPage) bp.getRecordPage(tid, pid);
+            try {
+                synchronized (page) {
+                    if (bp.mayWriteRecords(tid, page)) {
+                        for (int slot = page.nextEmptySlot(0); slot >= 0; slot = page.nextEmptySlot(slot + 1)) {
+                            RecordId rid = new RecordId(pid, slot);
+                            if (bp.tryLockRecord(tid, rid)) {
+                                page.insertTuple(t, slot);
+                                bp.recordWritten(tid, page, rid, null);
+                                freeSpace.update(pid.getPageNumber(), page.getNumEmptySlots());
+                                zoneMap.tupleInserted(pid.getPageNumber(), t);
+                                return page;
+                            }
+                        }
+                        freeSpace.update(pid.getPageNumber(), page.getNumEmptySlots());
+                        return null;
+                    }
+                }
+            } finally {
+                bp.unpinPage(tid, pid);
+            }
+            // the page must be ours alone
+            bp.getPage(tid, pid, Permissions.READ_WRITE);
+        }
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -267,25 +576,60 @@ public class HeapFile implements DbFile {
         ArrayList<Page> pageList = new ArrayList<>();
         final RecordId recordId=t.getRecordId();
         final HeapPageId pageId=(HeapPageId) recordId.getPageId();
-        final int pN=recordId.getTupleNumber();
-        HeapPage hp= (HeapPage) Database.getBufferPool().getPage(tid,pageId,Permissions.READ_WRITE);
-        if(hp!=null) {
-            hp.deleteTuple(t);
-//            hp.markDirty(true,tid);
-            pageList.add(hp);
-            return pageList;
+        BufferPool bp = Database.getBufferPool();
+        // only the tuple is locked exclusively; others may change the rest of the page
+        bp.lockRecord(tid,recordId,Permissions.READ_WRITE);
+        while (true) {
+            HeapPage hp = (HeapPage) bp.getRecordPage(tid, pageId);
+            try {
+                synchronized (hp) {
+                    if (bp.mayWriteRecords(tid, hp)) {
+                        hp.deleteTuple(recordId);
+                        bp.recordWritten(tid, hp, recordId, t);
+                        freeSpace.update(pageId.getPageNumber(), hp.getNumEmptySlots());
+                        pageList.add(hp);
+                        return pageList;
+                    }
+                }
+            } finally {
+                bp.unpinPage(tid, pageId);
+            }
+            bp.getPage(tid, pageId, Permissions.READ_WRITE);
         }
-
-        throw new DbException("the tuple cannot be deleted or is not a member of the file");
         // not necessary for lab1
     }
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapFileIterator(this,tid);
+        return iterator(tid,0);
+    }
 
-//        return null;
+    /**
+     * Returns an iterator over all the tuples stored in this HeapFile that
+     * keeps up to readAhead pages after the current one being read into the
+     * BufferPool in the background, so decoding one page overlaps the disk
+     * reads of the next ones. Use 0 for short or point scans that should not
+     * pull extra pages into the pool.
+     *
+     * @param tid the transaction the scan runs in
+     * @param readAhead the read-ahead window size, in pages
+     */
+    public DbFileIterator iterator(TransactionId tid, int readAhead) {
+        return iterator(tid,readAhead,Collections.emptyList());
+    }
+
+    /**
+     * Returns an iterator like {@link #iterator(TransactionId, int)} that
+     * skips, without fetching them, the pages the zone map shows cannot hold
+     * a tuple satisfying all the predicates. Tuples on the pages read are
+     * returned whether they satisfy the predicates or not; the caller still
+     * has to filter them.
+     *
+     * @param predicates predicates over the fields of the TupleDesc of this file
+     */
+    public DbFileIterator iterator(TransactionId tid, int readAhead, List<Predicate> predicates) {
+        return new HeapFileIterator(this,tid,Math.max(0,readAhead),new ArrayList<>(predicates));
     }
 
 
@@ -4,6 +4,7 @@ import simpledb.common.Type;
 import simpledb.common.Utility;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -147,7 +148,8 @@ public class HeapFileEncoder {
                     System.out.println ("BAD LINE : " + s);
                 }
             }
-            else   if (typeAr[fieldNo] == Type.STRING_TYPE) {
+            else   if (typeAr[fieldNo] == Type.STRING_TYPE
+                    || typeAr[fieldNo] == Type.VARCHAR_TYPE) {
                 s = s.trim();
                 int overflow = Type.STRING_LEN - s.length();
                 if (overflow < 0) {
@@ -224,4 +226,75 @@ public class HeapFileEncoder {
     br.close();
     os.close();
   }
+
+   /** Convert the specified input text file into a binary file of
+    * SlottedHeapPages, in which every tuple takes only the bytes its fields
+    * need. The input format is the same as for
+    * {@link #convert(File, File, int, int, Type[], char)}; string values
+    * longer than {@link Type#STRING_LEN} are cut.
+    *
+    * @see SlottedHeapPage
+    * @see SlottedHeapFile
+    * @param inFile The input file to read data from
+    * @param outFile The output file to write data to
+    * @param npagebytes The number of bytes per page in the output file
+    * @param numFields the number of fields in each input line/output tuple
+    * @param typeAr the type of each field
+    * @param fieldSeparator the character between fields of a line
+    * @throws IOException if the input/output file can't be opened or a
+    *   tuple does not fit in a page
+    */
+  public static void convertSlotted(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
+    BufferedReader br = new BufferedReader(new FileReader(inFile));
+    FileOutputStream os = new FileOutputStream(outFile);
+
+    List<byte[]> records = new ArrayList<>();
+    int usedBytes = SlottedHeapPage.HEADER_SIZE;
+    int npages = 0;
+    String line;
+    while ((line = br.readLine()) != null) {
+        if (line.isEmpty())
+            continue;
+        String[] values = line.split(java.util.regex.Pattern.quote(String.valueOf(fieldSeparator)), -1);
+        ByteArrayOutputStream recBAOS = new ByteArrayOutputStream();
+        DataOutputStream recStream = new DataOutputStream(recBAOS);
+        for (int i = 0; i < numFields; i++) {
+            String s = i < values.length ? values[i].trim() : "";
+            if (typeAr[i] == Type.INT_TYPE) {
+                int v = 0;
+                try {
+                    v = Integer.parseInt(s);
+                } catch (NumberFormatException e) {
+                    System.out.println ("BAD LINE : " + line);
+                }
+                recStream.writeInt(v);
+            } else if (typeAr[i] == Type.VARCHAR_TYPE) {
+                new VarStringField(s).serialize(recStream);
+            } else {
+                new StringField(s, Type.STRING_LEN).serialize(recStream);
+            }
+        }
+        recStream.flush();
+        byte[] rec = recBAOS.toByteArray();
+        if (SlottedHeapPage.HEADER_SIZE + SlottedHeapPage.SLOT_SIZE + rec.length > npagebytes)
+            throw new IOException("tuple does not fit in a page: " + line);
+
+        // start a new page when this one has no room for the tuple and its slot
+        if (usedBytes + SlottedHeapPage.SLOT_SIZE + rec.length > npagebytes) {
+            os.write(SlottedHeapPage.createPageData(records, npagebytes));
+            npages++;
+            records.clear();
+            usedBytes = SlottedHeapPage.HEADER_SIZE;
+        }
+        records.add(rec);
+        usedBytes += SlottedHeapPage.SLOT_SIZE + rec.length;
+    }
+    // flush the last page, or an empty page if the file has no tuples
+    if (!records.isEmpty() || npages == 0)
+        os.write(SlottedHeapPage.createPageData(records, npagebytes));
+    br.close();
+    os.close();
+  }
 }
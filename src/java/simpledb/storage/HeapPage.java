@@ -4,8 +4,10 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Catalog;
+import simpledb.common.Type;
 import simpledb.transaction.TransactionId;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.io.*;
 
@@ -22,13 +24,32 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte[] header;
+    /**
+     * Decoded tuples. A used slot whose entry is still null has not been
+     * decoded yet; its bytes are read from source on first access.
+     */
     final Tuple[] tuples;
     final int numSlots;
+    /**
+     * The page bytes this page was created from, modified only by
+     * setBeforeImage. A direct buffer is a frame of the BufferPool's
+     * FrameArena, read under oldDataLock since setBeforeImage writes it, or,
+     * if read-only, a view of a memory-mapped file, which changes when the
+     * page is written.
+     */
+    private final ByteBuffer source;
+    /** byte offset of each field inside a tuple slot */
+    private final int[] fieldOffsets;
+    /** number of empty slots, kept up to date by markSlotUsed */
+    private int numEmptySlots;
+    /** no slot below this one is empty */
+    private int nextFreeSlot;
     private boolean dirty;
     private TransactionId tid;
 
+    /** null while the before image is source itself */
     byte[] oldData;
-    private final Byte oldDataLock= (byte) 0;
+    private final Object oldDataLock= new Object();
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -42,34 +63,79 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page keeps a reference to data and decodes tuples from it on
+     * demand, so the caller must not modify the array afterwards.
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data), data);
+    }
+
+    /**
+     * Creates a HeapPage kept in frame, a frame of the BufferPool's
+     * FrameArena holding the page bytes read from disk. The page keeps the
+     * frame for as long as it is referenced, also after it left the pool,
+     * see {@link FrameArena#retire}. The tuples decoded from the frame
+     * are cached on the heap like those of any other page.
+     * <p>
+     * frame may also be a read-only view of the page in a memory-mapped
+     * file, which the page reads its slots from without copying them; see
+     * {@link #keepBeforeImage()}.
+     */
+    static HeapPage inFrame(HeapPageId id, ByteBuffer frame) throws IOException {
+        return new HeapPage(id, frame, null);
+    }
+
+    private HeapPage(HeapPageId id, ByteBuffer data, byte[] oldData) throws IOException {
         this.tid=null;
         this.dirty=false;
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
-        // allocate and read the header slots of this page
+        // read the header slots of this page; the tuples themselves are
+        // decoded lazily, slot by slot, when they are first accessed
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
+        if (data.capacity() < header.length) {
+            throw new IOException("page " + id.getPageNumber() + " is truncated");
+        }
+        ByteBuffer h = data.duplicate();
+        h.clear();
+        h.get(header);
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        source = data;
+        fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
+        int used = 0;
+        for (int i=0; i<numSlots; i++)
+            if (isSlotUsed(i)) used++;
+        numEmptySlots = numSlots - used;
+        nextFreeSlot = 0;
+
+        // data is never modified, so it doubles as the before image
+        synchronized (oldDataLock) {
+            this.oldData = oldData;
         }
-        dis.close();
+    }
+
+    /**
+     * Create a HeapPage from a buffer holding the page bytes, e.g. a slice of
+     * a memory-mapped HeapFile. The bytes are copied once; the position of
+     * data is left unchanged.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, copyOf(data));
+    }
 
-        setBeforeImage();
+    static byte[] copyOf(ByteBuffer data) {
+        byte[] raw = new byte[Math.min(data.remaining(), BufferPool.getPageSize())];
+        data.duplicate().get(raw);
+        return raw;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -100,7 +166,7 @@ public class HeapPage implements Page {
             byte[] oldDataRef = null;
             synchronized(oldDataLock)
             {
-                oldDataRef = oldData;
+                oldDataRef = oldData != null ? oldData : copyOf(source);
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -112,9 +178,67 @@ public class HeapPage implements Page {
     }
     
     public void setBeforeImage() {
+        setBeforeImage(getPageData());
+    }
+
+    /**
+     * Makes data, the bytes of a version of this page, the before image,
+     * e.g. the version just written to disk when this page holds changes
+     * that were not.
+     */
+    void setBeforeImage(byte[] data) {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+            if (inFrame(source)) {
+                // the frame keeps the before image; slots not decoded yet
+                // hold the same bytes in both versions
+                ByteBuffer frame = source.duplicate();
+                frame.clear();
+                frame.put(data, 0, Math.min(data.length, frame.capacity()));
+                oldData = null;
+            } else {
+                oldData = data;
+            }
+        }
+    }
+
+    /** @return whether the page bytes are in a frame of the BufferPool's FrameArena */
+    public boolean isInFrame() {
+        return inFrame(source);
+    }
+
+    private static boolean inFrame(ByteBuffer buf) {
+        return buf.isDirect() && !buf.isReadOnly();
+    }
+
+    /**
+     * Copies the before image out of the memory-mapped file this page reads
+     * from, if it is still there, as the page is about to be written over.
+     * Slots not decoded yet hold the same bytes in the written version.
+     */
+    void keepBeforeImage() {
+        synchronized (oldDataLock) {
+            if (oldData == null && source.isReadOnly()) {
+                oldData = copyOf(source);
+            }
+        }
+    }
+
+    /** @return the frame of the BufferPool's FrameArena this page is in, or null */
+    ByteBuffer frame() {
+        return inFrame(source) ? source : null;
+    }
+
+    /**
+     * Runs read on the page bytes, holding oldDataLock if they are in a
+     * frame that setBeforeImage may write meanwhile.
+     */
+    private <T> T readSource(java.util.function.Function<ByteBuffer, T> read) {
+        if (!inFrame(source)) {
+            return read.apply(source);
+        }
+        synchronized (oldDataLock) {
+            return read.apply(source);
         }
     }
 
@@ -127,40 +251,99 @@ public class HeapPage implements Page {
 //    throw new UnsupportedOperationException("implement this");
     }
 
+    /** @return the offset in source of the first byte of the given slot */
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Returns the tuple stored in a used slot, decoding it from the source
+     * bytes the first time it is accessed.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    private Tuple getSlotTuple(int slotId) throws NoSuchElementException {
+        Tuple t = tuples[slotId];
+        if (t != null) {
+            return t;
         }
+        t = readSource(src -> decodeTuple(src, slotId));
+        tuples[slotId] = t;
+        return t;
+    }
+
+    private Tuple decodeTuple(ByteBuffer src, int slotId) {
+        ByteBuffer buf = slotBuffer(src, slotId);
 
         // read fields in the tuple
         Tuple t = new Tuple(td);
         RecordId rid = new RecordId(pid, slotId);
         t.setRecordId(rid);
+        int base = buf.position();
         try {
             for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
+                // a VARCHAR value may end before its fixed-size field does
+                buf.position(base + fieldOffsets[j]);
+                Field f = td.getFieldType(j).parse(buf);
                 t.setField(j, f);
             }
         } catch (java.text.ParseException e) {
             e.printStackTrace();
             throw new NoSuchElementException("parsing error!");
         }
-
         return t;
     }
 
+    private ByteBuffer slotBuffer(ByteBuffer src, int slotId) throws NoSuchElementException {
+        int offset = slotOffset(slotId);
+        if (offset + td.getSize() > src.capacity()) {
+            throw new NoSuchElementException("error reading tuple " + slotId);
+        }
+        ByteBuffer buf = src.duplicate();
+        buf.limit(offset + td.getSize());
+        buf.position(offset);
+        return buf;
+    }
+
+    /**
+     * Returns the tuple with the specified RecordId, decoding only that slot.
+     *
+     * @throws NoSuchElementException if the record is not on this page or its
+     *         slot is empty
+     */
+    public Tuple getTuple(RecordId rid) throws NoSuchElementException {
+        int slotId = rid.getTupleNumber();
+        if (!pid.equals(rid.getPageId()) || slotId < 0 || slotId >= numSlots || !isSlotUsed(slotId)) {
+            throw new NoSuchElementException("no tuple " + slotId + " on page " + pid.getPageNumber());
+        }
+        return getSlotTuple(slotId);
+    }
+
+    /**
+     * Returns one field of the tuple in a used slot. If the tuple has not been
+     * decoded yet, only the requested field is decoded.
+     *
+     * @param slotId the slot of the tuple
+     * @param fieldIndex the index of the field in the TupleDesc of this page
+     */
+    public Field getField(int slotId, int fieldIndex) throws NoSuchElementException {
+        if (slotId < 0 || slotId >= numSlots || !isSlotUsed(slotId)) {
+            throw new NoSuchElementException("slot " + slotId + " is empty");
+        }
+        Tuple t = tuples[slotId];
+        if (t != null) {
+            return t.getField(fieldIndex);
+        }
+        return readSource(src -> {
+            ByteBuffer buf = slotBuffer(src, slotId);
+            buf.position(buf.position() + fieldOffsets[fieldIndex]);
+            try {
+                return td.getFieldType(fieldIndex).parse(buf);
+            } catch (java.text.ParseException e) {
+                e.printStackTrace();
+                throw new NoSuchElementException("parsing error!");
+            }
+        });
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -203,12 +386,35 @@ public class HeapPage implements Page {
                 continue;
             }
 
+            // non-empty slot that was never decoded: copy its bytes as they are
+            if (tuples[i] == null) {
+                int offset = slotOffset(i);
+                byte[] raw = new byte[td.getSize()];
+                readSource(src -> {
+                    if (offset + raw.length <= src.capacity()) {
+                        ByteBuffer buf = src.duplicate();
+                        buf.position(offset);
+                        buf.get(raw);
+                    }
+                    return null;
+                });
+                try {
+                    dos.write(raw);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
             // non-empty slot
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
                 try {
+                    int start = dos.size();
                     f.serialize(dos);
-                
+                    // pad short (VARCHAR) values out to the fixed field size
+                    for (int k = dos.size() - start; k < td.getFieldType(j).getLen(); k++)
+                        dos.writeByte(0);
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -255,9 +461,17 @@ public class HeapPage implements Page {
      * @param t The tuple to delete
      */
     public void deleteTuple(Tuple t) throws DbException {
+        deleteTuple(t.getRecordId());
+    }
+
+    /**
+     * Delete the tuple in the slot recordId names from the page.
+     * @throws DbException if the slot is not on this page, or is already
+     *         empty.
+     */
+    public void deleteTuple(RecordId recordId) throws DbException {
         // some code goes here
         // check the bitmap from the header
-        final RecordId recordId=t.getRecordId();
         final HeapPageId pageId=(HeapPageId) recordId.getPageId();
         final int pN=recordId.getTupleNumber();
         if(!this.pid.equals(pageId)){
@@ -286,16 +500,51 @@ public class HeapPage implements Page {
         if(!t.getTupleDesc().equals(td)){
             throw  new DbException("the tupledesc is mismatch");
         }
-        for(int i=0;i<numSlots;i++){
+        for(int i=nextFreeSlot;i<numSlots;i++){
             if(!isSlotUsed(i)){
                 markSlotUsed(i,true);
                 t.setRecordId(new RecordId(this.pid,i));
                 tuples[i]=t;
+                nextFreeSlot=i+1;
                 return;
             }
         }
     }
 
+    /**
+     * Adds the specified tuple to the page in the given slot, which must be
+     * empty, e.g. one the caller could lock, or the one a deleted tuple is
+     * put back into.
+     * @throws DbException if the slot is used or out of range, or tupledesc
+     *         is mismatch.
+     */
+    public void insertTuple(Tuple t, int slot) throws DbException {
+        if(slot<0||slot>=numSlots||isSlotUsed(slot)){
+            throw new DbException("slot "+slot+" is not empty");
+        }
+        if(!t.getTupleDesc().equals(td)){
+            throw  new DbException("the tupledesc is mismatch");
+        }
+        markSlotUsed(slot,true);
+        t.setRecordId(new RecordId(this.pid,slot));
+        tuples[slot]=t;
+    }
+
+    /**
+     * @return the first empty slot at or after from, or -1 if there is none
+     */
+    public int nextEmptySlot(int from) {
+        if(getNumEmptySlots()==0){
+            return -1;
+        }
+        for(int i=Math.max(from,nextFreeSlot);i<numSlots;i++){
+            if(!isSlotUsed(i)){
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -325,25 +574,7 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-//        int sum=0;
-//        for(int i=0;i<getHeaderSize();i++){
-//            int headerPartial= Byte.toUnsignedInt(header[i]);
-//            while(headerPartial!=0){
-//                if(1 == (headerPartial & 1)){
-//                    sum++;
-//                }
-//                headerPartial = (headerPartial /2 );
-//            }
-//        }
-//        return getNumTuples()-sum;
-        int empty = 0;
-        for (int i = 0; i < numSlots; i++) {
-            if (!isSlotUsed(i)) {
-                empty++;
-            }
-        }
-        return empty;
-
+        return numEmptySlots;
     }
 
     /**
@@ -365,6 +596,12 @@ public class HeapPage implements Page {
         int headerId=i/8;
         int offset=i%8;
         int myMask = value? 1<<offset:~(1<<offset);
+        if(isSlotUsed(i)!=value){
+            numEmptySlots+= value? -1:1;
+        }
+        if(!value&&i<nextFreeSlot){
+            nextFreeSlot=i;
+        }
         if(value){
             header[headerId]= (byte) (header[headerId]|myMask);
         }else{
@@ -380,12 +617,64 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        List<Tuple> tupleList= new ArrayList<>();
-        for(int i=0;i<numSlots;i++){
-            if(isSlotUsed(i)) tupleList.add(tuples[i]);
+        // iterate over the slots used when the iterator was created, like a
+        // snapshot, but only decode each tuple when it is reached
+        final byte[] used = header.clone();
+        return new Iterator<Tuple>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                for (int i = from; i < numSlots; i++) {
+                    if ((used[i / 8] >> (i % 8) & 1) == 1) {
+                        return i;
+                    }
+                }
+                return numSlots;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < numSlots;
+            }
+
+            @Override
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = getSlotTuple(next);
+                next = advance(next + 1);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Returns an iterator over the tuples on this page that decodes only the
+     * requested fields. The returned tuples have a TupleDesc made of just
+     * those fields, in the given order, and carry the RecordId of their slot.
+     *
+     * @param fieldIndexes indexes of the fields to decode, in the TupleDesc of this page
+     */
+    public Iterator<Tuple> iterator(final int[] fieldIndexes) {
+        Type[] types = new Type[fieldIndexes.length];
+        String[] names = new String[fieldIndexes.length];
+        for (int j = 0; j < fieldIndexes.length; j++) {
+            types[j] = td.getFieldType(fieldIndexes[j]);
+            names[j] = td.getFieldName(fieldIndexes[j]);
+        }
+        final TupleDesc projected = new TupleDesc(types, names);
+        List<Tuple> tupleList = new ArrayList<>();
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) continue;
+            Tuple t = new Tuple(projected);
+            t.setRecordId(new RecordId(pid, i));
+            for (int j = 0; j < fieldIndexes.length; j++) {
+                t.setField(j, getField(i, fieldIndexes[j]));
+            }
+            tupleList.add(t);
         }
         return tupleList.iterator();
-//        return null;
     }
 
 }
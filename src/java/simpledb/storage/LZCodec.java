@@ -0,0 +1,161 @@
+package simpledb.storage;
+
+import java.io.IOException;
+
+/**
+ * LZCodec is a small LZ77 compressor in the spirit of the LZ4 block format,
+ * fast enough to sit on the page read and write paths. Compressed data is a
+ * sequence of records, each a token byte (literal count in the high nibble,
+ * match length minus 4 in the low one; 15 means more length bytes follow,
+ * 255 at a time), the literals, and a 2-byte little-endian offset back to
+ * the match. The last record has literals only.
+ * <p>
+ * The padding of fixed-width fields and empty slots shows up as long runs,
+ * which become a handful of bytes each.
+ */
+public final class LZCodec {
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_BITS = 12;
+
+    private LZCodec() {
+    }
+
+    /**
+     * Compresses len bytes of src starting at off into dst.
+     *
+     * @return the number of bytes written to dst, or -1 if the compressed
+     *         form does not fit in dst
+     */
+    public static int compress(byte[] src, int off, int len, byte[] dst) {
+        int[] table = new int[1 << HASH_BITS];
+        java.util.Arrays.fill(table, -1);
+        int end = off + len;
+        int anchor = off;
+        int ip = off;
+        int op = 0;
+        while (ip <= end - MIN_MATCH) {
+            int seq = readInt(src, ip);
+            int h = (seq * -1640531535) >>> (32 - HASH_BITS);
+            int ref = table[h];
+            table[h] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                ip++;
+                continue;
+            }
+            int matchLen = MIN_MATCH;
+            while (ip + matchLen < end && src[ref + matchLen] == src[ip + matchLen]) {
+                matchLen++;
+            }
+            op = writeRecord(dst, op, src, anchor, ip - anchor, ip - ref, matchLen);
+            if (op < 0) {
+                return -1;
+            }
+            ip += matchLen;
+            anchor = ip;
+        }
+        return writeRecord(dst, op, src, anchor, end - anchor, 0, 0);
+    }
+
+    /**
+     * Decompresses len bytes of src starting at off into dst.
+     *
+     * @return the number of bytes written to dst
+     * @throws IOException if src is not valid compressed data or does not fit
+     *         in dst
+     */
+    public static int decompress(byte[] src, int off, int len, byte[] dst) throws IOException {
+        int end = off + len;
+        int ip = off;
+        int op = 0;
+        while (ip < end) {
+            int token = src[ip++] & 0xFF;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    if (ip >= end) throw new IOException("truncated literal length");
+                    b = src[ip++] & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (literals > end - ip || literals > dst.length - op) {
+                throw new IOException("literals run past the end of the data");
+            }
+            System.arraycopy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+            if (ip == end) {
+                break;
+            }
+
+            if (end - ip < 2) throw new IOException("truncated match offset");
+            int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+            ip += 2;
+            int matchLen = token & 15;
+            if (matchLen == 15) {
+                int b;
+                do {
+                    if (ip >= end) throw new IOException("truncated match length");
+                    b = src[ip++] & 0xFF;
+                    matchLen += b;
+                } while (b == 255);
+            }
+            matchLen += MIN_MATCH;
+            if (offset == 0 || offset > op || matchLen > dst.length - op) {
+                throw new IOException("match out of range");
+            }
+            // byte by byte: a match may overlap the bytes it produces
+            for (int i = 0; i < matchLen; i++, op++) {
+                dst[op] = dst[op - offset];
+            }
+        }
+        return op;
+    }
+
+    /** @return the position after the record in dst, or -1 if it does not fit */
+    private static int writeRecord(byte[] dst, int op, byte[] src, int literalOff, int literals,
+                                   int offset, int matchLen) {
+        int extra = matchLen == 0 ? 0 : matchLen - MIN_MATCH;
+        if (op >= dst.length) {
+            return -1;
+        }
+        dst[op++] = (byte) (Math.min(literals, 15) << 4 | Math.min(extra, 15));
+        if (literals >= 15) {
+            op = writeLength(dst, op, literals - 15);
+        }
+        if (op < 0 || literals > dst.length - op) {
+            return -1;
+        }
+        System.arraycopy(src, literalOff, dst, op, literals);
+        op += literals;
+        if (matchLen == 0) {
+            return op;
+        }
+        if (dst.length - op < 2) {
+            return -1;
+        }
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        if (extra >= 15) {
+            op = writeLength(dst, op, extra - 15);
+        }
+        return op;
+    }
+
+    private static int writeLength(byte[] dst, int op, int n) {
+        while (n >= 255) {
+            if (op >= dst.length) return -1;
+            dst[op++] = (byte) 255;
+            n -= 255;
+        }
+        if (op < 0 || op >= dst.length) return -1;
+        dst[op++] = (byte) n;
+        return op;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+}
@@ -299,7 +299,16 @@ public class LogFile {
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            // the (page id, page bytes) constructor, whatever else the class declares
+            Constructor<?> pageConst = pageConsts[0];
+            for (Constructor<?> c : pageConsts) {
+                Class<?>[] types = c.getParameterTypes();
+                if (types.length == 2 && types[0].isInstance(pid) && types[1] == byte[].class) {
+                    pageConst = c;
+                    break;
+                }
+            }
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
@@ -481,7 +490,7 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                ConcurrentHashMap<Integer,Page> pageMap= new ConcurrentHashMap<>();
+                ConcurrentHashMap<PageId,Page> pageMap= new ConcurrentHashMap<>();
                 // some code goes here
                 long currentOffset=tidToFirstLogRecord.get(tid.getId());
                 raf.seek(currentOffset);
@@ -512,10 +521,10 @@ public class LogFile {
 //                                System.out.println(" (UPDATE)");
                                 long start = raf.getFilePointer();
                                 Page before = readPageData(raf);
-                                if(tid.getId()==cpTid&&!pageMap.containsKey(before.getId().getPageNumber())) {
+                                if(tid.getId()==cpTid&&!pageMap.containsKey(before.getId())) {
 //                                    System.out.println("=========ROLL BACK===========");
                                     // 每次先放在map中 最后一下子回滚
-                                    pageMap.put(before.getId().getPageNumber(),before);
+                                    pageMap.put(before.getId(),before);
                                     Database.getBufferPool().discardPage(before.getId());
                                     Database.getCatalog().getDatabaseFile(before.getId().getTableId()).writePage(before);
                                 }
@@ -0,0 +1,147 @@
+package simpledb.storage;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Evicts the least recently used page. A hit takes no lock: it only stamps
+ * the page with the next tick of a counter. Pages are kept in a doubly
+ * linked list in order of the stamp they had when they were last linked,
+ * and the order is brought up to date when a victim is needed: walking
+ * from the back, a page used since it was linked moves up to where its
+ * stamp belongs, and the first evictable page that was not used since is
+ * the least recently used one.
+ *
+ * @Threadsafe
+ */
+public class LruPolicy implements ReplacementPolicy {
+
+    private static final class Node {
+        final PageId pid;
+        /** tick of the last use, set without the lock */
+        volatile long used;
+        /** tick the list order of this node is based on */
+        long linked;
+        Node prev;
+        Node next;
+
+        Node(PageId pid, long tick) {
+            this.pid = pid;
+            this.used = tick;
+            this.linked = tick;
+        }
+    }
+
+    private final ConcurrentHashMap<PageId, Node> nodes = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    /** sentinel: head.next is the most recently linked page, head.prev the least */
+    private final Node head = new Node(null, Long.MAX_VALUE);
+
+    public LruPolicy() {
+        head.prev = head;
+        head.next = head;
+    }
+
+    @Override
+    public synchronized void admit(PageId pid) {
+        long tick = clock.incrementAndGet();
+        Node n = nodes.get(pid);
+        if (n == null) {
+            n = new Node(pid, tick);
+            nodes.put(pid, n);
+        } else {
+            unlink(n);
+            n.used = tick;
+            n.linked = tick;
+        }
+        linkFirst(n);
+    }
+
+    @Override
+    public void access(PageId pid) {
+        Node n = nodes.get(pid);
+        // read before write: the page used last is not stamped again
+        if (n != null && n.used != clock.get()) {
+            n.used = clock.incrementAndGet();
+        }
+    }
+
+    @Override
+    public synchronized void remove(PageId pid) {
+        Node n = nodes.remove(pid);
+        if (n != null) {
+            unlink(n);
+        }
+    }
+
+    @Override
+    public synchronized PageId victim(Predicate<PageId> evictable) {
+        Node n = head.prev;
+        while (n != head) {
+            long used = n.used;
+            if (used != n.linked) {
+                // used since it was linked: move it up, then look at what now follows the checked part
+                Node checked = n.next;
+                unlink(n);
+                n.linked = used;
+                linkSorted(n);
+                n = checked.prev;
+            } else if (evictable.test(n.pid)) {
+                return n.pid;
+            } else {
+                n = n.prev;
+            }
+        }
+        return null;
+    }
+
+    /** Most recently used first; O(n log n), as the list is only sorted lazily. */
+    @Override
+    public synchronized List<PageId> hottest() {
+        // the stamps are copied first, hits may change them meanwhile
+        List<Map.Entry<PageId, Long>> sorted = new ArrayList<>(nodes.size());
+        for (Node n = head.next; n != head; n = n.next) {
+            sorted.add(new AbstractMap.SimpleImmutableEntry<>(n.pid, n.used));
+        }
+        sorted.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        List<PageId> pages = new ArrayList<>(sorted.size());
+        for (Map.Entry<PageId, Long> e : sorted) {
+            pages.add(e.getKey());
+        }
+        return pages;
+    }
+
+    /** @return the number of pages tracked */
+    int size() {
+        return nodes.size();
+    }
+
+    private void linkFirst(Node n) {
+        n.prev = head;
+        n.next = head.next;
+        head.next.prev = n;
+        head.next = n;
+    }
+
+    /** Links n in front of the first node linked no later than n. */
+    private void linkSorted(Node n) {
+        Node at = head.next;
+        while (at != head && at.linked > n.linked) {
+            at = at.next;
+        }
+        n.next = at;
+        n.prev = at.prev;
+        at.prev.next = n;
+        at.prev = n;
+    }
+
+    private static void unlink(Node n) {
+        n.prev.next = n.next;
+        n.next.prev = n.prev;
+    }
+}
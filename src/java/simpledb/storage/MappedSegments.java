@@ -0,0 +1,102 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * MappedSegments maps the file of a DbFile into memory in fixed-size
+ * segments of {@link #SEGMENT_PAGES} pages, and hands out read-only views
+ * of single pages. Segments are mapped on first use.
+ * <p>
+ * The last segment of a file may be shorter than SEGMENT_PAGES pages. When
+ * the file grows past it (e.g. HeapFile.insertTuple appending a page), the
+ * segment is remapped the next time one of the new pages is requested.
+ * Writes through the FileChannel of the same file are visible through the
+ * mapping, so overwriting existing pages never requires a remap.
+ *
+ * @Threadsafe
+ */
+public class MappedSegments {
+
+    /** Number of pages covered by one mapped segment. */
+    public static final int SEGMENT_PAGES = 256;
+
+    private final DbFile dbFile;
+    private final File f;
+    private final ConcurrentHashMap<Integer, MappedByteBuffer> segments;
+    private volatile int mappedPageSize;
+
+    /**
+     * @param dbFile the DbFile whose pages are mapped
+     * @param f the file backing dbFile
+     */
+    public MappedSegments(DbFile dbFile, File f) {
+        this.dbFile = dbFile;
+        this.f = f;
+        this.segments = new ConcurrentHashMap<>();
+        this.mappedPageSize = BufferPool.getPageSize();
+    }
+
+    /**
+     * Returns a read-only view of the specified page, positioned at the start
+     * of the page and limited to its end, or null if the page lies past the
+     * end of the file.
+     */
+    public ByteBuffer getPage(int pgNo) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        if (pageSize != mappedPageSize) {
+            // page size changed (tests only); every segment boundary moved
+            clear();
+            mappedPageSize = pageSize;
+        }
+        int segNo = pgNo / SEGMENT_PAGES;
+        int offset = (pgNo % SEGMENT_PAGES) * pageSize;
+
+        MappedByteBuffer seg = segments.get(segNo);
+        if (seg == null || seg.capacity() < offset + pageSize) {
+            seg = map(segNo, pageSize);
+            if (seg.capacity() < offset + pageSize) {
+                return null;
+            }
+        }
+        ByteBuffer page = seg.duplicate();
+        page.position(offset);
+        page.limit(offset + pageSize);
+        return page.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Notifies the mapping that the specified page was written. If the page
+     * lies past the mapped part of its segment, the segment is dropped so it
+     * is remapped with the new file length.
+     */
+    public void pageWritten(int pgNo) {
+        int segNo = pgNo / SEGMENT_PAGES;
+        MappedByteBuffer seg = segments.get(segNo);
+        if (seg != null && seg.capacity() < ((pgNo % SEGMENT_PAGES) + 1) * mappedPageSize) {
+            segments.remove(segNo, seg);
+        }
+    }
+
+    /** Drops every mapped segment. */
+    public void clear() {
+        segments.clear();
+    }
+
+    private synchronized MappedByteBuffer map(int segNo, int pageSize) throws IOException {
+        FileChannel fc = Database.getFileChannelManager().getChannel(dbFile, f);
+        long start = (long) segNo * SEGMENT_PAGES * pageSize;
+        long size = Math.max(0, Math.min((long) SEGMENT_PAGES * pageSize, fc.size() - start));
+        // never map past the end of the file, only whole pages
+        size -= size % pageSize;
+        MappedByteBuffer seg = fc.map(FileChannel.MapMode.READ_ONLY, start, size);
+        segments.put(segNo, seg);
+        return seg;
+    }
+}
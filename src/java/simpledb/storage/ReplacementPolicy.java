@@ -0,0 +1,46 @@
+package simpledb.storage;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Decides which page the BufferPool evicts when it is full. The pool tells
+ * the policy about every page that enters, is used again and leaves, and
+ * asks it for a victim; which pages may be evicted at all (clean ones, under
+ * NO-STEAL) is the pool's call, passed in as a predicate.
+ * <p>
+ * {@link #access} is called on every buffer pool hit and must be O(1)
+ * without taking a lock; ordering work belongs in {@link #victim}.
+ * Implementations are thread-safe; access may race with remove, and admit
+ * may be called for a page the policy already tracks.
+ *
+ * @see LruPolicy
+ * @see ClockPolicy
+ * @see TwoQueuePolicy
+ */
+public interface ReplacementPolicy {
+
+    /** A page entered the pool. */
+    void admit(PageId pid);
+
+    /** A page in the pool was used again; a no-op for pages not tracked. */
+    void access(PageId pid);
+
+    /** A page left the pool. */
+    void remove(PageId pid);
+
+    /**
+     * Picks the page to evict next among those for which evictable holds.
+     * The page stays tracked until {@link #remove} is called for it.
+     *
+     * @return the victim, or null if no page is evictable
+     */
+    PageId victim(Predicate<PageId> evictable);
+
+    /**
+     * Lists the pages tracked, hottest first: the page the policy would
+     * evict last comes first. Called rarely, to save the hot pages of the
+     * pool, so it may take O(n).
+     */
+    List<PageId> hottest();
+}
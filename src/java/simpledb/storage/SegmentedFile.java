@@ -0,0 +1,192 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * SegmentedFile stores the pages of a DbFile in a sequence of segment files
+ * of {@link #getSegmentPages()} pages each, so a table is not limited by the
+ * largest file the OS or the file system handles well. Segment 0 is the data
+ * file itself, segment i &gt; 0 is <code>&lt;data file&gt;.i</code>; page p
+ * lives in segment <code>p / segmentPages</code>. Every segment but the last
+ * is full. A SegmentedFile with segmentPages 0 is a plain single file.
+ * <p>
+ * All I/O is positional through the FileChannelManager, with a channel per
+ * segment, so pages of different segments (or of the same one) can be read
+ * concurrently.
+ *
+ * @Threadsafe
+ */
+public class SegmentedFile {
+
+    /** 1 GB segments of the default 4 KB pages */
+    public static final int DEFAULT_SEGMENT_PAGES = 1 << 18;
+
+    private final DbFile dbFile;
+    private final File f;
+    private final int segmentPages;
+    /** the last segment, or -1 if not known yet */
+    private volatile int lastSegment;
+
+    /**
+     * @param dbFile the DbFile whose pages are stored
+     * @param f the data file of dbFile, which is also segment 0
+     * @param segmentPages pages per segment, or 0 to keep every page in f
+     */
+    public SegmentedFile(DbFile dbFile, File f, int segmentPages) {
+        this.dbFile = dbFile;
+        this.f = f;
+        this.segmentPages = Math.max(0, segmentPages);
+        this.lastSegment = this.segmentPages == 0 ? 0 : -1;
+    }
+
+    /** @return the number of pages per segment, or 0 if f is not segmented */
+    public int getSegmentPages() {
+        return segmentPages;
+    }
+
+    /** @return the file of segment segNo */
+    public File getSegment(int segNo) {
+        return segNo == 0 ? f : new File(f.getPath() + "." + segNo);
+    }
+
+    /** @return the number of segment files */
+    public int numSegments() {
+        return lastSegment() + 1;
+    }
+
+    /** @return the number of pages stored */
+    public int numPages() {
+        long pageSize = BufferPool.getPageSize();
+        int last = lastSegment();
+        return (int) ((long) last * segmentPages + getSegment(last).length() / pageSize);
+    }
+
+    /**
+     * Reads page pgNo into buf.
+     *
+     * @return the number of bytes read, less than the remaining bytes of buf
+     *         only past the end of the file
+     */
+    public int read(int pgNo, ByteBuffer buf) throws IOException {
+        int segNo = segmentOf(pgNo);
+        if (segNo > lastSegment()) {
+            return 0;
+        }
+        return Database.getFileChannelManager().read(dbFile, getSegment(segNo), buf, offsetOf(pgNo));
+    }
+
+    /**
+     * Writes page pgNo, which must be an existing page or the page right
+     * after the last one.
+     */
+    public void write(int pgNo, ByteBuffer buf) throws IOException {
+        int segNo = segmentOf(pgNo);
+        Database.getFileChannelManager().write(dbFile, getSegment(segNo), buf, offsetOf(pgNo));
+        if (segNo > lastSegment()) {
+            synchronized (this) {
+                lastSegment = Math.max(lastSegment, segNo);
+            }
+        }
+    }
+
+    /**
+     * Grows the file with zero-filled pages until it has at least numPages
+     * pages, creating segments as needed.
+     */
+    public synchronized void preallocate(int numPages) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        ByteBuffer zeros = ByteBuffer.allocate(pageSize * 64);
+        for (int pgNo = numPages(); pgNo < numPages; ) {
+            int segNo = segmentOf(pgNo);
+            int segEnd = segmentPages == 0 ? numPages : Math.min(numPages, (segNo + 1) * segmentPages);
+            int n = Math.min(segEnd - pgNo, 64);
+            zeros.clear().limit(n * pageSize);
+            write(pgNo, zeros);
+            pgNo += n;
+        }
+    }
+
+    /**
+     * Drops every page from numPages on, deleting the segments that become
+     * empty.
+     */
+    public synchronized void truncate(int numPages) throws IOException {
+        long pageSize = BufferPool.getPageSize();
+        int keep = numPages == 0 ? 0 : segmentOf(numPages - 1);
+        for (int segNo = lastSegment(); segNo > keep; segNo--) {
+            File seg = getSegment(segNo);
+            Database.getFileChannelManager().close(dbFile, seg);
+            if (!seg.delete()) {
+                throw new IOException("cannot delete segment " + seg);
+            }
+            lastSegment = segNo - 1;
+        }
+        long pages = segmentPages == 0 ? numPages : numPages - (long) keep * segmentPages;
+        Database.getFileChannelManager().getChannel(dbFile, getSegment(keep)).truncate(pages * pageSize);
+    }
+
+    private int segmentOf(int pgNo) {
+        return segmentPages == 0 ? 0 : pgNo / segmentPages;
+    }
+
+    private long offsetOf(int pgNo) {
+        long inSegment = segmentPages == 0 ? pgNo : pgNo % segmentPages;
+        return inSegment * BufferPool.getPageSize();
+    }
+
+    private int lastSegment() {
+        int last = lastSegment;
+        if (last >= 0) {
+            return last;
+        }
+        synchronized (this) {
+            if (lastSegment < 0) {
+                try {
+                    splitOversizedFile();
+                } catch (IOException e) {
+                    throw new RuntimeException("cannot split " + f + " into segments", e);
+                }
+                int n = 0;
+                while (getSegment(n + 1).exists()) {
+                    n++;
+                }
+                lastSegment = n;
+            }
+            return lastSegment;
+        }
+    }
+
+    /**
+     * Moves the pages of a data file written as a single file (by
+     * HeapFileEncoder, say) that lie past its first segment into segment
+     * files of their own.
+     */
+    private void splitOversizedFile() throws IOException {
+        long segmentBytes = (long) segmentPages * BufferPool.getPageSize();
+        if (f.length() <= segmentBytes || getSegment(1).exists()) {
+            return;
+        }
+        try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            for (int segNo = 1; (long) segNo * segmentBytes < size; segNo++) {
+                try (FileChannel out = FileChannel.open(getSegment(segNo).toPath(), StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    long start = (long) segNo * segmentBytes;
+                    long n = Math.min(segmentBytes, size - start);
+                    for (long done = 0; done < n; ) {
+                        done += in.transferTo(start + done, n - done, out);
+                    }
+                }
+            }
+            // only once every page is in its segment
+            in.truncate(segmentBytes);
+        }
+        Database.getFileChannelManager().close(dbFile, f);
+    }
+}
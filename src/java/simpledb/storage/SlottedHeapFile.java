@@ -0,0 +1,129 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * SlottedHeapFile is a HeapFile whose pages are SlottedHeapPages: every
+ * tuple takes only the bytes its fields need instead of the fixed
+ * {@link TupleDesc#getSize()}, which pays off for tables with
+ * {@link simpledb.common.Type#VARCHAR_TYPE} columns. Page ids, the file
+ * layout (a sequence of fixed-size pages), scans and the free-space map work
+ * as in HeapFile; the free-space map records free bytes per page.
+ *
+ * @see SlottedHeapPage
+ */
+public class SlottedHeapFile extends HeapFile {
+
+    public SlottedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+    }
+
+    /**
+     * @see HeapFile#HeapFile(File, TupleDesc, boolean)
+     */
+    public SlottedHeapFile(File f, TupleDesc td, boolean mmap) {
+        super(f, td, mmap);
+    }
+
+    /**
+     * @see HeapFile#HeapFile(File, TupleDesc, boolean, boolean)
+     */
+    public SlottedHeapFile(File f, TupleDesc td, boolean mmap, boolean compress) {
+        super(f, td, mmap, compress);
+    }
+
+    /**
+     * @see HeapFile#HeapFile(File, TupleDesc, boolean, boolean, int)
+     */
+    public SlottedHeapFile(File f, TupleDesc td, boolean mmap, boolean compress, int segmentPages) {
+        super(f, td, mmap, compress, segmentPages);
+    }
+
+    @Override
+    protected Page createPage(HeapPageId pid, byte[] data) throws IOException {
+        return new SlottedHeapPage(pid, data);
+    }
+
+    @Override
+    protected Page createPage(HeapPageId pid, ByteBuffer frame) throws IOException {
+        return createPage(pid, HeapPage.copyOf(frame));
+    }
+
+    @Override
+    protected int freeSpaceOf(Page page) {
+        return ((SlottedHeapPage) page).getFreeSpace();
+    }
+
+    @Override
+    protected Iterator<Tuple> tupleIterator(Page page) {
+        return ((SlottedHeapPage) page).iterator();
+    }
+
+    // see DbFile.java for javadocs
+    public List<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        int needed = SlottedHeapPage.recordSize(t);
+        if (needed > SlottedHeapPage.maxRecordSize()) {
+            throw new DbException("tuple of " + needed + " bytes does not fit in a page");
+        }
+        // a page with room for the tuple and a new slot surely has room
+        FreeSpaceMap freeSpace = getFreeSpaceMap();
+        needed += SlottedHeapPage.SLOT_SIZE;
+        List<Page> pageList = new ArrayList<>();
+        for (int i = freeSpace.nextPageWithSpace(0, numPages(), needed); i >= 0;
+             i = freeSpace.nextPageWithSpace(i + 1, numPages(), needed)) {
+            HeapPageId pid = new HeapPageId(getId(), i);
+            boolean held = Database.getBufferPool().holdsLock(tid, pid);
+            SlottedHeapPage page = (SlottedHeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+            if (page.hasRoomFor(t)) {
+                page.insertTuple(t);
+                freeSpace.update(i, page.getFreeSpace());
+                getZoneMap().tupleInserted(i, t);
+                pageList.add(page);
+                return pageList;
+            }
+            // stale hint; don't keep a lock we only took to look at the page
+            freeSpace.update(i, page.getFreeSpace());
+            if (!held) {
+                Database.getBufferPool().unsafeReleasePage(tid, pid);
+            }
+        }
+        // then adding new page to the file
+        HeapPageId pid;
+        synchronized (this) {
+            pid = new HeapPageId(getId(), numPages());
+            writePage(new SlottedHeapPage(pid, SlottedHeapPage.createEmptyPageData()));
+        }
+        SlottedHeapPage page = (SlottedHeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        page.insertTuple(t);
+        page.markDirty(true, tid);
+        freeSpace.update(pid.getPageNumber(), page.getFreeSpace());
+        getZoneMap().tupleInserted(pid.getPageNumber(), t);
+        pageList.add(page);
+        return pageList;
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
+            TransactionAbortedException {
+        RecordId recordId = t.getRecordId();
+        if (recordId == null) {
+            throw new DbException("the tuple cannot be deleted or is not a member of the file");
+        }
+        HeapPageId pageId = (HeapPageId) recordId.getPageId();
+        SlottedHeapPage page = (SlottedHeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        getFreeSpaceMap().update(pageId.getPageNumber(), page.getFreeSpace());
+        ArrayList<Page> pageList = new ArrayList<>();
+        pageList.add(page);
+        return pageList;
+    }
+}
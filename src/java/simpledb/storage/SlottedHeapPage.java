@@ -0,0 +1,447 @@
+package simpledb.storage;
+
+import simpledb.common.Catalog;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Each instance of SlottedHeapPage stores data for one page of a
+ * SlottedHeapFile. Unlike a HeapPage, whose tuples all take
+ * {@link TupleDesc#getSize()} bytes, a slotted page stores every tuple in
+ * just the bytes its fields need, so tables with {@link Type#VARCHAR_TYPE}
+ * columns holding short values fit many more tuples per page.
+ * <p>
+ * The layout of a page is:
+ * <pre>
+ *   | numSlots | slot 0 | slot 1 | ... | free space | ... tuple 1 | tuple 0 |
+ * </pre>
+ * numSlots is an unsigned short. Each slot is an unsigned short offset of
+ * the tuple bytes in the page followed by an unsigned short length; an offset
+ * of 0 marks an empty slot. Tuple bytes are packed at the end of the page,
+ * and are re-packed every time the page is written, so space freed by deletes
+ * is reused without a separate compaction step. The slot number of a tuple is
+ * the tuple number of its RecordId and does not change while the tuple lives.
+ *
+ * @see SlottedHeapFile
+ * @see BufferPool
+ */
+public class SlottedHeapPage implements Page {
+
+    /** bytes used by the slot count at the start of the page */
+    public static final int HEADER_SIZE = 2;
+    /** bytes used by one slot of the directory */
+    public static final int SLOT_SIZE = 4;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    /** the page bytes this page was created from; never modified */
+    private final byte[] source;
+
+    private int numSlots;
+    /** offset in source of the bytes of each slot not decoded yet */
+    private int[] offsets;
+    /** length of the tuple in each slot, or -1 for an empty slot */
+    private int[] lengths;
+    /** decoded tuples; null for a slot not decoded yet */
+    private Tuple[] tuples;
+    /** bytes used by the header, the directory and the tuples */
+    private int usedBytes;
+    /** no slot below this one is empty */
+    private int nextFreeSlot;
+
+    private boolean dirty;
+    private TransactionId tid;
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Create a SlottedHeapPage from a set of bytes of data read from disk.
+     * The page keeps a reference to data and decodes tuples from it on
+     * demand, so the caller must not modify the array afterwards.
+     *
+     * @see Catalog#getTupleDesc
+     * @see BufferPool#getPageSize()
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.source = data;
+        int pageSize = BufferPool.getPageSize();
+        if (pageSize > 0xffff) {
+            throw new IOException("page size " + pageSize + " too large for a slotted page");
+        }
+        if (data.length < pageSize) {
+            throw new IOException("page " + id.getPageNumber() + " is truncated");
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        numSlots = buf.getShort(0) & 0xffff;
+        int dirEnd = HEADER_SIZE + numSlots * SLOT_SIZE;
+        if (dirEnd > pageSize) {
+            throw new IOException("bad slot directory on page " + id.getPageNumber());
+        }
+        offsets = new int[Math.max(numSlots, 8)];
+        lengths = new int[offsets.length];
+        tuples = new Tuple[offsets.length];
+        usedBytes = dirEnd;
+        nextFreeSlot = numSlots;
+        for (int i = 0; i < numSlots; i++) {
+            int off = buf.getShort(HEADER_SIZE + i * SLOT_SIZE) & 0xffff;
+            int len = buf.getShort(HEADER_SIZE + i * SLOT_SIZE + 2) & 0xffff;
+            if (off == 0) {
+                lengths[i] = -1;
+                nextFreeSlot = Math.min(nextFreeSlot, i);
+                continue;
+            }
+            if (off < dirEnd || off + len > pageSize) {
+                throw new IOException("bad slot " + i + " on page " + id.getPageNumber());
+            }
+            offsets[i] = off;
+            lengths[i] = len;
+            usedBytes += len;
+        }
+
+        // data is never modified, so it doubles as the before image
+        synchronized (oldDataLock) {
+            oldData = data;
+        }
+    }
+
+    /**
+     * Returns the number of bytes a tuple takes on a slotted page, not
+     * counting its slot.
+     */
+    public static int recordSize(Tuple t) {
+        TupleDesc desc = t.getTupleDesc();
+        int size = 0;
+        for (int j = 0; j < desc.numFields(); j++) {
+            Field f = t.getField(j);
+            if (f instanceof VarStringField) {
+                size += ((VarStringField) f).getSerializedLength();
+            } else {
+                size += desc.getFieldType(j).getLen();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the largest tuple (see {@link #recordSize}) an empty page can hold.
+     */
+    public static int maxRecordSize() {
+        return BufferPool.getPageSize() - HEADER_SIZE - SLOT_SIZE;
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public SlottedHeapPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new SlottedHeapPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData();
+        }
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Returns the tuple stored in a used slot, decoding it from the source
+     * bytes the first time it is accessed.
+     */
+    private Tuple getSlotTuple(int slotId) throws NoSuchElementException {
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = decode(slotId, offsets[slotId], lengths[slotId]);
+            tuples[slotId] = t;
+        }
+        return t;
+    }
+
+    private Tuple decode(int slotId, int offset, int length) throws NoSuchElementException {
+        ByteBuffer buf = ByteBuffer.wrap(source, offset, length);
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                t.setField(j, td.getFieldType(j).parse(buf));
+            }
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+        return t;
+    }
+
+    /**
+     * Returns the tuple with the specified RecordId.
+     *
+     * @throws NoSuchElementException if the record is not on this page or its
+     *         slot is empty
+     */
+    public Tuple getTuple(RecordId rid) throws NoSuchElementException {
+        int slotId = rid.getTupleNumber();
+        if (!pid.equals(rid.getPageId()) || !isSlotUsed(slotId)) {
+            throw new NoSuchElementException("no tuple " + slotId + " on page " + pid.getPageNumber());
+        }
+        return getSlotTuple(slotId);
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, with
+     * the tuples packed at the end of the page in slot order.
+     *
+     * @see #SlottedHeapPage
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public byte[] getPageData() {
+        List<byte[]> records = new ArrayList<>(numSlots);
+        for (int i = 0; i < numSlots; i++) {
+            if (lengths[i] < 0) {
+                records.add(null);
+            } else if (tuples[i] == null) {
+                // never decoded: copy its bytes as they are
+                records.add(Arrays.copyOfRange(source, offsets[i], offsets[i] + lengths[i]));
+            } else {
+                records.add(serialize(tuples[i]));
+            }
+        }
+        return createPageData(records, BufferPool.getPageSize());
+    }
+
+    /**
+     * Serializes the fields of a tuple the way they are stored on a slotted page.
+     */
+    public static byte[] serialize(Tuple t) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(recordSize(t));
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < t.getTupleDesc().numFields(); j++) {
+                t.getField(j).serialize(dos);
+            }
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Lays out a slotted page holding the specified serialized tuples; a null
+     * entry becomes an empty slot. Used by getPageData and HeapFileEncoder.
+     *
+     * @param records the bytes of the tuple in each slot, see {@link #serialize}
+     * @param pageSize the size of the page to create
+     * @throws IllegalArgumentException if the tuples do not fit in the page
+     */
+    public static byte[] createPageData(List<byte[]> records, int pageSize) {
+        byte[] data = new byte[pageSize];
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        int end = pageSize;
+        int dirEnd = HEADER_SIZE + records.size() * SLOT_SIZE;
+        buf.putShort(0, (short) records.size());
+        for (int i = 0; i < records.size(); i++) {
+            byte[] rec = records.get(i);
+            if (rec == null) {
+                continue;
+            }
+            end -= rec.length;
+            if (end < dirEnd) {
+                throw new IllegalArgumentException("tuples do not fit in a page of " + pageSize + " bytes");
+            }
+            System.arraycopy(rec, 0, data, end, rec.length);
+            buf.putShort(HEADER_SIZE + i * SLOT_SIZE, (short) end);
+            buf.putShort(HEADER_SIZE + i * SLOT_SIZE + 2, (short) rec.length);
+        }
+        return data;
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * SlottedHeapPage.
+     *
+     * @return The returned ByteArray.
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()]; //all 0: no slots
+    }
+
+    /**
+     * Delete the specified tuple from the page; its slot becomes empty and
+     * its bytes are free for other tuples.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     * @param t The tuple to delete
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId recordId = t.getRecordId();
+        if (recordId == null || !pid.equals(recordId.getPageId())) {
+            throw new DbException("Page id not match");
+        }
+        int slotId = recordId.getTupleNumber();
+        if (!isSlotUsed(slotId)) {
+            throw new DbException("Slot is not used");
+        }
+        usedBytes -= lengths[slotId];
+        lengths[slotId] = -1;
+        tuples[slotId] = null;
+        nextFreeSlot = Math.min(nextFreeSlot, slotId);
+        // trailing empty slots give their directory entry back
+        while (numSlots > 0 && lengths[numSlots - 1] < 0) {
+            numSlots--;
+            usedBytes -= SLOT_SIZE;
+        }
+    }
+
+    /**
+     * Returns true if the specified tuple fits on this page.
+     */
+    public boolean hasRoomFor(Tuple t) {
+        int needed = recordSize(t) + (nextFreeSlot < numSlots ? 0 : SLOT_SIZE);
+        return needed <= getFreeSpace();
+    }
+
+    /**
+     * Adds the specified tuple to the page; the tuple should be updated to
+     * reflect that it is now stored on this page.
+     * @throws DbException if the page does not have room for the tuple or
+     *         tupledesc is mismatch.
+     * @param t The tuple to add.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td)) {
+            throw new DbException("the tupledesc is mismatch");
+        }
+        if (!hasRoomFor(t)) {
+            throw new DbException(" the page is full");
+        }
+        int slotId = nextFreeSlot;
+        if (slotId == numSlots) {
+            if (numSlots == offsets.length) {
+                int n = offsets.length * 2;
+                offsets = Arrays.copyOf(offsets, n);
+                lengths = Arrays.copyOf(lengths, n);
+                tuples = Arrays.copyOf(tuples, n);
+            }
+            numSlots++;
+            usedBytes += SLOT_SIZE;
+        }
+        int length = recordSize(t);
+        lengths[slotId] = length;
+        usedBytes += length;
+        t.setRecordId(new RecordId(pid, slotId));
+        tuples[slotId] = t;
+        nextFreeSlot = slotId + 1;
+        while (nextFreeSlot < numSlots && lengths[nextFreeSlot] >= 0) {
+            nextFreeSlot++;
+        }
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        this.tid = tid;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        return dirty ? tid : null;
+    }
+
+    /**
+     * Returns the number of free bytes on this page, counting the bytes of
+     * deleted tuples.
+     */
+    public int getFreeSpace() {
+        return BufferPool.getPageSize() - usedBytes;
+    }
+
+    /**
+     * Returns the number of slots of the directory, used or not.
+     */
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return i >= 0 && i < numSlots && lengths[i] >= 0;
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        // iterate over the tuples on the page when the iterator was created,
+        // like a snapshot, but only decode each tuple when it is reached
+        final int n = numSlots;
+        final int[] snapOffsets = Arrays.copyOf(offsets, n);
+        final int[] snapLengths = Arrays.copyOf(lengths, n);
+        final Tuple[] snapTuples = Arrays.copyOf(tuples, n);
+        return new Iterator<Tuple>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                int i = from;
+                while (i < n && snapLengths[i] < 0) {
+                    i++;
+                }
+                return i;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < n;
+            }
+
+            @Override
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int i = next;
+                Tuple t = snapTuples[i];
+                if (t == null) {
+                    t = decode(i, snapOffsets[i], snapLengths[i]);
+                    if (tuples[i] == null && lengths[i] == snapLengths[i] && offsets[i] == snapOffsets[i]) {
+                        tuples[i] = t;
+                    }
+                }
+                next = advance(i + 1);
+                return t;
+            }
+        };
+    }
+}
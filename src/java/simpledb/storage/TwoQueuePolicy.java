@@ -0,0 +1,148 @@
+package simpledb.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * 2Q (Johnson and Shasha). A page read for the first time goes to A1in, a
+ * FIFO queue holding about a quarter of the pool, and hits there do not
+ * count: a scan passes through A1in without pushing anything else out.
+ * Pages evicted from A1in are remembered (without their data) in the ghost
+ * queue A1out; a page read again while remembered there has been used
+ * twice at a distance, so it goes to Am, an LRU list of the pages worth
+ * keeping. All bookkeeping is O(1); Am is an {@link LruPolicy}, so hits
+ * take no lock.
+ *
+ * @Threadsafe
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+
+    private static final int A1IN = 0;
+    private static final int AM = 1;
+    private static final int A1OUT = 2;
+
+    private static final class Node {
+        final PageId pid;
+        /** read by access without the lock */
+        volatile int queue;
+        Node prev;
+        Node next;
+
+        Node(PageId pid, int queue) {
+            this.pid = pid;
+            this.queue = queue;
+        }
+    }
+
+    private final ConcurrentHashMap<PageId, Node> nodes = new ConcurrentHashMap<>();
+    /** sentinels of A1in and A1out; the first page of each list is the oldest */
+    private final Node[] heads = new Node[3];
+    private final int[] sizes = new int[3];
+    private final LruPolicy am = new LruPolicy();
+    private final int maxIn;
+    private final int maxOut;
+
+    /**
+     * @param capacity number of pages in the buffer pool
+     */
+    public TwoQueuePolicy(int capacity) {
+        for (int q : new int[]{A1IN, A1OUT}) {
+            heads[q] = new Node(null, q);
+            heads[q].prev = heads[q];
+            heads[q].next = heads[q];
+        }
+        this.maxIn = Math.max(1, capacity / 4);
+        this.maxOut = Math.max(1, capacity / 2);
+    }
+
+    @Override
+    public synchronized void admit(PageId pid) {
+        Node n = nodes.get(pid);
+        if (n == null) {
+            n = new Node(pid, A1IN);
+            nodes.put(pid, n);
+            append(n, A1IN);
+        } else if (n.queue == A1OUT) {
+            unlink(n);
+            n.queue = AM;
+            am.admit(pid);
+        } else if (n.queue == AM) {
+            am.admit(pid);
+        }
+    }
+
+    @Override
+    public void access(PageId pid) {
+        Node n = nodes.get(pid);
+        if (n != null && n.queue == AM) {
+            am.access(pid);
+        }
+    }
+
+    @Override
+    public synchronized void remove(PageId pid) {
+        Node n = nodes.get(pid);
+        if (n == null || n.queue == A1OUT) {
+            return;
+        }
+        if (n.queue == A1IN) {
+            unlink(n);
+            append(n, A1OUT);
+            if (sizes[A1OUT] > maxOut) {
+                Node oldest = heads[A1OUT].next;
+                unlink(oldest);
+                nodes.remove(oldest.pid);
+            }
+        } else {
+            am.remove(pid);
+            nodes.remove(pid);
+        }
+    }
+
+    @Override
+    public synchronized PageId victim(Predicate<PageId> evictable) {
+        if (sizes[A1IN] > maxIn || am.size() == 0) {
+            PageId pid = oldest(A1IN, evictable);
+            return pid != null ? pid : am.victim(evictable);
+        }
+        PageId pid = am.victim(evictable);
+        return pid != null ? pid : oldest(A1IN, evictable);
+    }
+
+    /** Am, then A1in, newest first; the ghosts in A1out are not in the pool */
+    @Override
+    public synchronized List<PageId> hottest() {
+        List<PageId> pages = new ArrayList<>(am.hottest());
+        for (Node n = heads[A1IN].prev; n != heads[A1IN]; n = n.prev) {
+            pages.add(n.pid);
+        }
+        return pages;
+    }
+
+    private PageId oldest(int q, Predicate<PageId> evictable) {
+        for (Node n = heads[q].next; n != heads[q]; n = n.next) {
+            if (evictable.test(n.pid)) {
+                return n.pid;
+            }
+        }
+        return null;
+    }
+
+    private void append(Node n, int q) {
+        Node head = heads[q];
+        n.queue = q;
+        n.next = head;
+        n.prev = head.prev;
+        head.prev.next = n;
+        head.prev = n;
+        sizes[q]++;
+    }
+
+    private void unlink(Node n) {
+        n.prev.next = n.next;
+        n.next.prev = n.prev;
+        sizes[n.queue]--;
+    }
+}
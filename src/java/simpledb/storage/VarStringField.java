@@ -0,0 +1,52 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.io.*;
+
+/**
+ * Instance of Field that stores a single String of variable length, for
+ * columns of type {@link Type#VARCHAR_TYPE}. It compares and hashes like a
+ * StringField with the same value, but is serialized without padding.
+ */
+public class VarStringField extends StringField {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param s
+	 *            The value of this field; longer values are cut to
+	 *            {@link Type#STRING_LEN} characters.
+	 */
+	public VarStringField(String s) {
+		super(s, Type.STRING_LEN);
+	}
+
+	/**
+	 * Write this string to dos. First four bytes are the string length, next
+	 * bytes are the string; nothing is written after it.
+	 *
+	 * @param dos
+	 *            Where the string is written
+	 */
+	public void serialize(DataOutputStream dos) throws IOException {
+		dos.writeInt(getValue().length());
+		dos.writeBytes(getValue());
+	}
+
+	/**
+	 * @return the number of bytes serialize writes for this field
+	 */
+	public int getSerializedLength() {
+		return 4 + getValue().length();
+	}
+
+	/**
+	 * @return the Type for this Field
+	 */
+	public Type getType() {
+		return Type.VARCHAR_TYPE;
+	}
+}
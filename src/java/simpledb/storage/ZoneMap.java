@@ -0,0 +1,303 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * ZoneMap records, for every page of a HeapFile, the number of tuples on the
+ * page and the smallest and largest value of each integer column, so scans
+ * with a range predicate can skip pages that cannot hold a matching tuple
+ * without fetching them from the BufferPool. SimpleDB has no NULL values, so
+ * every tuple counts for every column. String columns are not tracked.
+ * <p>
+ * The map is persisted in a sidecar file (<code>&lt;data file&gt;.zm</code>)
+ * that, like the free-space map, starts with the stamp of the data file,
+ * written by {@link #writeStamp()}; the entry of a page is persisted
+ * whenever the page is written. Inserts widen the entry of their page in
+ * memory right away, deletes leave it alone, so an entry always covers
+ * every tuple that is on the page in the BufferPool or on disk, committed
+ * or not, and writing a page does not need to look at its tuples. Pages
+ * without a usable entry are never skipped; their entry is computed when
+ * they are read from disk, or written if that did not happen first, and
+ * persisted when they are next written.
+ *
+ * @Threadsafe
+ */
+public class ZoneMap {
+
+    /** count of a page whose entry is not known */
+    private static final int UNKNOWN = -1;
+
+    private final DbFile dbFile;
+    private final File dataFile;
+    private final File file;
+    /** the integer columns tracked, and the index of each in the entries */
+    private final int[] columns;
+    private final int[] slotOf;
+    /** bytes of one persisted entry: count + 1, then min and max per column */
+    private final int entrySize;
+
+    private int[] counts;
+    /** min and max of tracked column j of page p at [p * columns.length + j] */
+    private int[] mins;
+    private int[] maxs;
+    private int size;
+    /**
+     * unknown pages something was inserted into; what is on disk may miss
+     * those tuples, so the entry is only computed when the page is written
+     */
+    private final BitSet insertedUnknown;
+    private boolean loaded;
+    /** an entry was written since the stamp */
+    private boolean stampStale;
+
+    /**
+     * @param dbFile the HeapFile whose pages are tracked
+     * @param dataFile the data file of dbFile; the map lives next to it
+     * @param td the schema of the tuples of dbFile
+     */
+    public ZoneMap(DbFile dbFile, File dataFile, TupleDesc td) {
+        this.dbFile = dbFile;
+        this.dataFile = dataFile;
+        this.file = new File(dataFile.getPath() + ".zm");
+        this.slotOf = new int[td.numFields()];
+        int n = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            slotOf[i] = td.getFieldType(i) == Type.INT_TYPE ? n++ : -1;
+        }
+        this.columns = new int[n];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (slotOf[i] >= 0) columns[slotOf[i]] = i;
+        }
+        this.entrySize = 4 + 8 * n;
+        this.counts = new int[0];
+        this.mins = new int[0];
+        this.maxs = new int[0];
+        this.size = 0;
+        this.insertedUnknown = new BitSet();
+        this.loaded = false;
+    }
+
+    /** @return the sidecar file holding the map */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns false if no tuple on the page can satisfy all the predicates,
+     * whose fields are indexes in the TupleDesc of the file.
+     */
+    public synchronized boolean mayMatch(int pgNo, List<Predicate> predicates) {
+        ensureSize(pgNo + 1);
+        if (counts[pgNo] == UNKNOWN) {
+            return true;
+        }
+        if (counts[pgNo] == 0) {
+            return false;
+        }
+        for (Predicate p : predicates) {
+            int slot = p.getField() < slotOf.length ? slotOf[p.getField()] : -1;
+            if (slot < 0 || !(p.getOperand() instanceof IntField)) {
+                continue;
+            }
+            int v = ((IntField) p.getOperand()).getValue();
+            int min = mins[pgNo * columns.length + slot];
+            int max = maxs[pgNo * columns.length + slot];
+            boolean may;
+            switch (p.getOp()) {
+                case EQUALS: may = min <= v && v <= max; break;
+                case GREATER_THAN: may = max > v; break;
+                case GREATER_THAN_OR_EQ: may = max >= v; break;
+                case LESS_THAN: may = min < v; break;
+                case LESS_THAN_OR_EQ: may = min <= v; break;
+                case NOT_EQUALS: may = min != v || max != v; break;
+                default: may = true;
+            }
+            if (!may) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return the number of tuples recorded for a page, or -1 if not known */
+    public synchronized int getCount(int pgNo) {
+        ensureSize(pgNo + 1);
+        return counts[pgNo];
+    }
+
+    /** @return the smallest value recorded for an integer field of a page */
+    public synchronized int getMin(int pgNo, int field) {
+        ensureSize(pgNo + 1);
+        return mins[pgNo * columns.length + slotOf[field]];
+    }
+
+    /** @return the largest value recorded for an integer field of a page */
+    public synchronized int getMax(int pgNo, int field) {
+        ensureSize(pgNo + 1);
+        return maxs[pgNo * columns.length + slotOf[field]];
+    }
+
+    /** Widens the entry of a page by a tuple just inserted into it, in memory only. */
+    public synchronized void tupleInserted(int pgNo, Tuple t) {
+        ensureSize(pgNo + 1);
+        if (counts[pgNo] == UNKNOWN) {
+            insertedUnknown.set(pgNo);
+            return;
+        }
+        counts[pgNo]++;
+        include(pgNo, t);
+    }
+
+    /**
+     * Widens the entry of a page by tuples it holds that are not on disk, in
+     * memory only; it never narrows the entry, as the tuples on disk may
+     * come back.
+     */
+    public synchronized void widen(int pgNo, Iterator<Tuple> tuples) {
+        ensureSize(pgNo + 1);
+        if (counts[pgNo] == UNKNOWN) {
+            insertedUnknown.set(pgNo);
+            return;
+        }
+        int n = 0;
+        while (tuples.hasNext()) {
+            n++;
+            include(pgNo, tuples.next());
+        }
+        counts[pgNo] = Math.max(counts[pgNo], n);
+    }
+
+    /**
+     * Computes the entry of a page read from disk if it is not known yet, in
+     * memory only; it is persisted the next time the page is written.
+     */
+    public synchronized void pageRead(int pgNo, Iterator<Tuple> tuples) {
+        ensureSize(pgNo + 1);
+        if (counts[pgNo] == UNKNOWN && !insertedUnknown.get(pgNo)) {
+            compute(pgNo, tuples);
+        }
+    }
+
+    /**
+     * Persists the entry of a page that was just written to disk. Only an
+     * entry not known yet is computed, from the tuples of the page; the
+     * stamp is left to {@link #writeStamp()}.
+     */
+    public synchronized void pageWritten(int pgNo, Supplier<Iterator<Tuple>> tuples) throws IOException {
+        ensureSize(pgNo + 1);
+        if (counts[pgNo] == UNKNOWN || insertedUnknown.get(pgNo)) {
+            insertedUnknown.clear(pgNo);
+            compute(pgNo, tuples.get());
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(entrySize);
+        buf.putInt(counts[pgNo] + 1);
+        for (int j = 0; j < columns.length; j++) {
+            buf.putInt(mins[pgNo * columns.length + j]);
+            buf.putInt(maxs[pgNo * columns.length + j]);
+        }
+        buf.flip();
+        Database.getFileChannelManager().write(dbFile, file, buf,
+                FreeSpaceMap.HEADER_SIZE + (long) pgNo * entrySize);
+        stampStale = true;
+    }
+
+    /**
+     * Stamps the sidecar with the current state of the data file, if an
+     * entry was written since it was last stamped.
+     */
+    public synchronized void writeStamp() throws IOException {
+        if (stampStale) {
+            Database.getFileChannelManager().write(dbFile, file, FreeSpaceMap.dataFileStamp(dataFile), 0);
+            stampStale = false;
+        }
+    }
+
+    private void compute(int pgNo, Iterator<Tuple> tuples) {
+        counts[pgNo] = 0;
+        Arrays.fill(mins, pgNo * columns.length, (pgNo + 1) * columns.length, Integer.MAX_VALUE);
+        Arrays.fill(maxs, pgNo * columns.length, (pgNo + 1) * columns.length, Integer.MIN_VALUE);
+        while (tuples.hasNext()) {
+            counts[pgNo]++;
+            include(pgNo, tuples.next());
+        }
+    }
+
+    private void include(int pgNo, Tuple t) {
+        for (int j = 0; j < columns.length; j++) {
+            int v = ((IntField) t.getField(columns[j])).getValue();
+            int k = pgNo * columns.length + j;
+            mins[k] = Math.min(mins[k], v);
+            maxs[k] = Math.max(maxs[k], v);
+        }
+    }
+
+    private void ensureSize(int numPages) {
+        if (!loaded) {
+            load();
+        }
+        if (numPages <= size) {
+            return;
+        }
+        if (numPages > counts.length) {
+            int newLength = Math.max(numPages, counts.length * 2);
+            counts = Arrays.copyOf(counts, newLength);
+            mins = Arrays.copyOf(mins, newLength * columns.length);
+            maxs = Arrays.copyOf(maxs, newLength * columns.length);
+        }
+        Arrays.fill(counts, size, numPages, UNKNOWN);
+        size = numPages;
+    }
+
+    private void load() {
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            ByteBuffer stamp = ByteBuffer.allocate(FreeSpaceMap.HEADER_SIZE);
+            Database.getFileChannelManager().read(dbFile, file, stamp, 0);
+            stamp.flip();
+            if (!stamp.equals(FreeSpaceMap.dataFileStamp(dataFile))) {
+                // the data file changed since; forget everything
+                Database.getFileChannelManager().getChannel(dbFile, file).truncate(0);
+                return;
+            }
+            long length = Math.max(0, file.length() - FreeSpaceMap.HEADER_SIZE);
+            int entries = (int) Math.min(length / entrySize, Integer.MAX_VALUE / entrySize);
+            ByteBuffer buf = ByteBuffer.allocate(entries * entrySize);
+            int read = Database.getFileChannelManager().read(dbFile, file, buf, FreeSpaceMap.HEADER_SIZE);
+            entries = read / entrySize;
+            buf.flip();
+            counts = new int[entries];
+            mins = new int[entries * columns.length];
+            maxs = new int[entries * columns.length];
+            for (int p = 0; p < entries; p++) {
+                counts[p] = buf.getInt() - 1;
+                for (int j = 0; j < columns.length; j++) {
+                    mins[p * columns.length + j] = buf.getInt();
+                    maxs[p * columns.length + j] = buf.getInt();
+                }
+            }
+            size = entries;
+        } catch (IOException e) {
+            // the map is only a hint; start over with every page unknown
+            e.printStackTrace();
+            counts = new int[0];
+            mins = new int[0];
+            maxs = new int[0];
+            size = 0;
+        }
+    }
+}
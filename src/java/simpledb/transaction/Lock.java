@@ -7,22 +7,62 @@ public class Lock {
     private TransactionId tid;
 //    LockType
     public enum LockType implements Serializable{
-        SHARING,EXCLUSIVE;
+        SHARING,EXCLUSIVE,
+        // intention modes, taken on a table before locking its pages
+        INTENTION_SHARING,INTENTION_EXCLUSIVE,SHARING_INTENTION_EXCLUSIVE;
         public static LockType getLockType(int i){ return values()[i];};
 
-    @Override
-    public String toString() {
-        if(this == SHARING){
-            return "SHARING";
+        /** whether two transactions may hold this and the other mode at once */
+        public boolean compatibleWith(LockType other){
+            switch (this){
+                case INTENTION_SHARING:
+                    return other!=EXCLUSIVE;
+                case INTENTION_EXCLUSIVE:
+                    return other==INTENTION_SHARING||other==INTENTION_EXCLUSIVE;
+                case SHARING:
+                    return other==INTENTION_SHARING||other==SHARING;
+                case SHARING_INTENTION_EXCLUSIVE:
+                    return other==INTENTION_SHARING;
+                default:
+                    return false;
+            }
         }
-        if(this ==EXCLUSIVE){
-            return "EXCLUSIVE";
+
+        /** whether holding this mode gives everything the other mode gives */
+        public boolean covers(LockType other){
+            switch (this){
+                case EXCLUSIVE:
+                    return true;
+                case SHARING_INTENTION_EXCLUSIVE:
+                    return other!=EXCLUSIVE;
+                case SHARING:
+                case INTENTION_EXCLUSIVE:
+                    return other==this||other==INTENTION_SHARING;
+                default:
+                    return other==this;
+            }
+        }
+
+        /** the weakest mode that gives everything this and the other mode give */
+        public LockType join(LockType other){
+            if(covers(other)){
+                return this;
+            }
+            if(other.covers(this)){
+                return other;
+            }
+            // SHARING and INTENTION_EXCLUSIVE
+            return SHARING_INTENTION_EXCLUSIVE;
         }
-        throw new IllegalArgumentException("error LockType");
+
+    @Override
+    public String toString() {
+        return name();
 
     }
 }
-    private LockType lockType;
+    // read without the entry latch by the owner's fast path
+    private volatile LockType lockType;
     public Lock( TransactionId tid, LockType lockType){
         this.tid=tid;
         this.lockType=lockType;
@@ -38,4 +78,8 @@ public class Lock {
             lockType=LockType.EXCLUSIVE;
         }
     }
+    /** Converts the lock to the weakest mode that also gives the other mode. */
+    public void upgradeTo(LockType other){
+        lockType=lockType.join(other);
+    }
 }
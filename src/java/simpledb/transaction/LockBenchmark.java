@@ -0,0 +1,117 @@
+package simpledb.transaction;
+
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the throughput of the deadlock policies of the LockManager on a
+ * synthetic workload of short transactions: each locks a few random pages
+ * out of a small set, some of them exclusively, then releases them all. An
+ * aborted transaction releases its locks and starts over on the same pages
+ * with the same id, so it keeps its age under WAIT_DIE and WOUND_WAIT.
+ * <p>
+ * Run with {@code java -cp dist/simpledb.jar simpledb.SimpleDb lockbench
+ * [threads] [pages] [locks per transaction] [write ratio] [ms per policy]}.
+ */
+public class LockBenchmark {
+    /** the table id of the pages locked, which need not exist */
+    private static final int TABLE_ID = -1;
+
+    public static class Result {
+        public final LockManager.DeadlockPolicy policy;
+        public final long commits;
+        public final long aborts;
+        public final long millis;
+
+        Result(LockManager.DeadlockPolicy policy, long commits, long aborts, long millis) {
+            this.policy = policy;
+            this.commits = commits;
+            this.aborts = aborts;
+            this.millis = millis;
+        }
+
+        /** @return the transactions committed per second */
+        public double throughput() {
+            return commits * 1000.0 / millis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-10s %10.0f commits/s %10.0f aborts/s",
+                    policy, throughput(), aborts * 1000.0 / millis);
+        }
+    }
+
+    /**
+     * Runs the workload against a fresh LockManager under the given policy.
+     *
+     * @param threads the number of transactions running at once
+     * @param pages the number of pages they lock among
+     * @param locks the number of pages each transaction locks
+     * @param writeRatio the share of the locks that are exclusive
+     * @param millis how long to run for
+     */
+    public static Result run(LockManager.DeadlockPolicy policy, int threads, int pages, int locks,
+                             double writeRatio, long millis) throws InterruptedException {
+        LockManager lm = new LockManager();
+        lm.setDeadlockPolicy(policy);
+        AtomicLong commits = new AtomicLong();
+        AtomicLong aborts = new AtomicLong();
+        long start = System.currentTimeMillis();
+        long deadline = start + millis;
+        List<Thread> workers = new ArrayList<>();
+        for (int w = 0; w < threads; w++) {
+            Random rnd = new Random(w);
+            Thread t = new Thread(() -> {
+                PageId[] pids = new PageId[locks];
+                Lock.LockType[] types = new Lock.LockType[locks];
+                while (System.currentTimeMillis() < deadline) {
+                    for (int i = 0; i < locks; i++) {
+                        pids[i] = new HeapPageId(TABLE_ID, rnd.nextInt(pages));
+                        types[i] = rnd.nextDouble() < writeRatio ? Lock.LockType.EXCLUSIVE : Lock.LockType.SHARING;
+                    }
+                    TransactionId tid = new TransactionId();
+                    while (System.currentTimeMillis() < deadline) {
+                        try {
+                            for (int i = 0; i < locks; i++) {
+                                lm.acquire(tid, pids[i], types[i]);
+                            }
+                            lm.realeaseAllLocks(tid);
+                            commits.incrementAndGet();
+                            break;
+                        } catch (TransactionAbortedException e) {
+                            lm.realeaseAllLocks(tid);
+                            aborts.incrementAndGet();
+                        }
+                    }
+                    lm.realeaseAllLocks(tid);
+                }
+            }, "simpledb-lock-benchmark-" + w);
+            t.setDaemon(true);
+            workers.add(t);
+            t.start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+        return new Result(policy, commits.get(), aborts.get(), System.currentTimeMillis() - start);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int pages = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int locks = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        double writeRatio = args.length > 3 ? Double.parseDouble(args[3]) : 0.5;
+        long millis = args.length > 4 ? Long.parseLong(args[4]) : 2000;
+        System.out.printf("%d threads, %d pages, %d locks per transaction, %.0f%% exclusive%n",
+                threads, pages, locks, writeRatio * 100);
+        for (LockManager.DeadlockPolicy policy : LockManager.DeadlockPolicy.values()) {
+            System.out.println(run(policy, threads, pages, locks, writeRatio, millis));
+        }
+    }
+}
@@ -1,19 +1,119 @@
 package simpledb.transaction;
-import simpledb.storage.Page;
+import simpledb.storage.Graph;
 import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
 
-import java.lang.invoke.ConstantCallSite;
-import java.lang.management.LockInfo;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 
+/**
+ * Table, page and record locks with a queue of waiting requests per table,
+ * page or record.
+ * A request that cannot be granted at once parks on its own condition
+ * until a release grants it; requests are granted in the order they
+ * arrived, except that an upgrade goes ahead of the plain requests, since
+ * the upgrader already holds a lock there.
+ * <p>
+ * A page lock comes with an intention lock on its table: INTENTION_SHARING
+ * for a shared page lock, INTENTION_EXCLUSIVE for an exclusive one. A
+ * transaction holding a shared or exclusive lock on the whole table needs
+ * no page locks under it. Likewise a record lock comes with an intention
+ * lock on its page, and on its table, so transactions changing different
+ * tuples of a page can hold it at once, while a shared or exclusive page
+ * lock covers all the records of the page. Once a transaction holds
+ * {@link #getEscalationThreshold()} page locks in a table, they are traded
+ * for one lock on the table, if it can be had without waiting.
+ * <p>
+ * Each table, page and record has its own latch, the monitor of its
+ * LockEntry, so requests for different keys never wait for each other's
+ * bookkeeping, and a transaction asking again for a lock it holds reads
+ * the lock table without any latch at all. Only the wait-for graph and the
+ * map of waiting requests share one latch, waitLatch, which is taken after
+ * an entry latch, never before one.
+ * <p>
+ * The queues keep a wait-for graph up to date as requests come and go. A
+ * background detector looks for cycles in it every DETECT_INTERVAL_MS
+ * while anyone waits, and breaks each by aborting the wait of its
+ * cheapest transaction: the one holding the fewest locks, and of those
+ * the youngest.
+ * <p>
+ * Instead of detecting deadlocks, the lock manager can also prevent them,
+ * see {@link DeadlockPolicy}. The age of a transaction is given by its id:
+ * the smaller the id, the older the transaction.
+ */
 public class LockManager {
+    /** how often the deadlock detector looks for cycles while anyone waits, in ms */
+    public static final long DETECT_INTERVAL_MS = 10;
+    /** how long a request waits under the TIMEOUT policy by default, in ms */
+    public static final long DEFAULT_LOCK_TIMEOUT_MS = 100;
+    /** how many page locks of a table a transaction holds before they become a table lock, by default */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 512;
+
+    /** What a transaction does about a lock it cannot be granted at once. */
+    public enum DeadlockPolicy {
+        /** wait; the deadlock detector breaks cycles of waits */
+        DETECT,
+        /** an older transaction waits for younger ones; a younger one aborts rather than wait for an older one */
+        WAIT_DIE,
+        /** an older transaction aborts the younger ones in its way; a younger one waits for older ones */
+        WOUND_WAIT,
+        /** abort rather than wait */
+        NO_WAIT,
+        /** wait at most the lock timeout, then abort */
+        TIMEOUT
+    }
+
+    /** the key of the locks on a whole table in the lock table */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId){
+            this.tableId=tableId;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            return o instanceof TableKey&&((TableKey) o).tableId==tableId;
+        }
+
+        @Override
+        public int hashCode(){
+            return Integer.hashCode(tableId);
+        }
+    }
+
+    /** a request waiting in the queue of a table or page; an upgrade asks for the joined mode */
+    private static final class Request {
+        final TransactionId tid;
+        final Lock.LockType lockType;
+        final boolean upgrade;
+        /** the waiting thread, unparked once the request is granted or aborted */
+        final Thread thread=Thread.currentThread();
+        volatile boolean granted;
+        /** chosen as the victim of a deadlock */
+        volatile boolean aborted;
+
+        Request(TransactionId tid, Lock.LockType lockType, boolean upgrade){
+            this.tid=tid;
+            this.lockType=lockType;
+            this.upgrade=upgrade;
+        }
+    }
+
+    /** The owners and the queue of one key; its monitor is the latch of the key. */
     public class LockEntry{
         private ConcurrentHashMap<TransactionId,Lock> owners;
+        // 等待的请求, 先到先得; 升级请求排在普通请求前面
+        private final LinkedList<Request> waiters;
+        /** removed from the lock table; a new entry takes the key */
+        private boolean dropped;
          public LockEntry(){
             this.owners= new ConcurrentHashMap<>();
+            this.waiters= new LinkedList<>();
         }
         private void moveToOwners(Lock l){
             owners.put(l.getTid(),l);
@@ -29,117 +129,736 @@ public class LockManager {
              }
             return flag;
         }
+
+        private void enqueue(Request r){
+            if(!r.upgrade){
+                waiters.addLast(r);
+                return;
+            }
+            // behind the upgrades already waiting, ahead of everything else
+            ListIterator<Request> it=waiters.listIterator();
+            while(it.hasNext()){
+                if(!it.next().upgrade){
+                    it.previous();
+                    break;
+                }
+            }
+            it.add(r);
+        }
+
+        private boolean unused(){
+            return owners.isEmpty()&&waiters.isEmpty();
+        }
     }
-     private ConcurrentHashMap<PageId,LockEntry> LockTable;
+    // keyed by PageId for pages, by TableKey for tables
+     private ConcurrentHashMap<Object,LockEntry> LockTable;
+    // 每个事务持有锁的页和表, 释放时不用扫整个LockTable
+     private ConcurrentHashMap<TransactionId,Set<Object>> lockedBy;
+    /** how many page and record locks each transaction holds in each table */
+    private final ConcurrentHashMap<TransactionId,ConcurrentHashMap<Integer,Integer>> pageLocks=new ConcurrentHashMap<>();
+    private volatile int escalationThreshold=DEFAULT_ESCALATION_THRESHOLD;
+    /** guards waitsFor, waiting, wounded and detector; taken after an entry latch, never before */
+    private final Object waitLatch=new Object();
+    /** who each waiting transaction waits for */
+    private final Graph waitsFor=new Graph();
+    /** the request each waiting transaction waits on */
+    private final HashMap<TransactionId,Request> waiting=new HashMap<>();
+    private DeadlockDetector detector;
+    private volatile DeadlockPolicy policy=DeadlockPolicy.DETECT;
+    private volatile long lockTimeoutMs=DEFAULT_LOCK_TIMEOUT_MS;
+    /** transactions aborted by an older one under WOUND_WAIT, until they complete; read without waitLatch */
+    private final Set<TransactionId> wounded=ConcurrentHashMap.newKeySet();
 
     public LockManager()
     {
         this.LockTable = new ConcurrentHashMap<>();
+        this.lockedBy = new ConcurrentHashMap<>();
+
+    }
+
+    /**
+     * Sets what a transaction does about a lock it cannot be granted at
+     * once. Meant to be set while no transaction waits.
+     */
+    public void setDeadlockPolicy(DeadlockPolicy policy){
+        this.policy=policy;
+    }
+
+    public DeadlockPolicy getDeadlockPolicy(){
+        return policy;
+    }
+
+    /** Sets how long a request waits under the TIMEOUT policy. */
+    public void setLockTimeout(long ms){
+        this.lockTimeoutMs=ms;
+    }
+
+    public long getLockTimeout(){
+        return lockTimeoutMs;
+    }
 
+    /**
+     * Sets how many page and record locks of a table a transaction takes
+     * before they are traded for a lock on the whole table.
+     */
+    public void setEscalationThreshold(int pages){
+        this.escalationThreshold=Math.max(1,pages);
+    }
+
+    public int getEscalationThreshold(){
+        return escalationThreshold;
+    }
+
+    /** Adds l to the owners of e; called with the latch of e held. */
+    private void addOwner(LockEntry e,Object key,Lock l){
+        e.moveToOwners(l);
+        lockedBy.compute(l.getTid(),(k,keys)->{
+            if(keys==null){
+                keys=ConcurrentHashMap.newKeySet();
+            }
+            keys.add(key);
+            return keys;
+        });
+        Integer table=tableOf(key);
+        if(table!=null){
+            pageLocks.computeIfAbsent(l.getTid(),k->new ConcurrentHashMap<>()).merge(table,1,Integer::sum);
+        }
+    }
+
+    /** @return the table of a page or record key, or null for a table key */
+    private static Integer tableOf(Object key){
+        if(key instanceof RecordId){
+            return ((RecordId) key).getPageId().getTableId();
+        }
+        return key instanceof PageId?((PageId) key).getTableId():null;
+    }
+
+    /** Drops the lock tid holds on key, and grants what that makes room for. */
+    private void removeOwner(TransactionId tid,Object key){
+        LockEntry e=LockTable.get(key);
+        if(e==null){
+            return;
+        }
+        synchronized (e){
+            if(!e.removeLock(tid)){
+                return;
+            }
+            lockedBy.computeIfPresent(tid,(k,keys)->{
+                keys.remove(key);
+                return keys.isEmpty()?null:keys;
+            });
+            Integer table=tableOf(key);
+            if(table!=null){
+                ConcurrentHashMap<Integer,Integer> counts=pageLocks.get(tid);
+                if(counts!=null){
+                    counts.computeIfPresent(table,(k,n)->n>1?n-1:null);
+                }
+            }
+            grantWaiters(e,key);
+            dropIfUnused(e,key);
+        }
     }
 
     public boolean checkCompatiblity(Lock.LockType t1, Lock.LockType t2){
-         return (t1== Lock.LockType.SHARING)&&(t2== Lock.LockType.SHARING);
-    }
-    public synchronized boolean getLock(TransactionId tid, PageId pid, Lock.LockType lockType) {
-        boolean compatiblity=true;
-        if(!LockTable.containsKey(pid)){
-            // no locks get the lock
-            LockEntry e= new LockEntry();
-            Lock l= new Lock(tid,lockType);
-            // move to the owner immediately
-            e.moveToOwners(l);
-            LockTable.put(pid,e);
+         return t1.compatibleWith(t2);
+    }
+
+    /** Whether the owners of e leave room for the request, queue aside. */
+    private boolean grantable(LockEntry e, TransactionId tid, Lock.LockType lockType){
+        for(Lock l:e.owners.values()){
+            if(!l.getTid().equals(tid)&&!checkCompatiblity(l.getLockType(),lockType)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether tid holds a lock on key that gives lockType. Takes no latch:
+     * only tid itself drops or converts its locks, and an entry with owners
+     * stays in the lock table.
+     */
+    private boolean holds(TransactionId tid, Object key, Lock.LockType lockType){
+        LockEntry e=LockTable.get(key);
+        Lock held=e==null?null:e.owners.get(tid);
+        return held!=null&&held.getLockType().covers(lockType);
+    }
+
+    /**
+     * Grants the lock if the transaction holds it already or can take it
+     * without waiting; called with the latch of e held. Nothing goes ahead
+     * of the queue here: with requests waiting, even an upgrade joins the
+     * queue, so that those it goes ahead of learn they now wait for it.
+     */
+    private boolean tryGrant(LockEntry e, Object key, TransactionId tid, Lock.LockType lockType){
+        Lock held=e.owners.get(tid);
+        if(held!=null&&held.getLockType().covers(lockType)){
             return true;
-        }else{
-            // check the page's owner first
-            LockEntry e = LockTable.get(pid);
-//            assert (e.owners.size()>0);
-            if(e.owners.size()==0){
-                e.moveToOwners(new Lock(tid, lockType));
-                return true;
-            }
-            for(Map.Entry<TransactionId,Lock> entry:e.owners.entrySet()) {
-                if(entry.getKey().equals(tid)){
-                    // already get the lock
-                    if(lockType== Lock.LockType.SHARING){
-                        return true;
-                    }else{
-                        if(e.owners.size()==1){
-                            entry.getValue().updateType();
-                            return true;
-                        }else{
-                            return false;
-//                            throw new TransactionAbortedException();
-                        }
+        }
+        Lock.LockType wanted=held==null?lockType:held.getLockType().join(lockType);
+        if(e.waiters.isEmpty()&&grantable(e,tid,wanted)){
+            if(held!=null){
+                held.upgradeTo(wanted);
+            }else{
+                addOwner(e,key,new Lock(tid,wanted));
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Grants the waiting requests of e from the head of its queue, until one
+     * has to keep waiting, and brings the waits of the rest up to date;
+     * called with the latch of e held. Aborted requests leave the queue
+     * here, before their threads wake up.
+     */
+    private void grantWaiters(LockEntry e, Object key){
+        e.waiters.removeIf(r->r.aborted);
+        Iterator<Request> it=e.waiters.iterator();
+        while(it.hasNext()){
+            Request r=it.next();
+            if(!grantable(e,r.tid,r.lockType)){
+                break;
+            }
+            it.remove();
+            Lock held=e.owners.get(r.tid);
+            if(held!=null){
+                held.upgradeTo(r.lockType);
+            }else{
+                addOwner(e,key,new Lock(r.tid,r.lockType));
+            }
+            r.granted=true;
+            synchronized (waitLatch){
+                waitsFor.delete_edge(r.tid);
+                waiting.remove(r.tid,r);
+            }
+            LockSupport.unpark(r.thread);
+        }
+        for(Request r:e.waiters){
+            addWaits(e,r);
+        }
+    }
+
+    /** Returns whom r waits for: the owners and the requests ahead it conflicts with. */
+    private List<TransactionId> blockers(LockEntry e, Request r){
+        List<TransactionId> res=new ArrayList<>();
+        Lock.LockType wanted=r.lockType;
+        for(Lock l:e.owners.values()){
+            if(!l.getTid().equals(r.tid)&&!checkCompatiblity(l.getLockType(),wanted)){
+                res.add(l.getTid());
+            }
+        }
+        for(Request ahead:e.waiters){
+            if(ahead==r){
+                break;
+            }
+            if(!ahead.aborted&&!checkCompatiblity(ahead.lockType,wanted)){
+                res.add(ahead.tid);
+            }
+        }
+        return res;
+    }
+
+    /** Records whom r waits for; only the deadlock detector needs to know. */
+    private void addWaits(LockEntry e, Request r){
+        if(policy!=DeadlockPolicy.DETECT){
+            return;
+        }
+        List<TransactionId> blockers=blockers(e,r);
+        synchronized (waitLatch){
+            waitsFor.delete_edge(r.tid);
+            if(r.aborted){
+                return;
+            }
+            for(TransactionId b:blockers){
+                waitsFor.add_edge(r.tid,b);
+            }
+        }
+    }
+
+    private static boolean older(TransactionId a, TransactionId b){
+        return a.getId()<b.getId();
+    }
+
+    /**
+     * Applies WAIT_DIE or WOUND_WAIT to a request that just joined the
+     * queue of e, so that waits only ever go one way between old and young.
+     * An upgrade goes ahead of the plain requests, which then wait for it
+     * too.
+     *
+     * @return whether r may wait
+     */
+    private boolean mayWait(LockEntry e, Request r){
+        DeadlockPolicy p=policy;
+        if(p==DeadlockPolicy.WAIT_DIE){
+            for(TransactionId b:blockers(e,r)){
+                if(older(b,r.tid)){
+                    return false;
+                }
+            }
+            for(Request behind:passedBy(e,r)){
+                if(older(r.tid,behind.tid)){
+                    synchronized (waitLatch){
+                        abortWait(behind.tid);
                     }
                 }
-                if (checkCompatiblity(entry.getValue().getLockType(), lockType)) {
-                    // the lock acquired is compatible with the owner
-                }else {
-                    compatiblity=false;
+            }
+        }else if(p==DeadlockPolicy.WOUND_WAIT){
+            for(Request behind:passedBy(e,r)){
+                if(older(behind.tid,r.tid)){
+                    return false;
                 }
             }
-            if(compatiblity){
-                e.moveToOwners(new Lock(tid,lockType));
-                return true;
+            for(TransactionId b:blockers(e,r)){
+                if(older(r.tid,b)){
+                    wound(b);
+                }
             }
         }
-        return false;
+        return true;
     }
 
-    public synchronized void updateLockType(LockEntry e,TransactionId tid){
-        for(Map.Entry<TransactionId,Lock> entry:e.owners.entrySet()) {
-            if(!entry.getKey().equals(tid)) {
-                e.owners.remove(entry.getKey());
-            }else{
-                entry.getValue().updateType();;
+    /** Returns the plain requests an upgrade went ahead of. */
+    private List<Request> passedBy(LockEntry e, Request r){
+        if(!r.upgrade){
+            return Collections.emptyList();
+        }
+        List<Request> res=new ArrayList<>(e.waiters.subList(e.waiters.indexOf(r)+1,e.waiters.size()));
+        res.removeIf(w->w.tid.equals(r.tid));
+        return res;
+    }
+
+    /**
+     * Aborts a younger transaction in the way of an older one: at once if it
+     * waits, otherwise at its next lock request. It keeps its locks until it
+     * completes.
+     */
+    private void wound(TransactionId tid){
+        synchronized (waitLatch){
+            wounded.add(tid);
+            abortWait(tid);
+        }
+    }
+
+    /** Wakes the transaction up with an abort if it waits for a lock; called with waitLatch held. */
+    private void abortWait(TransactionId tid){
+        waitsFor.delete_edge(tid);
+        Request r=waiting.remove(tid);
+        if(r!=null){
+            r.aborted=true;
+            LockSupport.unpark(r.thread);
+        }
+    }
+
+    /** Drops e from the lock table if it is unused; called with the latch of e held. */
+    private void dropIfUnused(LockEntry e, Object key){
+        if(e.unused()){
+            e.dropped=true;
+            LockTable.remove(key,e);
+        }
+    }
+
+    /** the table lock that comes with a page lock of the given mode */
+    private static Lock.LockType intention(Lock.LockType pageLock){
+        return pageLock== Lock.LockType.SHARING? Lock.LockType.INTENTION_SHARING: Lock.LockType.INTENTION_EXCLUSIVE;
+    }
+
+    /** Whether the lock tid holds on the page of rid, or on its table, already gives lockType on rid. */
+    private boolean coveredByPage(TransactionId tid, RecordId rid, Lock.LockType lockType){
+        return holds(tid,rid.getPageId(),lockType)||coveredByTable(tid,rid.getPageId(),lockType);
+    }
+
+    /** Whether the lock tid holds on the table of pid already gives lockType on pid. */
+    private boolean coveredByTable(TransactionId tid, PageId pid, Lock.LockType lockType){
+        return holds(tid,new TableKey(pid.getTableId()),lockType);
+    }
+
+    /** Takes the lock on key if it can be had without waiting. */
+    private boolean tryLock(TransactionId tid, Object key, Lock.LockType lockType){
+        if(holds(tid,key,lockType)){
+            return true;
+        }
+        while(true){
+            LockEntry e=LockTable.computeIfAbsent(key,k->new LockEntry());
+            synchronized (e){
+                if(e.dropped){
+                    continue;
+                }
+                boolean granted=tryGrant(e,key,tid,lockType);
+                dropIfUnused(e,key);
+                return granted;
             }
         }
     }
 
-    public synchronized boolean holdLock(TransactionId tid,PageId pid){
-        if(!LockTable.containsKey(pid)){
-            return false;
-        }else{
-            return LockTable.get(pid).checkLock(tid);
+    /**
+     * Takes the page lock, and the intention lock on its table, if they can
+     * be had without waiting.
+     *
+     * @return whether tid now holds the lock
+     */
+    public boolean getLock(TransactionId tid, PageId pid, Lock.LockType lockType) {
+        if(coveredByTable(tid,pid,lockType)||holds(tid,pid,lockType)){
+            return true;
+        }
+        boolean granted=tryLock(tid,new TableKey(pid.getTableId()),intention(lockType))
+                &&tryLock(tid,pid,lockType);
+        if(granted){
+            escalate(tid,pid.getTableId());
         }
+        return granted;
     }
 
-    public  synchronized void releaseLock(TransactionId tid,PageId pid){
-        // release the pid's lock held by the transaction
-        if(LockTable.get(pid).removeLock(tid)){
-            this.notifyAll();
+    /**
+     * Takes the page lock, after the intention lock on its table, waiting in
+     * the queues if need be. How long it waits, and whether it waits at all,
+     * depends on the deadlock policy. A transaction that locked the whole
+     * table takes no page lock. Asking again for a lock already held takes
+     * no latch.
+     *
+     * @throws TransactionAbortedException if the deadlock policy aborts the
+     *   transaction rather than let it wait, or the waiting thread is
+     *   interrupted
+     */
+    public void acquire(TransactionId tid, PageId pid, Lock.LockType lockType) throws TransactionAbortedException {
+        if(wounded.contains(tid)){
+            throw new TransactionAbortedException();
+        }
+        if(coveredByTable(tid,pid,lockType)||holds(tid,pid,lockType)){
+            return;
         }
+        lock(tid,new TableKey(pid.getTableId()),intention(lockType));
+        lock(tid,pid,lockType);
+        escalate(tid,pid.getTableId());
+    }
 
+    /**
+     * Takes the record lock, after the intention locks on its page and its
+     * table, waiting in the queues if need be. A transaction that holds a
+     * lock on the page or the table that covers the record takes no record
+     * lock.
+     *
+     * @throws TransactionAbortedException as for {@link #acquire}
+     */
+    public void acquireRecord(TransactionId tid, RecordId rid, Lock.LockType lockType) throws TransactionAbortedException {
+        if(wounded.contains(tid)){
+            throw new TransactionAbortedException();
+        }
+        if(coveredByPage(tid,rid,lockType)||holds(tid,rid,lockType)){
+            return;
+        }
+        PageId pid=rid.getPageId();
+        lock(tid,new TableKey(pid.getTableId()),intention(lockType));
+        lock(tid,pid,intention(lockType));
+        lock(tid,rid,lockType);
+        escalate(tid,pid.getTableId());
     }
 
-    public synchronized ConcurrentLinkedDeque<TransactionId> getCurrentOwners(PageId pid){
-        ConcurrentLinkedDeque<TransactionId> res=new ConcurrentLinkedDeque<>();
+    /**
+     * Takes the record lock, and the intention locks above it, if they can
+     * be had without waiting.
+     *
+     * @return whether tid now holds the lock
+     */
+    public boolean getRecordLock(TransactionId tid, RecordId rid, Lock.LockType lockType){
+        if(coveredByPage(tid,rid,lockType)||holds(tid,rid,lockType)){
+            return true;
+        }
+        PageId pid=rid.getPageId();
+        boolean granted=tryLock(tid,new TableKey(pid.getTableId()),intention(lockType))
+                &&tryLock(tid,pid,intention(lockType))
+                &&tryLock(tid,rid,lockType);
+        if(granted){
+            escalate(tid,pid.getTableId());
+        }
+        return granted;
+    }
+
+    /** Whether tid holds a lock on the record, or one above it, that covers lockType. */
+    public boolean holdRecordLock(TransactionId tid, RecordId rid, Lock.LockType lockType){
+        return holds(tid,rid,lockType)||coveredByPage(tid,rid,lockType);
+    }
+
+    /**
+     * Locks the whole table, waiting in its queue if need be, so that the
+     * transaction needs no page locks under it to read it (SHARING) or to
+     * read and write it (EXCLUSIVE).
+     *
+     * @throws TransactionAbortedException as for {@link #acquire}
+     */
+    public void acquireTable(TransactionId tid, int tableId, Lock.LockType lockType) throws TransactionAbortedException {
+        if(wounded.contains(tid)){
+            throw new TransactionAbortedException();
+        }
+        lock(tid,new TableKey(tableId),lockType);
+    }
+
+    /** @return the mode of the lock tid holds on the table, or null */
+    public Lock.LockType getTableLock(TransactionId tid, int tableId){
+        LockEntry e=LockTable.get(new TableKey(tableId));
+        Lock held=e==null?null:e.owners.get(tid);
+        return held==null?null:held.getLockType();
+    }
+
+    /**
+     * Trades the page and record locks tid holds in the table for one lock on the
+     * table, once there are escalationThreshold of them: SHARING if they
+     * are all shared, EXCLUSIVE otherwise. It is only done if the table
+     * lock can be had without waiting; if not, it is tried again after as
+     * many page and record locks more.
+     */
+    private void escalate(TransactionId tid, int tableId){
+        ConcurrentHashMap<Integer,Integer> counts=pageLocks.get(tid);
+        int n=counts==null?0:counts.getOrDefault(tableId,0);
+        if(n==0||n%escalationThreshold!=0){
+            return;
+        }
+        TableKey table=new TableKey(tableId);
+        LockEntry e=LockTable.get(table);
+        Lock held=e==null?null:e.owners.get(tid);
+        if(held==null){
+            return;
+        }
+        Lock.LockType wanted=held.getLockType().covers(Lock.LockType.INTENTION_EXCLUSIVE)
+                ? Lock.LockType.EXCLUSIVE: Lock.LockType.SHARING;
+        if(!tryLock(tid,table,wanted)){
+            return;
+        }
+        Set<Object> keys=lockedBy.get(tid);
+        if(keys==null){
+            return;
+        }
+        for(Object key:new ArrayList<>(keys)){
+            Integer t=tableOf(key);
+            if(t!=null&&t==tableId){
+                removeOwner(tid,key);
+            }
+        }
+    }
+
+    /**
+     * Takes the lock on key, waiting in its queue if need be. The request is
+     * queued under the latch of the key, and the thread parks without any
+     * latch until a release grants it or the deadlock policy aborts it.
+     */
+    private void lock(TransactionId tid, Object key, Lock.LockType lockType) throws TransactionAbortedException {
+        if(holds(tid,key,lockType)){
+            return;
+        }
+        DeadlockPolicy p=policy;
+        LockEntry e;
+        Request r;
+        while(true){
+            e=LockTable.computeIfAbsent(key,k->new LockEntry());
+            synchronized (e){
+                if(e.dropped){
+                    continue;
+                }
+                if(tryGrant(e,key,tid,lockType)){
+                    return;
+                }
+                if(p==DeadlockPolicy.NO_WAIT){
+                    dropIfUnused(e,key);
+                    throw new TransactionAbortedException();
+                }
+                Lock held=e.owners.get(tid);
+                r=held==null?new Request(tid,lockType,false)
+                        :new Request(tid,held.getLockType().join(lockType),true);
+                e.enqueue(r);
+                boolean mayWait=mayWait(e,r);
+                if(mayWait){
+                    synchronized (waitLatch){
+                        // wounded by an older transaction before it could see this wait
+                        mayWait=!wounded.contains(tid);
+                        if(mayWait){
+                            waiting.put(tid,r);
+                            if(p==DeadlockPolicy.DETECT&&detector==null){
+                                detector=new DeadlockDetector();
+                                detector.start();
+                            }
+                        }
+                    }
+                }
+                if(!mayWait){
+                    e.waiters.remove(r);
+                    grantWaiters(e,key);
+                    dropIfUnused(e,key);
+                    throw new TransactionAbortedException();
+                }
+                addWaits(e,r);
+                if(r.upgrade){
+                    // may be granted right away, ahead of the rest
+                    grantWaiters(e,key);
+                }
+            }
+            break;
+        }
+        boolean interrupted=false;
+        long deadline=System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(lockTimeoutMs);
+        while(!r.granted&&!r.aborted){
+            if(p!=DeadlockPolicy.TIMEOUT){
+                LockSupport.park(this);
+            }else{
+                long left=deadline-System.nanoTime();
+                if(left<=0){
+                    break;
+                }
+                LockSupport.parkNanos(this,left);
+            }
+            if(Thread.interrupted()){
+                interrupted=true;
+                break;
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+        if(r.granted){
+            return;
+        }
+        synchronized (e){
+            if(r.granted){
+                return;
+            }
+            // 放弃等待, 排在后面的请求可能因此可以授予
+            synchronized (waitLatch){
+                waitsFor.delete_edge(tid);
+                waiting.remove(tid,r);
+            }
+            e.waiters.remove(r);
+            grantWaiters(e,key);
+            dropIfUnused(e,key);
+        }
+        throw new TransactionAbortedException();
+    }
+
+    /**
+     * Breaks every cycle of waits by aborting the wait of its cheapest
+     * transaction; called with waitLatch held. The victim keeps its locks
+     * until it completes, so the others still wait for it, but no longer in
+     * a cycle.
+     */
+    private void breakDeadlocks(){
+        List<TransactionId> cycle;
+        while((cycle=waitsFor.find_cycle())!=null){
+            TransactionId victim=Collections.min(cycle,
+                    Comparator.comparingInt(this::locksHeld)
+                            .thenComparing(Comparator.comparingLong(TransactionId::getId).reversed()));
+            abortWait(victim);
+        }
+    }
+
+    private int locksHeld(TransactionId tid){
+        Set<Object> keys=lockedBy.get(tid);
+        return keys==null?0:keys.size();
+    }
 
-        if(LockTable.containsKey(pid)){
-            LockEntry e=LockTable.get(pid);
-            for(TransactionId tid:e.owners.keySet()){
-                res.add(tid);
+    /**
+     * Looks for deadlocks every DETECT_INTERVAL_MS, and stops once nobody
+     * waits.
+     */
+    private final class DeadlockDetector extends Thread {
+        DeadlockDetector(){
+            super("simpledb-deadlock-detector");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run(){
+            while(true){
+                try{
+                    Thread.sleep(DETECT_INTERVAL_MS);
+                }catch (InterruptedException e){
+                    // look right away
+                }
+                synchronized (waitLatch){
+                    if(waiting.isEmpty()){
+                        detector=null;
+                        return;
+                    }
+                    breakDeadlocks();
+                }
             }
         }
+    }
+
+    /** Whether tid holds a lock on the page, or one on its table that covers reading it. */
+    public boolean holdLock(TransactionId tid,PageId pid){
+        LockEntry e=LockTable.get(pid);
+        return e!=null&&e.checkLock(tid)||coveredByTable(tid,pid, Lock.LockType.SHARING);
+    }
+
+    /** Whether tid holds a lock on the page, or one on its table, that covers lockType. */
+    public boolean holdLock(TransactionId tid,PageId pid,Lock.LockType lockType){
+        return holds(tid,pid,lockType)||coveredByTable(tid,pid,lockType);
+    }
+
+    public void releaseLock(TransactionId tid,PageId pid){
+        // release the pid's lock held by the transaction
+        // a lock on its table stays
+        removeOwner(tid,pid);
+    }
+
+    public ConcurrentLinkedDeque<TransactionId> getCurrentOwners(PageId pid){
+        ConcurrentLinkedDeque<TransactionId> res=new ConcurrentLinkedDeque<>();
+        LockEntry e=LockTable.get(pid);
+        if(e!=null){
+            res.addAll(e.owners.keySet());
+        }
         return res;
     }
 
-    public synchronized ConcurrentLinkedDeque<PageId> getPagesLockedBy(TransactionId tid){
+    /** Returns the number of requests waiting for a lock on pid. */
+    public int getQueueLength(PageId pid){
+        return queueLength(pid);
+    }
+
+    /** Returns the number of requests waiting for a lock on the table. */
+    public int getTableQueueLength(int tableId){
+        return queueLength(new TableKey(tableId));
+    }
+
+    private int queueLength(Object key){
+        LockEntry e=LockTable.get(key);
+        if(e==null){
+            return 0;
+        }
+        synchronized (e){
+            return e.waiters.size();
+        }
+    }
+
+    public ConcurrentLinkedDeque<PageId> getPagesLockedBy(TransactionId tid){
         ConcurrentLinkedDeque<PageId> pageQueue=new ConcurrentLinkedDeque<>();
-        for(Map.Entry<PageId,LockEntry> entry:LockTable.entrySet()){
-            if(entry.getValue().owners.containsKey(tid)){
-                pageQueue.add(entry.getKey());
+        Set<Object> keys=lockedBy.get(tid);
+        if(keys!=null){
+            for(Object key:keys){
+                if(key instanceof PageId){
+                    pageQueue.add((PageId) key);
+                }
             }
         }
         return pageQueue;
     }
 
-    public  synchronized  void realeaseAllLocks(TransactionId tid){
-        for(Map.Entry<PageId,LockEntry> entry:LockTable.entrySet()){
-            if(entry.getValue().owners.containsKey(tid)){
-                releaseLock(tid, entry.getKey());
+    public void realeaseAllLocks(TransactionId tid){
+        wounded.remove(tid);
+        pageLocks.remove(tid);
+        Set<Object> keys=lockedBy.remove(tid);
+        if(keys==null){
+            return;
+        }
+        for(Object key:keys){
+            LockEntry e=LockTable.get(key);
+            if(e==null){
+                continue;
+            }
+            synchronized (e){
+                if(e.removeLock(tid)){
+                    grantWaiters(e,key);
+                    dropIfUnused(e,key);
+                }
             }
         }
     }
@@ -95,6 +95,54 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 				page.iterator().next().getField(keyField)));
 	} 
 
+	/**
+	 * A page one short of half full may steal from a sibling one over half
+	 * full, even if together they do not fill a page
+	 */
+	@Test
+	public void testStealFromLeftLeafPageAtMinimum() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		// an odd number of tuples per page
+		int columns = 4;
+		int tuplesPerPage = BTreeUtility.getNumTuplesPerPage(columns);
+		assertEquals(1, tuplesPerPage % 2);
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), columns, 0);
+		int tableid = empty.getId();
+		int keyField = 0;
+
+		// create the leaf pages
+		BTreePageId pageId = new BTreePageId(tableid, 1, BTreePageId.LEAF);
+		BTreePageId siblingId = new BTreePageId(tableid, 2, BTreePageId.LEAF);
+		BTreeLeafPage page = BTreeUtility.createRandomLeafPage(pageId, columns, keyField,
+				tuplesPerPage/2 - 1, BTreeUtility.MAX_RAND_VALUE/2, BTreeUtility.MAX_RAND_VALUE);
+		BTreeLeafPage sibling = BTreeUtility.createRandomLeafPage(siblingId, columns, keyField,
+				tuplesPerPage/2 + 1, 0, BTreeUtility.MAX_RAND_VALUE/2);
+		
+		// create the parent page and the new entry
+		BTreePageId parentId = new BTreePageId(tableid, 3, BTreePageId.INTERNAL);
+		BTreeInternalPage parent = new BTreeInternalPage(parentId, BTreeInternalPage.createEmptyPageData(), keyField);
+		Field key = page.iterator().next().getField(keyField);
+		BTreeEntry entry = new BTreeEntry(key, siblingId, pageId);
+		parent.insertEntry(entry);
+		
+		// set all the pointers
+		page.setParentId(parentId);
+		sibling.setParentId(parentId);
+		page.setLeftSiblingId(siblingId);
+		sibling.setRightSiblingId(pageId);
+		
+		int totalTuples = page.getNumTuples() + sibling.getNumTuples();
+		
+		empty.stealFromLeafPage(page, sibling, parent, entry, false);
+		assertEquals(totalTuples, page.getNumTuples() + sibling.getNumTuples());
+		assertEquals(totalTuples/2, page.getNumTuples());
+		assertEquals(totalTuples/2, sibling.getNumTuples());
+		assertTrue(sibling.reverseIterator().next().getField(keyField).compare(Op.LESS_THAN_OR_EQ, 
+				page.iterator().next().getField(keyField)));
+	}
+
 	@Test
 	public void testStealFromRightLeafPage() throws Exception {
 		File emptyFile = File.createTempFile("empty", ".dat");
@@ -249,6 +297,56 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * An internal page one short of half full may steal from a sibling one
+	 * over half full, even if together they do not fill a page
+	 */
+	@Test
+	public void testStealFromLeftInternalPageAtMinimum() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		int entriesPerPage = BTreeUtility.getNumEntriesPerPage();
+		assertEquals(1, entriesPerPage % 2);
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 5 + entriesPerPage);
+		int tableid = empty.getId();
+		int keyField = 0;
+
+		// create the internal pages
+		BTreePageId pageId = new BTreePageId(tableid, 1, BTreePageId.INTERNAL);
+		BTreePageId siblingId = new BTreePageId(tableid, 2, BTreePageId.INTERNAL);
+		BTreeInternalPage page = BTreeUtility.createRandomInternalPage(pageId, keyField, BTreePageId.LEAF,
+				entriesPerPage/2 - 1, BTreeUtility.MAX_RAND_VALUE/2, BTreeUtility.MAX_RAND_VALUE, 5 + entriesPerPage/2 + 2);
+		BTreeInternalPage sibling = BTreeUtility.createRandomInternalPage(siblingId, keyField, BTreePageId.LEAF,
+				entriesPerPage/2 + 1, 0, BTreeUtility.MAX_RAND_VALUE/2, 4);
+		
+		// create the parent page and the new entry
+		BTreePageId parentId = new BTreePageId(tableid, 3, BTreePageId.INTERNAL);
+		BTreeInternalPage parent = new BTreeInternalPage(parentId, BTreeInternalPage.createEmptyPageData(), keyField);
+		Field key = page.iterator().next().getKey();
+		BTreeEntry entry = new BTreeEntry(key, siblingId, pageId);
+		parent.insertEntry(entry);
+				
+		// set all the pointers
+		page.setParentId(parentId);
+		sibling.setParentId(parentId);
+		
+		int totalEntries = page.getNumEntries() + sibling.getNumEntries();
+		
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		dirtypages.put(pageId, page);
+		dirtypages.put(siblingId, sibling);
+		dirtypages.put(parentId, parent);
+		empty.stealFromLeftInternalPage(tid, dirtypages, page, sibling, parent, entry);
+		
+		// both pages are half full now
+		assertEquals(totalEntries, page.getNumEntries() + sibling.getNumEntries());
+		assertEquals(totalEntries/2, page.getNumEntries());
+		assertEquals(totalEntries/2, sibling.getNumEntries());
+		assertTrue(parent.iterator().next().getKey().compare(Op.LESS_THAN_OR_EQ, page.iterator().next().getKey()));
+		assertTrue(parent.iterator().next().getKey().compare(Op.GREATER_THAN_OR_EQ, sibling.reverseIterator().next().getKey()));
+	}
+
 	@Test
 	public void testStealFromRightInternalPage() throws Exception {
 		File emptyFile = File.createTempFile("empty", ".dat");
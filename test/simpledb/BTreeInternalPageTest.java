@@ -174,6 +174,42 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.reverseIterator() after entries were deleted
+	 * from the middle of the page
+	 */
+	@Test public void testReverseIteratorWithGaps() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+
+		// delete every third entry, leaving empty slots between the used ones
+		Iterator<BTreeEntry> it = page.iterator();
+		List<BTreeEntry> toDelete = new ArrayList<>();
+		for (int i = 0; it.hasNext(); i++) {
+			BTreeEntry e = it.next();
+			if (i % 3 == 1)
+				toDelete.add(e);
+		}
+		for (BTreeEntry e : toDelete)
+			page.deleteKeyAndRightChild(e);
+
+		List<BTreeEntry> entries = new ArrayList<>();
+		it = page.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+		Collections.reverse(entries);
+
+		it = page.reverseIterator();
+		int row = 0;
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			assertEquals(entries.get(row).getKey(), e.getKey());
+			assertEquals(entries.get(row).getLeftChild(), e.getLeftChild());
+			assertEquals(entries.get(row).getRightChild(), e.getRightChild());
+			row++;
+		}
+		assertEquals(entries.size(), row);
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
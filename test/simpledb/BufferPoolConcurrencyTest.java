@@ -0,0 +1,143 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolConcurrencyTest extends SimpleDbTestBase {
+
+    /** counts the pages read from disk; reads of page 1 wait for the gate */
+    private static class GatedHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger();
+        final CountDownLatch gate = new CountDownLatch(1);
+
+        GatedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            if (pid.getPageNumber() == 1) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    private GatedHeapFile file;
+    private ExecutorService pool;
+    private final List<TransactionId> tids = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 3000, 1000, null, new ArrayList<>());
+        file = new GatedHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(file, "gated");
+        pool = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        file.gate.countDown();
+        pool.shutdownNow();
+        for (TransactionId tid : tids) {
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    private Future<Page> fetch(int pgNo) {
+        TransactionId tid = new TransactionId();
+        tids.add(tid);
+        return pool.submit(() -> Database.getBufferPool()
+                .getPage(tid, new HeapPageId(file.getId(), pgNo), Permissions.READ_ONLY));
+    }
+
+    /**
+     * Threads missing on the same page at the same time share one read.
+     */
+    @Test
+    public void missesCoalesce() throws Exception {
+        List<Future<Page>> pages = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            pages.add(fetch(1));
+        }
+        Thread.sleep(200);
+        for (Future<Page> p : pages) {
+            assertFalse(p.isDone());
+        }
+        file.gate.countDown();
+        Page first = pages.get(0).get(5, TimeUnit.SECONDS);
+        for (Future<Page> p : pages) {
+            assertSame(first, p.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, file.reads.get());
+    }
+
+    /**
+     * While a page is being read, hits on other pages and misses on other
+     * pages go ahead.
+     */
+    @Test
+    public void othersDoNotWait() throws Exception {
+        Page cached = fetch(0).get(5, TimeUnit.SECONDS);
+        Future<Page> blocked = fetch(1);
+        Thread.sleep(100);
+
+        assertSame(cached, fetch(0).get(5, TimeUnit.SECONDS));
+        assertEquals(2, fetch(2).get(5, TimeUnit.SECONDS).getId().getPageNumber());
+        assertFalse(blocked.isDone());
+
+        file.gate.countDown();
+        assertEquals(1, blocked.get(5, TimeUnit.SECONDS).getId().getPageNumber());
+    }
+
+    /**
+     * A full pool evicts its least recently used clean page.
+     */
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        Database.resetBufferPool(3);
+        file.gate.countDown();
+        fetch(0).get(5, TimeUnit.SECONDS);
+        fetch(2).get(5, TimeUnit.SECONDS);
+        fetch(3).get(5, TimeUnit.SECONDS);
+        fetch(0).get(5, TimeUnit.SECONDS);
+        fetch(4).get(5, TimeUnit.SECONDS);
+        assertEquals(4, file.reads.get());
+
+        // page 2 was evicted, page 0 was not
+        fetch(0).get(5, TimeUnit.SECONDS);
+        assertEquals(4, file.reads.get());
+        fetch(2).get(5, TimeUnit.SECONDS);
+        assertEquals(5, file.reads.get());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolConcurrencyTest.class);
+    }
+}
@@ -0,0 +1,109 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.InstrumentedHeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BufferRingTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 32;
+
+    private InstrumentedHeapFile hot;
+    private InstrumentedHeapFile big;
+    private List<List<Integer>> bigTuples;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        Database.resetBufferPool(POOL_PAGES);
+        hot = new InstrumentedHeapFile(SystemTestUtil.createRandomHeapFileUnopened(2, 2000, 1000, null, new ArrayList<>()), Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hot, "hot");
+        bigTuples = new ArrayList<>();
+        big = new InstrumentedHeapFile(SystemTestUtil.createRandomHeapFileUnopened(2, 30000, 1000, null, bigTuples), Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(big, "big");
+        assertTrue(big.numPages() > POOL_PAGES);
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private void touchHotPages() throws Exception {
+        for (int i = 0; i < hot.numPages(); i++) {
+            Database.getBufferPool().getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        }
+    }
+
+    /**
+     * A scan of a table larger than the pool leaves the pages read before
+     * it in the pool.
+     */
+    @Test
+    public void scanKeepsWorkingSet() throws Exception {
+        touchHotPages();
+        assertEquals(hot.numPages(), hot.reads.get());
+
+        SystemTestUtil.matchTuples(big, tid, bigTuples);
+        assertEquals(big.numPages(), big.reads.get());
+        touchHotPages();
+        assertEquals(hot.numPages(), hot.reads.get());
+
+        // only the pages of the ring are still in the pool
+        big.reads.set(0);
+        SystemTestUtil.matchTuples(big, tid, bigTuples);
+        assertEquals(big.numPages() - POOL_PAGES / 8, big.reads.get());
+    }
+
+    /**
+     * Collecting statistics scans the table through a ring as well.
+     */
+    @Test
+    public void tableStatsKeepsWorkingSet() throws Exception {
+        touchHotPages();
+        new TableStats(big.getId(), 1000);
+        touchHotPages();
+        assertEquals(hot.numPages(), hot.reads.get());
+    }
+
+    /**
+     * Small tables are scanned through the pool, and stay cached.
+     */
+    @Test
+    public void smallTablesUsePool() throws Exception {
+        assertNull(Database.getBufferPool().scanRing(POOL_PAGES));
+        assertEquals(POOL_PAGES / 8, Database.getBufferPool().scanRing(POOL_PAGES + 1).getFrames());
+        DbFileIterator it = hot.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+        }
+        it.close();
+        hot.reads.set(0);
+        touchHotPages();
+        assertEquals(0, hot.reads.get());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferRingTest.class);
+    }
+}
@@ -0,0 +1,224 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+public class ColumnFileTest extends SimpleDbTestBase {
+    private static final int ROWS = 1500;
+
+    /** counts the pages read from disk per column */
+    private static class InstrumentedColumnFile extends ColumnFile {
+        final AtomicIntegerArray reads;
+
+        InstrumentedColumnFile(File f, TupleDesc td) {
+            super(f, td);
+            reads = new AtomicIntegerArray(td.numFields());
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet(((ColumnPageId) pid).getColumn());
+            return super.readPage(pid);
+        }
+    }
+
+    private InstrumentedColumnFile file;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE},
+                new String[]{"a", "s", "b"});
+        File f = File.createTempFile("columns", ".dat");
+        f.deleteOnExit();
+        file = new InstrumentedColumnFile(f, td);
+        Database.getCatalog().addTable(file, "columns");
+        for (int i = 0; i < td.numFields(); i++) {
+            file.getColumnFile(i).deleteOnExit();
+        }
+
+        tid = new TransactionId();
+        for (int i = 0; i < ROWS; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField("s" + i, Type.STRING_LEN));
+            t.setField(2, new IntField(i * 2));
+            Database.getBufferPool().insertTuple(tid, file.getId(), t);
+            if (i % 200 == 199) {
+                // keep the dirty pages of a transaction within the pool
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        // start from a cold pool
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        for (int i = 0; i < td.numFields(); i++) {
+            file.reads.set(i, 0);
+        }
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private List<Tuple> scan(DbFileIterator it) throws Exception {
+        List<Tuple> tuples = new ArrayList<>();
+        it.open();
+        while (it.hasNext()) {
+            tuples.add(it.next());
+        }
+        it.close();
+        return tuples;
+    }
+
+    /**
+     * Every column is stored in its own pages; a full scan returns the rows
+     * in insertion order.
+     */
+    @Test
+    public void fullScan() throws Exception {
+        assertTrue(file.numPages(1) > file.numPages(0));
+        assertEquals(file.numPages(0), file.numPages(2));
+
+        List<Tuple> tuples = scan(file.iterator(tid));
+        assertEquals(ROWS, tuples.size());
+        for (int i = 0; i < ROWS; i++) {
+            Tuple t = tuples.get(i);
+            assertEquals(new IntField(i), t.getField(0));
+            assertEquals("s" + i, ((StringField) t.getField(1)).getValue());
+            assertEquals(new IntField(i * 2), t.getField(2));
+        }
+    }
+
+    /**
+     * A scan of some columns reads no page of the other ones.
+     */
+    @Test
+    public void projectedScan() throws Exception {
+        SeqScan scan = new SeqScan(tid, file.getId(), "c");
+        scan.setColumns(new int[]{2});
+        assertEquals(1, scan.getTupleDesc().numFields());
+        assertEquals("c.b", scan.getTupleDesc().getFieldName(0));
+
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            assertEquals(new IntField(n * 2), scan.next().getField(0));
+            n++;
+        }
+        scan.close();
+        assertEquals(ROWS, n);
+        assertEquals(0, file.reads.get(0));
+        assertEquals(0, file.reads.get(1));
+        assertEquals(file.numPages(2), file.reads.get(2));
+    }
+
+    /**
+     * Deleted rows disappear from every column and their slots are reused.
+     */
+    @Test
+    public void deleteAndReuse() throws Exception {
+        List<Tuple> tuples = scan(file.iterator(tid, new int[]{1}));
+        for (int i = 0; i < 400; i += 2) {
+            Database.getBufferPool().deleteTuple(tid, tuples.get(i));
+        }
+        assertEquals(ROWS - 200, scan(file.iterator(tid)).size());
+
+        int pages = file.numPages();
+        Tuple t = new Tuple(file.getTupleDesc());
+        t.setField(0, new IntField(-1));
+        t.setField(1, new StringField("new", Type.STRING_LEN));
+        t.setField(2, new IntField(-2));
+        Database.getBufferPool().insertTuple(tid, file.getId(), t);
+        assertEquals(pages, file.numPages());
+        assertEquals(0, t.getRecordId().getTupleNumber());
+        assertEquals(new IntField(-2), scan(file.iterator(tid)).get(0).getField(2));
+    }
+
+    /**
+     * The planner scans only the columns a query refers to.
+     */
+    @Test
+    public void queryReadsReferencedColumns() throws Exception {
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("columns", new TableStats(file.getId(), 1000));
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        for (int i = 0; i < 3; i++) {
+            file.reads.set(i, 0);
+        }
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(file.getId(), "c1");
+        lp.addScan(file.getId(), "c2");
+        lp.addJoin("c1.a", "c2.a", Predicate.Op.EQUALS);
+        lp.addFilter("c1.a", Predicate.Op.LESS_THAN, "10");
+        lp.addProjectField("c2.b", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        plan.open();
+        int n = 0;
+        while (plan.hasNext()) {
+            assertEquals(new IntField(n * 2), plan.next().getField(0));
+            n++;
+        }
+        plan.close();
+        assertEquals(10, n);
+        assertEquals(0, file.reads.get(1));
+        assertEquals(file.numPages(0), file.reads.get(0));
+        assertTrue(file.reads.get(0) > 0);
+        assertTrue(file.reads.get(2) > 0);
+    }
+
+    /**
+     * The planner charges a scan only for the columns the query refers to.
+     */
+    @Test
+    public void scanCostCountsReadColumns() throws Exception {
+        TableStats stats = new TableStats(file.getId(), 1000);
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(file.getId(), "c1");
+        lp.addFilter("c1.a", Predicate.Op.LESS_THAN, "10");
+        lp.addProjectField("c1.b", null);
+        int[] fields = lp.getFieldsRead("c1");
+        assertArrayEquals(new int[]{0, 2}, fields);
+        assertEquals((file.numPages(0) + file.numPages(2)) * 1000, stats.estimateScanCost(fields), 0.0);
+        assertTrue(stats.estimateScanCost(fields) < stats.estimateScanCost());
+
+        lp.addProjectField("null.*", null);
+        assertNull(lp.getFieldsRead("c1"));
+
+        // a row store reads every field anyway
+        HeapFile heap = SystemTestUtil.createRandomHeapFile(3, 1000, null, null);
+        TableStats heapStats = new TableStats(heap.getId(), 1000);
+        assertEquals(heapStats.estimateScanCost(), heapStats.estimateScanCost(new int[]{0}), 0.0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ColumnFileTest.class);
+    }
+}
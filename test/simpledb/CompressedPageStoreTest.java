@@ -0,0 +1,212 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CompressedPageStoreTest extends SimpleDbTestBase {
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static byte[] roundTrip(byte[] data) throws Exception {
+        byte[] compressed = new byte[data.length - 1];
+        int n = LZCodec.compress(data, 0, data.length, compressed);
+        if (n < 0) {
+            return null;
+        }
+        byte[] out = new byte[data.length];
+        assertEquals(data.length, LZCodec.decompress(compressed, 0, n, out));
+        assertArrayEquals(data, out);
+        return Arrays.copyOf(compressed, n);
+    }
+
+    private int count(DbFile file) throws Exception {
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * Runs and repeated patterns shrink, random bytes do not, and whatever
+     * compresses decompresses to the same bytes.
+     */
+    @Test
+    public void codec() throws Exception {
+        byte[] zeros = new byte[BufferPool.getPageSize()];
+        assertTrue(roundTrip(zeros).length < 40);
+
+        byte[] pattern = new byte[BufferPool.getPageSize()];
+        for (int i = 0; i < pattern.length; i++) {
+            pattern[i] = (byte) (i % 7 == 0 ? i / 7 : 'x');
+        }
+        assertNotNull(roundTrip(pattern));
+
+        Random r = new Random(1);
+        byte[] random = new byte[BufferPool.getPageSize()];
+        r.nextBytes(random);
+        assertNull(roundTrip(random));
+
+        // a random prefix followed by a long run
+        Arrays.fill(random, 1000, random.length, (byte) 3);
+        assertTrue(roundTrip(random).length < 1100);
+    }
+
+    /**
+     * A table of padded strings is compressed when opened, scans return
+     * every tuple, and inserts survive reopening the file.
+     */
+    @Test
+    public void heapFile() throws Exception {
+        File dir = File.createTempFile("compressed", ".dir").getParentFile();
+        String name = "compressed" + System.nanoTime();
+        File txt = new File(dir, name + ".txt");
+        File dat = new File(dir, name + ".dat");
+        File schema = new File(dir, name + ".schema");
+        txt.deleteOnExit();
+        dat.deleteOnExit();
+        schema.deleteOnExit();
+        new File(dat.getPath() + ".pmap").deleteOnExit();
+        int n = 3000;
+        try (FileWriter w = new FileWriter(txt)) {
+            for (int i = 0; i < n; i++) {
+                w.write(i + ",name" + i + "\n");
+            }
+        }
+        try (FileWriter w = new FileWriter(schema)) {
+            w.write(name + " (id int, name string) heap compressed\n");
+        }
+        Type[] types = new Type[]{Type.INT_TYPE, Type.STRING_TYPE};
+        HeapFileEncoder.convert(txt, dat, BufferPool.getPageSize(), 2, types, ',');
+        long rawLength = dat.length();
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+
+        HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(name));
+        assertNotNull(file.getCompressedPageStore());
+        assertEquals(rawLength / BufferPool.getPageSize(), file.numPages());
+        assertTrue(dat.length() < rawLength / 4);
+        assertEquals(n, count(file));
+
+        // fill the last page and add a few more
+        for (int i = 0; i < 200; i++) {
+            Tuple t = new Tuple(file.getTupleDesc());
+            t.setField(0, new IntField(n + i));
+            t.setField(1, new StringField("name" + (n + i), Type.STRING_LEN));
+            Database.getBufferPool().insertTuple(tid, file.getId(), t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HeapFile reopened = new HeapFile(dat, file.getTupleDesc(), false, true);
+        Database.getCatalog().addTable(reopened, name);
+        assertEquals(file.numPages(), reopened.numPages());
+        assertEquals(n + 200, count(reopened));
+    }
+
+    /**
+     * A page that outgrows its extent moves, and its old extent is reused.
+     */
+    @Test
+    public void pagesMove() throws Exception {
+        File f = File.createTempFile("moves", ".dat");
+        f.deleteOnExit();
+        HeapFile file = new HeapFile(f, Utility.getTupleDesc(1), false, true);
+        file.getCompressedPageStore().getMapFile().deleteOnExit();
+        CompressedPageStore store = file.getCompressedPageStore();
+
+        byte[] empty = new byte[BufferPool.getPageSize()];
+        byte[] random = new byte[BufferPool.getPageSize()];
+        new Random(2).nextBytes(random);
+        store.writePage(0, empty);
+        store.writePage(1, empty);
+        long small = store.storedBytes();
+        assertTrue(small < BufferPool.getPageSize() / 8);
+
+        // page 0 no longer fits; it moves to the end of the file
+        store.writePage(0, random);
+        long length = f.length();
+        assertEquals(BufferPool.getPageSize() + small / 2, store.storedBytes());
+        // a new page takes over its old extent instead of growing the file
+        store.writePage(2, empty);
+        assertEquals(length, f.length());
+
+        byte[] page = new byte[BufferPool.getPageSize()];
+        store.readPage(0, page);
+        assertArrayEquals(random, page);
+        store.readPage(2, page);
+        assertArrayEquals(empty, page);
+
+        // the page map is read back when the file is reopened
+        Database.getFileChannelManager().close(file);
+        CompressedPageStore reopened = new HeapFile(f, Utility.getTupleDesc(1), false, true)
+                .getCompressedPageStore();
+        assertEquals(3, reopened.numPages());
+        reopened.readPage(0, page);
+        assertArrayEquals(random, page);
+    }
+
+    /**
+     * A B+ tree file is compressed when opened, including its root pointer
+     * page, and keeps working as an index.
+     */
+    @Test
+    public void bTreeFile() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        BTreeFile raw = BTreeUtility.createRandomBTreeFile(2, 5000, null, tuples, 0);
+        long rawPages = raw.numPages();
+        BTreeFile file = new BTreeFile(raw.getFile(), 0, raw.getTupleDesc(), true);
+        Database.getCatalog().addTable(file, "btree");
+        new File(raw.getFile().getPath() + ".pmap").deleteOnExit();
+        assertEquals(rawPages, file.numPages());
+        SystemTestUtil.matchTuples(file, tid, tuples);
+
+        for (int i = 0; i < 500; i++) {
+            Tuple t = BTreeUtility.getBTreeTuple(new int[]{i, i});
+            Database.getBufferPool().insertTuple(tid, file.getId(), t);
+            tuples.add(Arrays.asList(i, i));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(file, tid, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompressedPageStoreTest.class);
+    }
+}
@@ -0,0 +1,80 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+
+public class FileChannelManagerTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private FileChannelManager channels;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        channels = Database.getFileChannelManager();
+    }
+
+    /**
+     * Repeated page reads share one open channel per file.
+     */
+    @Test
+    public void reusesChannel() {
+        assertEquals(0, channels.numOpenChannels());
+        for (int i = 0; i < 3; i++) {
+            hf.readPage(new HeapPageId(hf.getId(), 0));
+            hf.readPage(new HeapPageId(hf.getId(), 1));
+        }
+        assertEquals(1, channels.numOpenChannels());
+    }
+
+    /**
+     * A page written through the channel can be read back, and the file
+     * grows when the page lies past its end.
+     */
+    @Test
+    public void writeThenRead() throws Exception {
+        int numPages = hf.numPages();
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        HeapPageId newPid = new HeapPageId(hf.getId(), numPages);
+        hf.writePage(new HeapPage(newPid, page.getPageData()));
+        assertEquals(numPages + 1, hf.numPages());
+
+        HeapPage copy = (HeapPage) hf.readPage(newPid);
+        assertEquals(page.getNumEmptySlots(), copy.getNumEmptySlots());
+    }
+
+    /**
+     * Clearing the catalog closes the channels, and the next access reopens them.
+     */
+    @Test
+    public void closeOnClear() {
+        hf.readPage(new HeapPageId(hf.getId(), 0));
+        assertEquals(1, channels.numOpenChannels());
+        Database.getCatalog().clear();
+        assertEquals(0, channels.numOpenChannels());
+
+        Database.getCatalog().addTable(hf);
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 1));
+        assertNotNull(page);
+        assertEquals(1, channels.numOpenChannels());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void readPastEnd() {
+        hf.readPage(new HeapPageId(hf.getId(), hf.numPages()));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FileChannelManagerTest.class);
+    }
+}
@@ -0,0 +1,149 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class FrameArenaTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 8;
+
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        Database.resetBufferPool(POOL_PAGES);
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private List<Tuple> tuplesOf(HeapPage page) {
+        List<Tuple> tuples = new ArrayList<>();
+        page.iterator().forEachRemaining(tuples::add);
+        return tuples;
+    }
+
+    /**
+     * Frames are handed out up to the limit, carved lazily and reused once
+     * released.
+     */
+    @Test
+    public void allocateAndRelease() {
+        FrameArena arena = new FrameArena(FrameArena.CHUNK_FRAMES + 1, 128);
+        Set<ByteBuffer> frames = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < FrameArena.CHUNK_FRAMES + 1; i++) {
+            ByteBuffer frame = arena.allocate();
+            assertTrue(frame.isDirect());
+            assertEquals(128, frame.capacity());
+            assertTrue(frames.add(frame));
+        }
+        assertNull(arena.allocate());
+        assertEquals(FrameArena.CHUNK_FRAMES + 1, arena.framesInUse());
+
+        ByteBuffer one = frames.iterator().next();
+        assertTrue(arena.release(one));
+        assertFalse(arena.release(one));
+        assertFalse(arena.release(ByteBuffer.allocateDirect(128)));
+        assertSame(one, arena.allocate());
+    }
+
+    /**
+     * A retired frame stays in use while the page in it is referenced and
+     * is reused, as it is, once the page is gone.
+     */
+    @Test
+    public void retiredFramesComeBackWithTheirPage() throws Exception {
+        FrameArena arena = new FrameArena(1, 128);
+        ByteBuffer frame = arena.allocate();
+        frame.put(0, (byte) 7);
+        Object page = new Object();
+        assertTrue(arena.retire(frame, page));
+        assertFalse(arena.retire(frame, page));
+
+        System.gc();
+        assertNull(arena.allocate());
+        assertEquals(1, arena.framesInUse());
+        assertEquals(7, frame.get(0));
+
+        page = null;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (arena.framesInUse() > 0 && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(0, arena.framesInUse());
+        assertSame(frame, arena.allocate());
+    }
+
+    /**
+     * HeapPages read by the pool live in frames, and a page still
+     * referenced after it was evicted keeps its frame and its tuples.
+     */
+    @Test
+    public void poolPagesLiveInFrames() throws Exception {
+        HeapFile file = SystemTestUtil.createRandomHeapFile(2, 10000, null, new ArrayList<>());
+        assertTrue(file.numPages() > POOL_PAGES);
+        FrameArena arena = Database.getBufferPool().getFrameArena();
+
+        HeapPage first = (HeapPage) Database.getBufferPool()
+                .getPage(tid, new HeapPageId(file.getId(), 0), Permissions.READ_ONLY);
+        assertTrue(first.isInFrame());
+        List<Tuple> expected = tuplesOf((HeapPage) file.readPage(first.getId()));
+        assertEquals(1, arena.framesInUse());
+
+        for (int i = 1; i < file.numPages(); i++) {
+            Database.getBufferPool().getPage(tid, new HeapPageId(file.getId(), i), Permissions.READ_ONLY);
+            assertTrue(arena.framesInUse() <= POOL_PAGES);
+        }
+        // page 0 was evicted on the way, but is still read from its frame
+        assertTrue(first.isInFrame());
+        List<Tuple> actual = tuplesOf(first);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).toString(), actual.get(i).toString());
+        }
+    }
+
+    /**
+     * The before image of a page in a frame is the frame, also after
+     * setBeforeImage.
+     */
+    @Test
+    public void beforeImageInFrame() throws Exception {
+        HeapFile file = SystemTestUtil.createRandomHeapFile(2, 1000, null, new ArrayList<>());
+        HeapPage page = (HeapPage) Database.getBufferPool()
+                .getPage(tid, new HeapPageId(file.getId(), 0), Permissions.READ_WRITE);
+        assertTrue(page.isInFrame());
+        int before = page.getNumEmptySlots();
+        page.deleteTuple(page.iterator().next());
+        assertEquals(before, page.getBeforeImage().getNumEmptySlots());
+
+        page.setBeforeImage();
+        assertTrue(page.isInFrame());
+        assertEquals(before + 1, page.getBeforeImage().getNumEmptySlots());
+        assertArrayEquals(page.getPageData(), page.getBeforeImage().getPageData());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FrameArenaTest.class);
+    }
+}
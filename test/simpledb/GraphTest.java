@@ -0,0 +1,58 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.storage.Graph;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class GraphTest extends SimpleDbTestBase {
+
+    /**
+     * Deleting the edges of a waiter takes back the in-degrees they added,
+     * so they do not make up a cycle later on.
+     */
+    @Test
+    public void deletedEdgesLeaveNoCycle() {
+        Graph g = new Graph();
+        TransactionId a = new TransactionId();
+        TransactionId b = new TransactionId();
+        g.add_edge(a, b);
+        g.add_edge(a, b);
+        assertTrue(g.topological_sort());
+        g.delete_edge(a);
+        g.add_edge(b, a);
+        assertTrue(g.topological_sort());
+        g.add_edge(a, b);
+        assertFalse(g.topological_sort());
+    }
+
+    /**
+     * Sorting leaves the graph as it was.
+     */
+    @Test
+    public void sortKeepsGraph() {
+        Graph g = new Graph();
+        TransactionId a = new TransactionId();
+        TransactionId b = new TransactionId();
+        TransactionId c = new TransactionId();
+        g.add_edge(a, b);
+        g.add_edge(b, c);
+        assertTrue(g.topological_sort());
+        assertTrue(g.topological_sort());
+        g.add_edge(c, a);
+        assertFalse(g.topological_sort());
+        assertFalse(g.topological_sort());
+        g.delete_edge(c);
+        assertTrue(g.topological_sort());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GraphTest.class);
+    }
+}
@@ -13,6 +13,7 @@ import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
 
 import java.util.Arrays;
+import java.util.Iterator;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -90,6 +91,100 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * Inserts into a memory-mapped HeapFile must remap when the file grows,
+     * and pages read through the mapping must see the written data.
+     */
+    @Test public void addTupleMmap() throws Exception {
+        empty.setMmapEnabled(true);
+        for (int i = 0; i < 504 * 2 + 1; ++i) {
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(3, empty.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+
+        HeapPage last = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), 2));
+        assertEquals(503, last.getNumEmptySlots());
+        Tuple t = last.iterator().next();
+        assertEquals(Utility.getHeapTuple(504 * 2, 2).getField(0), t.getField(0));
+
+        HeapPage first = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), 0));
+        assertEquals(0, first.getNumEmptySlots());
+        try {
+            empty.readPage(new HeapPageId(empty.getId(), 3));
+            fail("expected exception");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    /**
+     * Pages of a memory-mapped HeapFile are read in place; the page written
+     * keeps its before image, and another copy of it its own tuples.
+     */
+    @Test public void mmapPagesReadInPlace() throws Exception {
+        for (int i = 0; i < 10; ++i) {
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        empty.setMmapEnabled(true);
+        HeapPageId pid = new HeapPageId(empty.getId(), 0);
+        HeapPage mapped = (HeapPage) empty.readPage(pid);
+        assertFalse(mapped.isInFrame());
+
+        HeapPage page = (HeapPage) empty.readPage(pid);
+        page.insertTuple(Utility.getHeapTuple(10, 2));
+        empty.writePage(page);
+        assertEquals(493, page.getNumEmptySlots());
+        assertEquals(494, page.getBeforeImage().getNumEmptySlots());
+        int n = 0;
+        for (Iterator<Tuple> it = mapped.iterator(); it.hasNext(); it.next()) {
+            n++;
+        }
+        assertEquals(10, n);
+        assertEquals(493, ((HeapPage) empty.readPage(pid)).getNumEmptySlots());
+    }
+
+    /**
+     * Inserts skip pages the free-space map knows are full, without locking
+     * them, and the map survives reopening the file.
+     */
+    @Test public void freeSpaceMap() throws Exception {
+        for (int i = 0; i < 504 * 2 + 1; ++i) {
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(0, empty.getFreeSpaceMap().getFreeSlots(0));
+        assertEquals(0, empty.getFreeSpaceMap().getFreeSlots(1));
+        assertEquals(503, empty.getFreeSpaceMap().getFreeSlots(2));
+
+        tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(1, 2));
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 0)));
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 1)));
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 2)));
+        Database.getBufferPool().transactionComplete(tid);
+
+        // a fresh HeapFile over the same file picks the counts up from disk
+        HeapFile reopened = Utility.openHeapFile(2, empty.getFile());
+        assertEquals(0, reopened.getFreeSpaceMap().getFreeSlots(0));
+        assertEquals(2, reopened.getFreeSpaceMap().nextPageWithSpace(0, reopened.numPages()));
+    }
+
+    /**
+     * Writing a page leaves the stamp of the free-space map behind until the
+     * file is stamped at the end of a flush; a map stamped before the last
+     * write is not trusted when the file is opened again.
+     */
+    @Test public void freeSpaceMapStampedAfterFlush() throws Exception {
+        int pgNo = empty.numPages();
+        empty.writePage(new HeapPage(new HeapPageId(empty.getId(), pgNo), HeapPage.createEmptyPageData()));
+        empty.stampSidecars();
+        assertEquals(504, Utility.openHeapFile(2, empty.getFile()).getFreeSpaceMap().getFreeSlots(pgNo));
+
+        empty.writePage(new HeapPage(new HeapPageId(empty.getId(), pgNo + 1), HeapPage.createEmptyPageData()));
+        assertEquals(-1, Utility.openHeapFile(2, empty.getFile()).getFreeSpaceMap().getFreeSlots(pgNo));
+    }
+
     /**
      * JUnit suite target
      */
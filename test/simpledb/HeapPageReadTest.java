@@ -16,6 +16,7 @@ import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
 public class HeapPageReadTest extends SimpleDbTestBase {
@@ -123,6 +124,43 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.getTuple() and HeapPage.getField()
+     */
+    @Test public void getTupleAndField() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+
+        for (int i = 0; i < EXAMPLE_VALUES.length; ++i) {
+            assertEquals(EXAMPLE_VALUES[i][1], ((IntField) page.getField(i, 1)).getValue());
+            Tuple tup = page.getTuple(new RecordId(pid, i));
+            assertEquals(EXAMPLE_VALUES[i][0], ((IntField) tup.getField(0)).getValue());
+            assertEquals(new RecordId(pid, i), tup.getRecordId());
+        }
+
+        try {
+            page.getTuple(new RecordId(pid, 20));
+            fail("expected exception for empty slot");
+        } catch (NoSuchElementException ignored) {
+        }
+    }
+
+    /**
+     * Unit test for HeapPage.iterator(int[])
+     */
+    @Test public void testProjectedIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator(new int[]{1});
+
+        int row = 0;
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            assertEquals(1, tup.getTupleDesc().numFields());
+            assertEquals(EXAMPLE_VALUES[row][1], ((IntField) tup.getField(0)).getValue());
+            row++;
+        }
+        assertEquals(EXAMPLE_VALUES.length, row);
+    }
+
     /**
      * JUnit suite target
      */
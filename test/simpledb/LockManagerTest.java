@@ -0,0 +1,470 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Lock;
+import simpledb.transaction.LockBenchmark;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LockManagerTest extends SimpleDbTestBase {
+    private static final Lock.LockType S = Lock.LockType.SHARING;
+    private static final Lock.LockType X = Lock.LockType.EXCLUSIVE;
+
+    private LockManager lm;
+    private final PageId p0 = new HeapPageId(1, 0);
+    private final PageId p1 = new HeapPageId(1, 1);
+    private final PageId p2 = new HeapPageId(1, 2);
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        lm = new LockManager();
+    }
+
+    /**
+     * Requests the lock on a thread of its own, and returns once the request
+     * is granted or waits in the queue of the page.
+     */
+    private CompletableFuture<Void> acquireAsync(TransactionId tid, PageId pid, Lock.LockType type)
+            throws InterruptedException {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        int queued = lm.getQueueLength(pid);
+        Thread t = new Thread(() -> {
+            try {
+                lm.acquire(tid, pid, type);
+                done.complete(null);
+            } catch (TransactionAbortedException e) {
+                done.completeExceptionally(e);
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!done.isDone() && lm.getQueueLength(pid) == queued && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        return done;
+    }
+
+    /**
+     * Waiting requests are granted in the order they arrived, and a shared
+     * request does not go ahead of an exclusive one waiting before it.
+     */
+    @Test
+    public void fifoGrant() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        lm.acquire(t1, p0, S);
+        CompletableFuture<Void> w2 = acquireAsync(t2, p0, X);
+        CompletableFuture<Void> w3 = acquireAsync(t3, p0, S);
+        assertEquals(2, lm.getQueueLength(p0));
+        assertFalse(lm.getLock(new TransactionId(), p0, S));
+
+        lm.releaseLock(t1, p0);
+        w2.get(5, TimeUnit.SECONDS);
+        assertTrue(lm.holdLock(t2, p0));
+        assertFalse(w3.isDone());
+
+        lm.realeaseAllLocks(t2);
+        w3.get(5, TimeUnit.SECONDS);
+        assertTrue(lm.holdLock(t3, p0));
+        assertEquals(0, lm.getQueueLength(p0));
+    }
+
+    /**
+     * An upgrade goes ahead of the requests already waiting.
+     */
+    @Test
+    public void upgradeFirst() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        lm.acquire(t1, p0, S);
+        lm.acquire(t2, p0, S);
+        CompletableFuture<Void> w3 = acquireAsync(t3, p0, X);
+        CompletableFuture<Void> up = acquireAsync(t1, p0, X);
+        assertEquals(2, lm.getQueueLength(p0));
+
+        lm.releaseLock(t2, p0);
+        up.get(5, TimeUnit.SECONDS);
+        assertFalse(w3.isDone());
+
+        lm.releaseLock(t1, p0);
+        w3.get(5, TimeUnit.SECONDS);
+        assertTrue(lm.holdLock(t3, p0));
+    }
+
+    /**
+     * Of a cycle of waits, the transaction holding the fewest locks is
+     * aborted, even if it was not the one to close the cycle; the other
+     * gets its lock once the victim lets go.
+     */
+    @Test
+    public void victimHoldsFewestLocks() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquire(t1, p0, X);
+        lm.acquire(t2, p1, X);
+        lm.acquire(t2, p2, X);
+        CompletableFuture<Void> w1 = acquireAsync(t1, p1, X);
+        CompletableFuture<Void> w2 = acquireAsync(t2, p0, X);
+        try {
+            w1.get(5, TimeUnit.SECONDS);
+            fail("expected TransactionAbortedException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TransactionAbortedException);
+        }
+        assertFalse(w2.isDone());
+
+        lm.realeaseAllLocks(t1);
+        w2.get(5, TimeUnit.SECONDS);
+        assertTrue(lm.holdLock(t2, p0));
+        assertEquals(0, lm.getQueueLength(p1));
+    }
+
+    /**
+     * Of transactions holding as many locks, the youngest is aborted.
+     */
+    @Test
+    public void victimIsYoungest() throws Exception {
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquire(older, p0, S);
+        lm.acquire(younger, p0, S);
+        CompletableFuture<Void> up1 = acquireAsync(younger, p0, X);
+        CompletableFuture<Void> up2 = acquireAsync(older, p0, X);
+        try {
+            up1.get(5, TimeUnit.SECONDS);
+            fail("expected TransactionAbortedException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TransactionAbortedException);
+        }
+
+        lm.realeaseAllLocks(younger);
+        up2.get(5, TimeUnit.SECONDS);
+        assertTrue(lm.holdLock(older, p0));
+    }
+
+    private static void assertAborted(CompletableFuture<Void> f) throws Exception {
+        try {
+            f.get(5, TimeUnit.SECONDS);
+            fail("expected TransactionAbortedException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TransactionAbortedException);
+        }
+    }
+
+    /**
+     * Under WAIT_DIE an older transaction waits for a younger one, and a
+     * younger one aborts rather than wait for an older one.
+     */
+    @Test
+    public void waitDie() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WAIT_DIE);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquire(older, p0, X);
+        lm.acquire(younger, p1, X);
+        CompletableFuture<Void> w = acquireAsync(older, p1, X);
+        assertEquals(1, lm.getQueueLength(p1));
+        assertAborted(acquireAsync(younger, p0, X));
+        assertEquals(0, lm.getQueueLength(p0));
+
+        lm.realeaseAllLocks(younger);
+        w.get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Under WOUND_WAIT an older transaction aborts a younger one in its way
+     * and waits for it to let go; a younger one waits for an older one.
+     */
+    @Test
+    public void woundWait() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WOUND_WAIT);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquire(older, p0, X);
+        lm.acquire(younger, p1, X);
+        CompletableFuture<Void> wy = acquireAsync(younger, p0, X);
+        CompletableFuture<Void> wo = acquireAsync(older, p1, X);
+        assertAborted(wy);
+        assertFalse(wo.isDone());
+        try {
+            lm.acquire(younger, p2, X);
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException expected) {
+        }
+
+        lm.realeaseAllLocks(younger);
+        wo.get(5, TimeUnit.SECONDS);
+        assertTrue(lm.holdLock(older, p1));
+
+        // once it completed, the younger transaction waits as usual
+        CompletableFuture<Void> again = acquireAsync(younger, p0, S);
+        assertEquals(1, lm.getQueueLength(p0));
+        lm.realeaseAllLocks(older);
+        again.get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Under NO_WAIT a request that would wait aborts at once, and under
+     * TIMEOUT once it waited for the lock timeout.
+     */
+    @Test
+    public void noWaitAndTimeout() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquire(t1, p0, X);
+
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.NO_WAIT);
+        try {
+            lm.acquire(t2, p0, S);
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException expected) {
+        }
+        assertEquals(0, lm.getQueueLength(p0));
+
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.TIMEOUT);
+        lm.setLockTimeout(50);
+        long start = System.currentTimeMillis();
+        try {
+            lm.acquire(t2, p0, S);
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException expected) {
+        }
+        assertTrue(System.currentTimeMillis() - start >= 50);
+        assertEquals(0, lm.getQueueLength(p0));
+    }
+
+    /**
+     * Every policy keeps transactions that lock pages in random order
+     * committing.
+     */
+    @Test
+    public void benchmark() throws Exception {
+        for (LockManager.DeadlockPolicy policy : LockManager.DeadlockPolicy.values()) {
+            LockBenchmark.Result r = LockBenchmark.run(policy, 4, 8, 4, 0.5, 200);
+            assertTrue(policy + " committed nothing", r.commits > 0);
+        }
+    }
+
+    /**
+     * Threads lock pages of their own, share one page and now and then take
+     * it exclusively, asking again for locks they hold in between: an
+     * exclusive holder of the shared page is never alongside another holder,
+     * and once all are done no lock or request is left.
+     */
+    @Test
+    public void latchPerKey() throws Exception {
+        PageId shared = p0;
+        AtomicInteger readers = new AtomicInteger();
+        AtomicInteger writers = new AtomicInteger();
+        AtomicInteger clashes = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            PageId own = new HeapPageId(2, i);
+            threads[i] = new Thread(() -> {
+                for (int round = 0; round < 300; round++) {
+                    TransactionId tid = new TransactionId();
+                    boolean write = round % 10 == 0;
+                    try {
+                        lm.acquire(tid, own, X);
+                        lm.acquire(tid, shared, write ? X : S);
+                        (write ? writers : readers).incrementAndGet();
+                        for (int again = 0; again < 20; again++) {
+                            lm.acquire(tid, own, S);
+                            lm.acquire(tid, shared, S);
+                            if (writers.get() > 1 || write && readers.get() > 0) {
+                                clashes.incrementAndGet();
+                            }
+                        }
+                        (write ? writers : readers).decrementAndGet();
+                    } catch (TransactionAbortedException e) {
+                        // a deadlock victim, or lost an upgrade race
+                    } finally {
+                        lm.realeaseAllLocks(tid);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(0, clashes.get());
+        assertTrue(lm.getCurrentOwners(shared).isEmpty());
+        assertEquals(0, lm.getQueueLength(shared));
+        assertEquals(0, lm.getTableQueueLength(1));
+    }
+
+    /**
+     * Compatible modes are compatible both ways, and the join of two modes
+     * covers both.
+     */
+    @Test
+    public void lockModes() {
+        for (Lock.LockType a : Lock.LockType.values()) {
+            for (Lock.LockType b : Lock.LockType.values()) {
+                assertEquals(a.compatibleWith(b), b.compatibleWith(a));
+                assertTrue(a.join(b).covers(a));
+                assertTrue(a.join(b).covers(b));
+            }
+        }
+        assertEquals(Lock.LockType.SHARING_INTENTION_EXCLUSIVE, S.join(Lock.LockType.INTENTION_EXCLUSIVE));
+        assertTrue(Lock.LockType.INTENTION_SHARING.compatibleWith(Lock.LockType.SHARING_INTENTION_EXCLUSIVE));
+        assertFalse(Lock.LockType.INTENTION_EXCLUSIVE.compatibleWith(S));
+    }
+
+    /**
+     * Page locks come with intention locks on their table, which keep out
+     * a conflicting table lock.
+     */
+    @Test
+    public void intentionLocks() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        lm.acquire(t1, p0, X);
+        lm.acquire(t2, p1, S);
+        assertEquals(Lock.LockType.INTENTION_EXCLUSIVE, lm.getTableLock(t1, 1));
+        assertEquals(Lock.LockType.INTENTION_SHARING, lm.getTableLock(t2, 1));
+
+        CompletableFuture<Void> scan = new CompletableFuture<>();
+        Thread t = new Thread(() -> {
+            try {
+                lm.acquireTable(t3, 1, S);
+                scan.complete(null);
+            } catch (TransactionAbortedException e) {
+                scan.completeExceptionally(e);
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (lm.getTableQueueLength(1) == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertFalse(scan.isDone());
+
+        lm.realeaseAllLocks(t1);
+        scan.get(5, TimeUnit.SECONDS);
+        assertEquals(S, lm.getTableLock(t3, 1));
+    }
+
+    /**
+     * A table lock stands in for the page locks under it.
+     */
+    @Test
+    public void tableLockCoversPages() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquireTable(t1, 1, S);
+        lm.acquire(t1, p0, S);
+        assertTrue(lm.getPagesLockedBy(t1).isEmpty());
+        assertTrue(lm.holdLock(t1, p0));
+
+        assertTrue(lm.getLock(t2, p1, S));
+        assertFalse(lm.getLock(t2, p2, X));
+
+        // writing a page under a shared table lock takes SIX on the table
+        lm.acquire(t1, p0, X);
+        assertEquals(Lock.LockType.SHARING_INTENTION_EXCLUSIVE, lm.getTableLock(t1, 1));
+        assertEquals(1, lm.getPagesLockedBy(t1).size());
+    }
+
+    /**
+     * Past the threshold, page locks are traded for a table lock: shared
+     * if they were all shared, exclusive otherwise.
+     */
+    @Test
+    public void escalation() throws Exception {
+        lm.setEscalationThreshold(4);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquire(t2, new HeapPageId(1, 10), S);
+        for (int i = 0; i < 3; i++) {
+            lm.acquire(t1, new HeapPageId(1, i), S);
+        }
+        assertEquals(3, lm.getPagesLockedBy(t1).size());
+        lm.acquire(t1, new HeapPageId(1, 3), S);
+        assertEquals(S, lm.getTableLock(t1, 1));
+        assertTrue(lm.getPagesLockedBy(t1).isEmpty());
+        assertTrue(lm.holdLock(t1, new HeapPageId(1, 7)));
+
+        for (int i = 0; i < 4; i++) {
+            lm.acquire(t1, new HeapPageId(2, i), i == 0 ? X : S);
+        }
+        assertEquals(X, lm.getTableLock(t1, 2));
+        assertTrue(lm.getPagesLockedBy(t1).isEmpty());
+
+        // an exclusive table lock cannot be had while others read
+        lm.acquire(t1, new HeapPageId(3, 10), S);
+        for (int i = 0; i < 4; i++) {
+            lm.acquire(t2, new HeapPageId(3, i), X);
+        }
+        assertEquals(Lock.LockType.INTENTION_EXCLUSIVE, lm.getTableLock(t2, 3));
+        assertEquals(5, lm.getPagesLockedBy(t2).size());
+    }
+
+    /**
+     * Record locks count toward the threshold along with the page locks
+     * above them.
+     */
+    @Test
+    public void recordLocksEscalate() throws Exception {
+        lm.setEscalationThreshold(4);
+        TransactionId t1 = new TransactionId();
+        HeapPageId pid = new HeapPageId(4, 0);
+        lm.acquireRecord(t1, new RecordId(pid, 0), X);
+        lm.acquireRecord(t1, new RecordId(pid, 1), X);
+        assertEquals(Lock.LockType.INTENTION_EXCLUSIVE, lm.getTableLock(t1, 4));
+        lm.acquireRecord(t1, new RecordId(pid, 2), X);
+        assertEquals(X, lm.getTableLock(t1, 4));
+        assertTrue(lm.getPagesLockedBy(t1).isEmpty());
+        assertTrue(lm.holdRecordLock(t1, new RecordId(pid, 9), X));
+    }
+
+    /**
+     * A scan of a table as large as the escalation threshold takes one
+     * table lock.
+     */
+    @Test
+    public void largeScanLocksTable() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HeapFile file = SystemTestUtil.createRandomHeapFile(2, 5000, null, new ArrayList<>());
+        bp.getLockManager().setEscalationThreshold(file.numPages());
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+        }
+        it.close();
+        assertEquals(S, bp.getLockManager().getTableLock(tid, file.getId()));
+        assertTrue(bp.getLockManager().getPagesLockedBy(tid).isEmpty());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,168 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class PagePinTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 4;
+
+    private HeapFile file;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        Database.resetBufferPool(POOL_PAGES);
+        file = SystemTestUtil.createRandomHeapFile(2, 5000, null, new ArrayList<>());
+        assertTrue(file.numPages() > POOL_PAGES);
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private HeapPageId pid(int pgNo) {
+        return new HeapPageId(file.getId(), pgNo);
+    }
+
+    private void readAllPages() throws Exception {
+        for (int i = 0; i < file.numPages(); i++) {
+            Database.getBufferPool().getPage(tid, pid(i), Permissions.READ_ONLY);
+        }
+    }
+
+    /**
+     * A pinned page stays in the pool while the pages around it are
+     * evicted, and can be evicted once unpinned.
+     */
+    @Test
+    public void pinnedPageIsNotEvicted() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        Page pinned = bp.pinPage(tid, pid(0), Permissions.READ_ONLY);
+        assertEquals(1, bp.getPinCount(pid(0)));
+        readAllPages();
+        readAllPages();
+        assertSame(pinned, bp.getPage(tid, pid(0), Permissions.READ_ONLY));
+
+        bp.unpinPage(tid, pid(0));
+        assertEquals(0, bp.getPinCount(pid(0)));
+        readAllPages();
+        assertNotSame(pinned, bp.getPage(tid, pid(0), Permissions.READ_ONLY));
+    }
+
+    /**
+     * Pins nest, and unpinning a page that is not pinned does nothing.
+     */
+    @Test
+    public void pinsAreCounted() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        bp.pinPage(tid, pid(1), Permissions.READ_ONLY);
+        bp.pinPage(tid, pid(1), Permissions.READ_ONLY);
+        assertEquals(2, bp.getPinCount(pid(1)));
+
+        TransactionId other = new TransactionId();
+        bp.unpinPage(other, pid(1));
+        assertEquals(2, bp.getPinCount(pid(1)));
+        bp.transactionComplete(other);
+
+        bp.unpinPage(tid, pid(1));
+        assertEquals(1, bp.getPinCount(pid(1)));
+        bp.unpinPage(tid, pid(1));
+        bp.unpinPage(tid, pid(1));
+        assertEquals(0, bp.getPinCount(pid(1)));
+    }
+
+    /**
+     * A pin on a page that was discarded is taken from the frame it was
+     * on, not from the page read again in its place.
+     */
+    @Test
+    public void unpinDiscardedPage() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        Page first = bp.pinPage(tid, pid(2), Permissions.READ_ONLY);
+        bp.discardPage(pid(2));
+
+        TransactionId other = new TransactionId();
+        Page second = bp.pinPage(other, pid(2), Permissions.READ_ONLY);
+        assertNotSame(first, second);
+        assertEquals(1, bp.getPinCount(pid(2)));
+
+        bp.unpinPage(tid, pid(2));
+        assertEquals(1, bp.getPinCount(pid(2)));
+        bp.transactionComplete(tid);
+        assertEquals(1, bp.getPinCount(pid(2)));
+        bp.unpinPage(other, pid(2));
+        assertEquals(0, bp.getPinCount(pid(2)));
+        bp.transactionComplete(other);
+        tid = new TransactionId();
+    }
+
+    /**
+     * With every page pinned there is nothing to evict; completing the
+     * transaction releases its pins.
+     */
+    @Test
+    public void allPinned() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < POOL_PAGES; i++) {
+            bp.pinPage(tid, pid(i), Permissions.READ_ONLY);
+        }
+        try {
+            bp.getPage(tid, pid(POOL_PAGES), Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (DbException expected) {
+        }
+        bp.transactionComplete(tid);
+        for (int i = 0; i < POOL_PAGES; i++) {
+            assertEquals(0, bp.getPinCount(pid(i)));
+        }
+        tid = new TransactionId();
+        bp.getPage(tid, pid(POOL_PAGES), Permissions.READ_ONLY);
+    }
+
+    /**
+     * A scan pins the page it is reading, and only that one.
+     */
+    @Test
+    public void scanPinsCurrentPage() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        it.next();
+        assertEquals(1, bp.getPinCount(pid(0)));
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int pgNo = t.getRecordId().getPageId().getPageNumber();
+            assertEquals(1, bp.getPinCount(pid(pgNo)));
+            if (pgNo > 0) {
+                assertEquals(0, bp.getPinCount(pid(pgNo - 1)));
+            }
+        }
+        it.close();
+        for (int i = 0; i < file.numPages(); i++) {
+            assertEquals(0, bp.getPinCount(pid(i)));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PagePinTest.class);
+    }
+}
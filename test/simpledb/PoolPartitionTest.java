@@ -0,0 +1,144 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.*;
+import simpledb.systemtest.InstrumentedHeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class PoolPartitionTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 16;
+
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        Database.resetBufferPool(POOL_PAGES);
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private void readAll(HeapFile file) throws Exception {
+        for (int i = 0; i < file.numPages(); i++) {
+            Database.getBufferPool().getPage(tid, new HeapPageId(file.getId(), i), Permissions.READ_ONLY);
+        }
+    }
+
+    /**
+     * The pages of a table with a partition of its own stay cached while
+     * other tables churn through the rest of the pool.
+     */
+    @Test
+    public void tablePartition() throws Exception {
+        InstrumentedHeapFile hot = new InstrumentedHeapFile(
+                SystemTestUtil.createRandomHeapFileUnopened(2, 2000, 1000, null, new ArrayList<>()), Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hot, "hot");
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 20000, null, new ArrayList<>());
+        assertTrue(big.numPages() > POOL_PAGES);
+
+        BufferPool bp = Database.getBufferPool();
+        bp.addTablePartition("hot", hot.numPages(), new LruPolicy(), hot.getId());
+        assertEquals(Arrays.asList(BufferPool.GENERAL_PARTITION, "hot"), bp.getPartitionNames());
+        assertEquals(POOL_PAGES - hot.numPages(), bp.getNumPages(BufferPool.GENERAL_PARTITION));
+        assertEquals(POOL_PAGES, bp.getNumPages());
+
+        readAll(hot);
+        for (int i = 0; i < 3; i++) {
+            readAll(big);
+            readAll(hot);
+        }
+        assertEquals(hot.numPages(), hot.reads.get());
+        assertEquals(hot.numPages(), bp.getResidentPages("hot"));
+        assertTrue(bp.getResidentPages(BufferPool.GENERAL_PARTITION) <= POOL_PAGES - hot.numPages());
+    }
+
+    /**
+     * Upper levels of a B+ tree routed to a partition by page kind stay
+     * cached while its leaves are scanned.
+     */
+    @Test
+    public void indexPartition() throws Exception {
+        BTreeFile index = BTreeUtility.createRandomBTreeFile(2, 40000, null, null, 0);
+        // creating the file resets the pool
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+        bp.addPartition("index", 4, new LruPolicy(),
+                pid -> pid instanceof BTreePageId && ((BTreePageId) pid).pgcateg() != BTreePageId.LEAF);
+
+        DbFileIterator it = index.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(1)));
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+        }
+        it.close();
+        int upper = bp.getResidentPages("index");
+        // the root pointer and at least one internal page
+        assertTrue(upper >= 2);
+
+        it = index.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        assertEquals(40000, n);
+        assertEquals(upper, bp.getResidentPages("index"));
+        assertTrue(bp.getResidentPages(BufferPool.GENERAL_PARTITION) <= POOL_PAGES - 4);
+    }
+
+    /**
+     * Partitions are set aside from the general partition, which keeps at
+     * least a page, and keep their size when the budget changes.
+     */
+    @Test
+    public void sizes() {
+        BufferPool bp = Database.getBufferPool();
+        bp.addPartition("a", 4, new LruPolicy(), pid -> false);
+        try {
+            bp.addPartition("a", 1, new LruPolicy(), pid -> false);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            bp.addPartition("b", POOL_PAGES - 4, new LruPolicy(), pid -> false);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(0, bp.getNumPages("b"));
+
+        bp.setByteBudget(32L * BufferPool.getPageSize());
+        assertEquals(4, bp.getNumPages("a"));
+        assertEquals(28, bp.getNumPages(BufferPool.GENERAL_PARTITION));
+        assertEquals(32, bp.getNumPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PoolPartitionTest.class);
+    }
+}
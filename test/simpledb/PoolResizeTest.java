@@ -0,0 +1,140 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class PoolResizeTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 32;
+
+    private HeapFile file;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        Database.resetBufferPool(POOL_PAGES);
+        file = SystemTestUtil.createRandomHeapFile(2, 20000, null, new ArrayList<>());
+        assertTrue(file.numPages() > POOL_PAGES);
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private void readPages(int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            Database.getBufferPool().getPage(tid, new HeapPageId(file.getId(), i), Permissions.READ_ONLY);
+        }
+    }
+
+    /** Waits for the pool to shed pages down to at most pages. */
+    private void awaitResident(int pages) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Database.getBufferPool().getResidentPages() > pages && System.currentTimeMillis() < deadline) {
+            Thread.sleep(BufferPool.SHRINK_INTERVAL_MS);
+        }
+        assertTrue(Database.getBufferPool().getResidentPages() <= pages);
+    }
+
+    /** Waits for the frames of the evicted pages to come back, once the pages are gone. */
+    private void awaitFrames(int frames) throws InterruptedException {
+        FrameArena arena = Database.getBufferPool().getFrameArena();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (arena.framesInUse() > frames && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(BufferPool.SHRINK_INTERVAL_MS);
+        }
+        assertTrue(arena.framesInUse() <= frames);
+    }
+
+    /**
+     * The budget is rounded down to whole pages, and is at least one page.
+     */
+    @Test
+    public void budgetInPages() {
+        BufferPool bp = Database.getBufferPool();
+        assertEquals((long) POOL_PAGES * BufferPool.getPageSize(), bp.getByteBudget());
+        bp.setByteBudget(3L * BufferPool.getPageSize() + 10);
+        assertEquals(3, bp.getNumPages());
+        assertEquals(3L * BufferPool.getPageSize(), bp.getByteBudget());
+        bp.setByteBudget(0);
+        assertEquals(1, bp.getNumPages());
+    }
+
+    /**
+     * A grown pool holds more pages at once.
+     */
+    @Test
+    public void grow() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        readPages(file.numPages());
+        assertEquals(POOL_PAGES, bp.getResidentPages());
+
+        bp.setByteBudget(2L * POOL_PAGES * BufferPool.getPageSize());
+        assertEquals(2 * POOL_PAGES, bp.getFrameArena().getMaxFrames());
+        readPages(file.numPages());
+        assertEquals(Math.min(file.numPages(), 2 * POOL_PAGES), bp.getResidentPages());
+    }
+
+    /**
+     * A shrunk pool sheds its clean pages in the background and gives back
+     * their frames.
+     */
+    @Test
+    public void shrink() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        readPages(POOL_PAGES);
+        bp.setByteBudget(4L * BufferPool.getPageSize());
+        awaitResident(4);
+        awaitFrames(4);
+
+        readPages(file.numPages());
+        assertTrue(bp.getResidentPages() <= 4);
+        assertTrue(bp.getFrameArena().framesInUse() <= 4);
+    }
+
+    /**
+     * Dirty pages over the budget stay until they are clean.
+     */
+    @Test
+    public void shrinkKeepsDirtyPages() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        HeapFile empty = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(1));
+        t.setField(1, new IntField(2));
+        bp.insertTuple(tid, empty.getId(), t);
+        bp.insertTuple(tid, file.getId(), t);
+
+        bp.setByteBudget(BufferPool.getPageSize());
+        awaitResident(2);
+        assertEquals(2, bp.getResidentPages());
+
+        bp.transactionComplete(tid);
+        tid = new TransactionId();
+        readPages(1);
+        assertEquals(1, bp.getResidentPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PoolResizeTest.class);
+    }
+}
@@ -0,0 +1,195 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Filter;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Lock;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class RecordLockingTest extends SimpleDbTestBase {
+    private File f;
+    private HeapFile file;
+    private HeapPageId p0;
+    private List<List<Integer>> tuples;
+    private BufferPool bp;
+    private LockManager lm;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        f = SystemTestUtil.createRandomHeapFileUnopened(2, 20, 1000, null, tuples);
+        file = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(file, "records");
+        p0 = new HeapPageId(file.getId(), 0);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        lm = bp.getLockManager();
+    }
+
+    private static Tuple tuple(int i) {
+        return Utility.getHeapTuple(new int[]{i, -i});
+    }
+
+    /** @return the tuples on disk, read past the BufferPool */
+    private List<Tuple> onDisk() {
+        HeapFile raw = new HeapFile(f, file.getTupleDesc());
+        List<Tuple> res = new ArrayList<>();
+        for (int p = 0; p < raw.numPages(); p++) {
+            HeapPage page = (HeapPage) raw.readPage(new HeapPageId(file.getId(), p));
+            page.iterator().forEachRemaining(res::add);
+        }
+        return res;
+    }
+
+    private static List<List<Integer>> values(List<Tuple> ts) {
+        List<List<Integer>> res = new ArrayList<>();
+        for (Tuple t : ts) {
+            res.add(SystemTestUtil.tupleToList(t));
+        }
+        return res;
+    }
+
+    private void assertOnDisk(List<List<Integer>> expected) {
+        List<List<Integer>> actual = values(onDisk());
+        Comparator<List<Integer>> byValue = Comparator.comparing((List<Integer> l) -> l.get(0)).thenComparing(l -> l.get(1));
+        expected = new ArrayList<>(expected);
+        expected.sort(byValue);
+        actual.sort(byValue);
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * Two transactions insert into the same page without waiting; each
+     * commit writes its own tuples only, and an abort takes back only the
+     * tuples of the aborting one.
+     */
+    @Test
+    public void insertsShareAPage() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.insertTuple(t1, file.getId(), tuple(5000));
+        bp.insertTuple(t2, file.getId(), tuple(6000));
+        assertEquals(1, file.numPages());
+        assertEquals(2, lm.getCurrentOwners(p0).size());
+
+        bp.transactionComplete(t1, true);
+        tuples.add(Arrays.asList(5000, -5000));
+        assertOnDisk(tuples);
+
+        bp.transactionComplete(t2, false);
+        assertOnDisk(tuples);
+        SystemTestUtil.matchTuples(file, tuples);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(file, tuples);
+    }
+
+    /**
+     * A delete locks its tuple only: another transaction can delete other
+     * tuples of the page, but cannot take the slot it freed.
+     */
+    @Test
+    public void deleteLocksOnlyTheTuple() throws Exception {
+        List<Tuple> stored = onDisk();
+        Tuple a = stored.get(0);
+        Tuple b = stored.get(1);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.deleteTuple(t1, a);
+        bp.deleteTuple(t2, b);
+        assertFalse(lm.getRecordLock(t2, a.getRecordId(), Lock.LockType.EXCLUSIVE));
+
+        Tuple c = tuple(7000);
+        bp.insertTuple(t2, file.getId(), c);
+        assertNotEquals(a.getRecordId(), c.getRecordId());
+        assertEquals(b.getRecordId(), c.getRecordId());
+
+        bp.transactionComplete(t1, false);
+        bp.transactionComplete(t2, true);
+        tuples.remove(SystemTestUtil.tupleToList(b));
+        tuples.add(Arrays.asList(7000, -7000));
+        assertOnDisk(tuples);
+        SystemTestUtil.matchTuples(file, tuples);
+    }
+
+    /**
+     * Another writer committing on the page leaves the zone map entry wide
+     * enough for the tuples still uncommitted on it.
+     */
+    @Test
+    public void filteredScanAfterOtherCommit() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.insertTuple(t2, file.getId(), tuple(5000));
+        bp.insertTuple(t1, file.getId(), tuple(500));
+        bp.transactionComplete(t1, true);
+
+        Predicate p = new Predicate(0, Predicate.Op.EQUALS, new IntField(5000));
+        SeqScan scan = new SeqScan(t2, file.getId(), "r");
+        scan.addPagePredicate(p);
+        Filter filter = new Filter(p, scan);
+        filter.open();
+        assertTrue(filter.hasNext());
+        assertEquals(SystemTestUtil.tupleToList(tuple(5000)), SystemTestUtil.tupleToList(filter.next()));
+        assertFalse(filter.hasNext());
+        filter.close();
+        bp.transactionComplete(t2, true);
+    }
+
+    /**
+     * A reader of the page waits for the transactions changing tuples on
+     * it, and they wait for it.
+     */
+    @Test
+    public void readersExcludeWriters() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.insertTuple(t1, file.getId(), tuple(5000));
+        assertFalse(lm.getLock(t2, p0, Lock.LockType.SHARING));
+        bp.transactionComplete(t1, true);
+
+        assertTrue(lm.getLock(t2, p0, Lock.LockType.SHARING));
+        assertFalse(lm.getRecordLock(t1, new RecordId(p0, 0), Lock.LockType.EXCLUSIVE));
+    }
+
+    /**
+     * Under STEAL, a page written early is undone as a whole, so record
+     * writers lock it exclusively.
+     */
+    @Test
+    public void stealLocksPages() throws Exception {
+        bp.setStealEnabled(true);
+        try {
+            TransactionId t1 = new TransactionId();
+            TransactionId t2 = new TransactionId();
+            bp.insertTuple(t1, file.getId(), tuple(5000));
+            assertFalse(lm.getLock(t2, p0, Lock.LockType.INTENTION_EXCLUSIVE));
+            bp.transactionComplete(t1, false);
+            assertTrue(lm.getLock(t2, p0, Lock.LockType.INTENTION_EXCLUSIVE));
+            bp.transactionComplete(t2, true);
+        } finally {
+            bp.setStealEnabled(false);
+        }
+        assertOnDisk(tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecordLockingTest.class);
+    }
+}
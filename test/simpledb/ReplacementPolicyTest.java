@@ -0,0 +1,194 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static PageId page(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    private static PageId evict(ReplacementPolicy policy) {
+        PageId victim = policy.victim(pid -> true);
+        if (victim != null) {
+            policy.remove(victim);
+        }
+        return victim;
+    }
+
+    @Test
+    public void lru() {
+        ReplacementPolicy policy = new LruPolicy();
+        for (int i = 0; i < 4; i++) {
+            policy.admit(page(i));
+        }
+        policy.access(page(0));
+        policy.access(page(2));
+        assertEquals(page(1), evict(policy));
+        assertEquals(page(3), evict(policy));
+        // pages that may not be evicted are passed over
+        assertEquals(page(2), policy.victim(pid -> !pid.equals(page(0))));
+        assertEquals(page(0), evict(policy));
+    }
+
+    @Test
+    public void clockGivesSecondChance() {
+        ReplacementPolicy policy = new ClockPolicy(4);
+        for (int i = 0; i < 4; i++) {
+            policy.admit(page(i));
+        }
+        policy.access(page(0));
+        policy.access(page(1));
+        assertEquals(page(2), evict(policy));
+        // the reference bits of 0 and 1 were cleared by the sweep
+        policy.admit(page(4));
+        assertEquals(page(3), evict(policy));
+        assertEquals(page(0), evict(policy));
+
+        // a slot freed by remove is reused and the ring still grows
+        for (int i = 5; i < 20; i++) {
+            policy.admit(page(i));
+        }
+        Set<PageId> evicted = new HashSet<>();
+        PageId victim;
+        while ((victim = evict(policy)) != null) {
+            assertTrue(evicted.add(victim));
+        }
+        assertEquals(17, evicted.size());
+        assertNull(policy.victim(pid -> true));
+    }
+
+    @Test
+    public void twoQueueResistsScans() {
+        ReplacementPolicy policy = new TwoQueuePolicy(8);
+        // page 0 is read, evicted and read again: it becomes hot
+        policy.admit(page(0));
+        assertEquals(page(0), evict(policy));
+        policy.admit(page(0));
+        // a scan passes through A1in only
+        for (int i = 100; i < 200; i++) {
+            policy.admit(page(i));
+            policy.access(page(i));
+            if (i >= 103) {
+                PageId victim = evict(policy);
+                assertNotEquals(page(0), victim);
+                assertTrue(victim.getPageNumber() >= 100);
+            }
+        }
+        // hits in A1in do not count, hits in Am do
+        assertNotEquals(page(0), policy.victim(pid -> true));
+    }
+
+    /**
+     * Hits on LRU and 2Q pages run without the policy's lock, while other
+     * threads admit and evict pages; every victim is a page still tracked.
+     */
+    @Test
+    public void hitsRaceWithEviction() throws Exception {
+        for (ReplacementPolicy policy : new ReplacementPolicy[]{new LruPolicy(), new TwoQueuePolicy(16)}) {
+            Set<PageId> tracked = Collections.synchronizedSet(new HashSet<>());
+            for (int i = 0; i < 16; i++) {
+                policy.admit(page(i));
+                tracked.add(page(i));
+            }
+            Thread[] hitters = new Thread[4];
+            for (int t = 0; t < hitters.length; t++) {
+                int seed = t;
+                hitters[t] = new Thread(() -> {
+                    Random r = new Random(seed);
+                    for (int i = 0; i < 200000; i++) {
+                        policy.access(page(r.nextInt(64)));
+                    }
+                });
+                hitters[t].start();
+            }
+            for (int next = 16; next < 5000; next++) {
+                PageId victim = evict(policy);
+                assertTrue(tracked.remove(victim));
+                policy.admit(page(next % 64));
+                tracked.add(page(next % 64));
+            }
+            for (Thread t : hitters) {
+                t.join();
+            }
+            assertEquals(tracked, new HashSet<>(policy.hottest()));
+        }
+    }
+
+    /**
+     * The hottest pages come first, the next victim last.
+     */
+    @Test
+    public void hottest() {
+        ReplacementPolicy lru = new LruPolicy();
+        ReplacementPolicy clock = new ClockPolicy(4);
+        ReplacementPolicy twoQueue = new TwoQueuePolicy(8);
+        for (ReplacementPolicy policy : Arrays.asList(lru, clock, twoQueue)) {
+            for (int i = 0; i < 4; i++) {
+                policy.admit(page(i));
+            }
+            policy.access(page(2));
+            List<PageId> hottest = policy.hottest();
+            assertEquals(4, hottest.size());
+            assertEquals(new HashSet<>(hottest).size(), hottest.size());
+            assertEquals(policy.victim(pid -> true), hottest.get(hottest.size() - 1));
+        }
+        assertEquals(Arrays.asList(page(2), page(3), page(1), page(0)), lru.hottest());
+        assertEquals(page(2), clock.hottest().get(0));
+    }
+
+    /**
+     * Each policy runs a buffer pool: a scan of a table larger than the pool
+     * sees every tuple, and the pool never reads more pages than needed.
+     */
+    @Test
+    public void bufferPool() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 10000, 1000, null, tuples);
+        AtomicInteger reads = new AtomicInteger();
+        HeapFile file = new HeapFile(f, Utility.getTupleDesc(2)) {
+            @Override
+            public Page readPage(PageId pid) {
+                reads.incrementAndGet();
+                return super.readPage(pid);
+            }
+        };
+        Database.getCatalog().addTable(file, "policies");
+        int pages = file.numPages();
+        for (ReplacementPolicy policy : new ReplacementPolicy[]{new LruPolicy(), new ClockPolicy(8), new TwoQueuePolicy(8)}) {
+            Database.resetBufferPool(8, policy);
+            TransactionId tid = new TransactionId();
+            SystemTestUtil.matchTuples(file, tid, tuples);
+
+            // a hot page fetched between the pages of a scan stays resident
+            reads.set(0);
+            for (int i = 0; i < pages; i++) {
+                Database.getBufferPool().getPage(tid, new HeapPageId(file.getId(), 0), Permissions.READ_ONLY);
+                Database.getBufferPool().getPage(tid, new HeapPageId(file.getId(), i), Permissions.READ_ONLY);
+            }
+            assertTrue(policy.getClass().getSimpleName(), reads.get() <= pages + 1);
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
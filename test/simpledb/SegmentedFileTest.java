@@ -0,0 +1,173 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SegmentedFileTest extends SimpleDbTestBase {
+    private static final int SEGMENT_PAGES = 4;
+
+    private TransactionId tid;
+    private final List<File> files = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getFileChannelManager().closeAll();
+        for (File f : files) {
+            for (int i = 0; i < 16; i++) {
+                new File(i == 0 ? f.getPath() : f.getPath() + "." + i).delete();
+            }
+            new File(f.getPath() + ".fsm").delete();
+            new File(f.getPath() + ".zm").delete();
+        }
+    }
+
+    private File tempFile() throws Exception {
+        File f = File.createTempFile("segments", ".dat");
+        files.add(f);
+        return f;
+    }
+
+    private HeapFile open(File f) {
+        HeapFile file = new HeapFile(f, Utility.getTupleDesc(2), false, false, SEGMENT_PAGES);
+        Database.getCatalog().addTable(file, "segments");
+        return file;
+    }
+
+    private int count(HeapFile file) throws Exception {
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * Appended pages fill one segment after the other, and the file reads
+     * back the same after reopening it.
+     */
+    @Test
+    public void growsBySegments() throws Exception {
+        File f = tempFile();
+        HeapFile file = open(f);
+        int rows = 0;
+        while (file.numPages() < 2 * SEGMENT_PAGES + 1) {
+            Database.getBufferPool().insertTuple(tid, file.getId(), Utility.getHeapTuple(rows++, 2));
+            if (rows % 200 == 0) {
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+
+        assertEquals(3, file.getSegmentedFile().numSegments());
+        assertEquals((long) SEGMENT_PAGES * BufferPool.getPageSize(), f.length());
+        assertTrue(new File(f.getPath() + ".2").exists());
+        assertFalse(new File(f.getPath() + ".3").exists());
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getFileChannelManager().closeAll();
+        HeapFile reopened = open(f);
+        assertEquals(file.numPages(), reopened.numPages());
+        assertEquals(rows, count(reopened));
+    }
+
+    /**
+     * A single file longer than a segment, as HeapFileEncoder writes it, is
+     * split into segments when opened.
+     */
+    @Test
+    public void splitsSingleFile() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 5000, 1000, null, tuples);
+        files.add(f);
+        long pages = f.length() / BufferPool.getPageSize();
+        assertTrue(pages > 2 * SEGMENT_PAGES);
+
+        HeapFile file = open(f);
+        assertEquals(pages, file.numPages());
+        assertEquals((long) SEGMENT_PAGES * BufferPool.getPageSize(), f.length());
+        assertEquals((pages + SEGMENT_PAGES - 1) / SEGMENT_PAGES, file.getSegmentedFile().numSegments());
+        SystemTestUtil.matchTuples(file, tid, tuples);
+    }
+
+    /**
+     * Preallocated pages are empty pages that inserts use, and truncating
+     * deletes the segments left empty.
+     */
+    @Test
+    public void preallocateAndTruncate() throws Exception {
+        File f = tempFile();
+        HeapFile file = open(f);
+        file.preallocate(2 * SEGMENT_PAGES + 2);
+        assertEquals(2 * SEGMENT_PAGES + 2, file.numPages());
+        assertEquals(3, file.getSegmentedFile().numSegments());
+        assertEquals(0, count(file));
+
+        Tuple t = Utility.getHeapTuple(7, 2);
+        Database.getBufferPool().insertTuple(tid, file.getId(), t);
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(2 * SEGMENT_PAGES + 2, file.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+
+        file.truncate(SEGMENT_PAGES - 1);
+        assertEquals(SEGMENT_PAGES - 1, file.numPages());
+        assertEquals(1, file.getSegmentedFile().numSegments());
+        assertFalse(new File(f.getPath() + ".1").exists());
+        assertEquals(1, count(file));
+    }
+
+    /**
+     * Pages past the first 2 GB of a single file are addressed correctly.
+     */
+    @Test
+    public void largeOffsets() throws Exception {
+        File f = tempFile();
+        HeapFile owner = new HeapFile(f, Utility.getTupleDesc(1));
+        SegmentedFile single = new SegmentedFile(owner, f, 0);
+        int pgNo = (int) ((3L << 30) / BufferPool.getPageSize());
+        byte[] data = new byte[BufferPool.getPageSize()];
+        Arrays.fill(data, (byte) 42);
+        // sparse: only the last page takes up disk space
+        single.write(pgNo, ByteBuffer.wrap(data));
+        assertEquals(pgNo + 1, single.numPages());
+        assertEquals((long) (pgNo + 1) * BufferPool.getPageSize(), f.length());
+
+        byte[] read = new byte[BufferPool.getPageSize()];
+        assertEquals(read.length, single.read(pgNo, ByteBuffer.wrap(read)));
+        assertArrayEquals(data, read);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SegmentedFileTest.class);
+    }
+}
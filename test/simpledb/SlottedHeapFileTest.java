@@ -0,0 +1,178 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SlottedHeapFileTest extends SimpleDbTestBase {
+    private TupleDesc td;
+    private SlottedHeapFile file;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.VARCHAR_TYPE}, new String[]{"id", "code"});
+        File f = File.createTempFile("slotted", ".dat");
+        f.deleteOnExit();
+        file = new SlottedHeapFile(f, td);
+        Database.getCatalog().addTable(file);
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private Tuple tuple(int id, String code) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(id));
+        t.setField(1, new VarStringField(code));
+        return t;
+    }
+
+    /**
+     * A page written with getPageData reads back with the same tuples, and
+     * deleted tuples give their space back.
+     */
+    @Test
+    public void pageRoundTrip() throws Exception {
+        HeapPageId pid = new HeapPageId(file.getId(), 0);
+        SlottedHeapPage page = new SlottedHeapPage(pid, SlottedHeapPage.createEmptyPageData());
+        int empty = page.getFreeSpace();
+        Tuple a = tuple(1, "a");
+        Tuple b = tuple(2, "bbbb");
+        Tuple c = tuple(3, "");
+        page.insertTuple(a);
+        page.insertTuple(b);
+        page.insertTuple(c);
+        assertEquals(empty - 3 * SlottedHeapPage.SLOT_SIZE - (8 + 1) - (8 + 4) - 8, page.getFreeSpace());
+
+        page.deleteTuple(b);
+        SlottedHeapPage copy = new SlottedHeapPage(pid, page.getPageData());
+        assertEquals(page.getFreeSpace(), copy.getFreeSpace());
+        assertEquals(3, copy.getNumSlots());
+        assertFalse(copy.isSlotUsed(1));
+        assertSameFields(a, copy.getTuple(new RecordId(pid, 0)));
+        assertSameFields(c, copy.getTuple(new RecordId(pid, 2)));
+
+        // the empty slot is reused before the directory grows
+        Tuple d = tuple(4, "dd");
+        copy.insertTuple(d);
+        assertEquals(1, d.getRecordId().getTupleNumber());
+        Iterator<Tuple> it = copy.iterator();
+        for (Tuple expected : new Tuple[]{a, d, c}) {
+            assertSameFields(expected, it.next());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    private static void assertSameFields(Tuple expected, Tuple actual) {
+        assertEquals(expected.getField(0), actual.getField(0));
+        assertEquals(expected.getField(1), actual.getField(1));
+    }
+
+    @Test(expected = DbException.class)
+    public void insertIntoFullPage() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(new HeapPageId(file.getId(), 0),
+                SlottedHeapPage.createEmptyPageData());
+        for (int i = 0; ; i++) {
+            page.insertTuple(tuple(i, "0123456789"));
+        }
+    }
+
+    /**
+     * Short varchar values take far fewer bytes than fixed-size strings, so
+     * many more tuples fit on each page.
+     */
+    @Test
+    public void morePerPage() throws Exception {
+        int heapPerPage = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        int n = 4 * heapPerPage;
+        for (int i = 0; i < n; i++) {
+            Database.getBufferPool().insertTuple(tid, file.getId(), tuple(i, "c" + (i % 10)));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1, file.numPages());
+
+        tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, file.getId(), "t");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            assertEquals("c" + (((IntField) t.getField(0)).getValue() % 10),
+                    ((StringField) t.getField(1)).getValue());
+            count++;
+        }
+        scan.close();
+        assertEquals(n, count);
+    }
+
+    /**
+     * A text file converted with HeapFileEncoder and declared in a schema
+     * file loads as a SlottedHeapFile.
+     */
+    @Test
+    public void encodeAndLoadSchema() throws Exception {
+        File dir = file.getFile().getParentFile();
+        String name = "varchars" + System.nanoTime();
+        File txt = new File(dir, name + ".txt");
+        File dat = new File(dir, name + ".dat");
+        File schema = new File(dir, name + ".schema");
+        txt.deleteOnExit();
+        dat.deleteOnExit();
+        schema.deleteOnExit();
+        int n = 2000;
+        try (FileWriter w = new FileWriter(txt)) {
+            for (int i = 0; i < n; i++) {
+                w.write(i + "," + "k" + i + "\n");
+            }
+        }
+        try (FileWriter w = new FileWriter(schema)) {
+            w.write(name + " (id int pk, code varchar)\n");
+        }
+        HeapFileEncoder.convertSlotted(txt, dat, BufferPool.getPageSize(), 2,
+                new Type[]{Type.INT_TYPE, Type.VARCHAR_TYPE}, ',');
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+
+        int tableId = Database.getCatalog().getTableId(name);
+        DbFile loaded = Database.getCatalog().getDatabaseFile(tableId);
+        assertTrue(loaded instanceof SlottedHeapFile);
+        assertTrue(((HeapFile) loaded).numPages() < n / 10);
+
+        SeqScan scan = new SeqScan(tid, tableId, "t");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            assertEquals(Type.VARCHAR_TYPE, t.getField(1).getType());
+            assertEquals("k" + count, ((StringField) t.getField(1)).getValue());
+            count++;
+        }
+        scan.close();
+        assertEquals(n, count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapFileTest.class);
+    }
+}
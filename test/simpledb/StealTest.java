@@ -0,0 +1,132 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class StealTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 8;
+
+    private File f;
+    private HeapFile file;
+    private List<List<Integer>> tuples;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        f = SystemTestUtil.createRandomHeapFileUnopened(2, 1500, 1000, null, tuples);
+        file = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(file, "steal");
+        Database.resetBufferPool(POOL_PAGES).setStealEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().setStealEnabled(false);
+    }
+
+    private void insert(TransactionId tid, int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            Database.getBufferPool().insertTuple(tid, file.getId(), Utility.getHeapTuple(new int[]{i, -i}));
+        }
+    }
+
+    /** @return the tuples on disk, read past the BufferPool */
+    private int tuplesOnDisk() {
+        HeapFile raw = new HeapFile(f, file.getTupleDesc());
+        int n = 0;
+        for (int p = 0; p < raw.numPages(); p++) {
+            HeapPage page = (HeapPage) raw.readPage(new HeapPageId(file.getId(), p));
+            for (Iterator<Tuple> it = page.iterator(); it.hasNext(); it.next()) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * A transaction may dirty many more pages than the pool holds.
+     */
+    @Test
+    public void largeTransactionCommits() throws Exception {
+        TransactionId tid = new TransactionId();
+        insert(tid, 5 * POOL_PAGES * 504);
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(file.numPages() > 5 * POOL_PAGES);
+
+        Database.resetBufferPool(POOL_PAGES);
+        for (int i = 0; i < 5 * POOL_PAGES * 504; i++) {
+            tuples.add(Arrays.asList(i, -i));
+        }
+        SystemTestUtil.matchTuples(file, tuples);
+    }
+
+    /**
+     * Aborting puts the pages written before the end of the transaction
+     * back the way they were, whether BufferPool or Transaction aborts.
+     */
+    @Test
+    public void abortUndoesWrittenPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        insert(tid, 3 * POOL_PAGES * 504);
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        int deleted = 0;
+        while (it.hasNext() && deleted < 1000) {
+            Database.getBufferPool().deleteTuple(tid, it.next());
+            deleted++;
+        }
+        it.close();
+        assertTrue(tuplesOnDisk() != tuples.size());
+        Database.getBufferPool().transactionComplete(tid, false);
+        assertEquals(tuples.size(), tuplesOnDisk());
+        SystemTestUtil.matchTuples(file, tuples);
+
+        Transaction t = new Transaction();
+        t.start();
+        insert(t.getId(), 3 * POOL_PAGES * 504);
+        t.abort();
+        assertEquals(tuples.size(), tuplesOnDisk());
+        Database.resetBufferPool(POOL_PAGES);
+        SystemTestUtil.matchTuples(file, tuples);
+    }
+
+    /**
+     * The cleaner writes dirty pages while the pool is nearly full, so that
+     * evictions find clean pages.
+     */
+    @Test
+    public void cleanerWritesAhead() throws Exception {
+        TransactionId tid = new TransactionId();
+        int before = tuplesOnDisk();
+        // fills the pages of the file, then dirties new ones
+        insert(tid, (POOL_PAGES - 2) * 504);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (tuplesOnDisk() == before && System.currentTimeMillis() < deadline) {
+            Thread.sleep(BufferPool.CLEANER_INTERVAL_MS);
+        }
+        assertTrue(tuplesOnDisk() > before);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(StealTest.class);
+    }
+}
@@ -0,0 +1,169 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Lock;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TransactionCompleteTest extends SimpleDbTestBase {
+    private HeapFile file;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        file = SystemTestUtil.createRandomHeapFile(2, 2000, null, new ArrayList<>());
+    }
+
+    private HeapPage deleteFirst(TransactionId tid, int pgNo) throws Exception {
+        HeapPageId pid = new HeapPageId(file.getId(), pgNo);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        Database.getBufferPool().deleteTuple(tid, page.iterator().next());
+        return page;
+    }
+
+    /**
+     * Releasing the locks of a transaction releases exactly its locks.
+     */
+    @Test
+    public void releasesOwnLocks() {
+        LockManager lm = new LockManager();
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        PageId p0 = new HeapPageId(file.getId(), 0);
+        PageId p1 = new HeapPageId(file.getId(), 1);
+        PageId p2 = new HeapPageId(file.getId(), 2);
+        assertTrue(lm.getLock(t1, p0, Lock.LockType.EXCLUSIVE));
+        assertTrue(lm.getLock(t1, p1, Lock.LockType.SHARING));
+        assertTrue(lm.getLock(t2, p1, Lock.LockType.SHARING));
+        assertTrue(lm.getLock(t2, p2, Lock.LockType.EXCLUSIVE));
+        assertEquals(new HashSet<>(Arrays.asList(p0, p1)), new HashSet<>(lm.getPagesLockedBy(t1)));
+
+        lm.realeaseAllLocks(t1);
+        assertTrue(lm.getPagesLockedBy(t1).isEmpty());
+        assertFalse(lm.holdLock(t1, p1));
+        assertTrue(lm.holdLock(t2, p1));
+        assertEquals(new HashSet<>(Arrays.asList(p1, p2)), new HashSet<>(lm.getPagesLockedBy(t2)));
+
+        TransactionId t3 = new TransactionId();
+        assertTrue(lm.getLock(t3, p0, Lock.LockType.EXCLUSIVE));
+        lm.releaseLock(t2, p1);
+        assertTrue(lm.getLock(t3, p1, Lock.LockType.EXCLUSIVE));
+    }
+
+    /**
+     * A commit writes and resets the before images of its own pages only,
+     * and an abort drops only its own pages.
+     */
+    @Test
+    public void completesOwnPages() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        HeapPage p0 = deleteFirst(t1, 0);
+        HeapPage p1 = deleteFirst(t2, 1);
+        int full = p0.getBeforeImage().getNumEmptySlots();
+
+        Database.getBufferPool().transactionComplete(t2, true);
+        assertNull(p1.isDirty());
+        assertEquals(p1.getNumEmptySlots(), p1.getBeforeImage().getNumEmptySlots());
+        // t1 has yet to commit: its page and before image are untouched
+        assertEquals(t1, p0.isDirty());
+        assertEquals(full, p0.getBeforeImage().getNumEmptySlots());
+        assertEquals(full + 1, p0.getNumEmptySlots());
+
+        Database.getBufferPool().transactionComplete(t1, false);
+        TransactionId t3 = new TransactionId();
+        HeapPage p0again = (HeapPage) Database.getBufferPool()
+                .getPage(t3, p0.getId(), Permissions.READ_ONLY);
+        HeapPage p1again = (HeapPage) Database.getBufferPool()
+                .getPage(t3, p1.getId(), Permissions.READ_ONLY);
+        assertEquals(full, p0again.getNumEmptySlots());
+        assertSame(p1, p1again);
+        Database.getBufferPool().transactionComplete(t3);
+    }
+
+    /**
+     * An abort also drops the pages its transaction changed without getting
+     * to mark them dirty: a B+ tree delete takes the tuple off the leaf
+     * before it locks the sibling it redistributes with.
+     */
+    @Test
+    public void abortDropsPagesChangedInPlace() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 2 * BTreeUtility.getNumTuplesPerPage(2),
+                null, null, 0);
+        BufferPool bp = Database.getBufferPool();
+        bp.getLockManager().setDeadlockPolicy(LockManager.DeadlockPolicy.NO_WAIT);
+
+        // leave the left-most leaf at minimum occupancy
+        TransactionId t1 = new TransactionId();
+        List<Tuple> tuples = new ArrayList<>();
+        DbFileIterator it = bf.iterator(t1);
+        it.open();
+        while (it.hasNext()) {
+            tuples.add(it.next());
+        }
+        it.close();
+        BTreePageId leafId = (BTreePageId) tuples.get(0).getRecordId().getPageId();
+        BTreeLeafPage leaf = (BTreeLeafPage) bp.getPage(t1, leafId, Permissions.READ_ONLY);
+        int minEmpty = leaf.getMaxTuples() - leaf.getMaxTuples() / 2;
+        int deleted = 0;
+        while (leaf.getNumEmptySlots() < minEmpty) {
+            bp.deleteTuple(t1, tuples.get(deleted++));
+        }
+        BTreePageId siblingId = leaf.getRightSiblingId();
+        assertNotNull(siblingId);
+        bp.transactionComplete(t1);
+
+        // the next delete needs the sibling, which another transaction reads
+        TransactionId reader = new TransactionId();
+        bp.getPage(reader, siblingId, Permissions.READ_ONLY);
+        TransactionId t2 = new TransactionId();
+        try {
+            bp.deleteTuple(t2, tuples.get(deleted));
+            fail("expected the delete to abort");
+        } catch (TransactionAbortedException e) {
+            // NO_WAIT
+        }
+        bp.transactionComplete(t2, false);
+        bp.transactionComplete(reader);
+
+        TransactionId t3 = new TransactionId();
+        leaf = (BTreeLeafPage) bp.getPage(t3, leafId, Permissions.READ_ONLY);
+        assertEquals(minEmpty, leaf.getNumEmptySlots());
+        int count = 0;
+        it = bf.iterator(t3);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(tuples.size() - deleted, count);
+        bp.transactionComplete(t3);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TransactionCompleteTest.class);
+    }
+}
@@ -0,0 +1,121 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.InstrumentedHeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class WarmRestartTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 16;
+
+    private InstrumentedHeapFile file;
+    private File hotPages;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        Database.resetBufferPool(POOL_PAGES);
+        file = new InstrumentedHeapFile(SystemTestUtil.createRandomHeapFileUnopened(2, 10000, 1000, null, new ArrayList<>()), Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(file, "warm");
+        assertTrue(file.numPages() >= 10);
+        hotPages = File.createTempFile("bufferpool", ".hot");
+        hotPages.deleteOnExit();
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().disableWarmRestart();
+    }
+
+    private void readPage(int pgNo) throws Exception {
+        Database.getBufferPool().getPage(tid, new HeapPageId(file.getId(), pgNo), Permissions.READ_ONLY);
+    }
+
+    /** Restarts the pool, as far as the pages it holds are concerned. */
+    private void restart(int pages) {
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(pages);
+        tid = new TransactionId();
+        file.reads.set(0);
+    }
+
+    /**
+     * The pages saved are read back, and hit afterwards.
+     */
+    @Test
+    public void saveAndReload() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            readPage(i);
+        }
+        Database.getBufferPool().saveHotPages(hotPages);
+
+        restart(POOL_PAGES);
+        assertEquals(10, (int) Database.getBufferPool().loadHotPages(hotPages).get());
+        assertEquals(10, Database.getBufferPool().getResidentPages());
+        assertEquals(10, file.reads.get());
+        for (int i = 0; i < 10; i++) {
+            readPage(i);
+        }
+        assertEquals(10, file.reads.get());
+    }
+
+    /**
+     * A smaller pool reads back the hottest pages only.
+     */
+    @Test
+    public void reloadHottest() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            readPage(i);
+        }
+        readPage(2);
+        Database.getBufferPool().saveHotPages(hotPages);
+
+        restart(3);
+        assertEquals(3, (int) Database.getBufferPool().loadHotPages(hotPages).get());
+        file.reads.set(0);
+        readPage(2);
+        readPage(8);
+        readPage(9);
+        assertEquals(0, file.reads.get());
+    }
+
+    /**
+     * Warm restart reads the file back when it is turned on, and saves to
+     * it; a missing file reads nothing.
+     */
+    @Test
+    public void enableWarmRestart() throws Exception {
+        assertTrue(hotPages.delete());
+        assertEquals(0, (int) Database.getBufferPool().enableWarmRestart(hotPages).get());
+        readPage(0);
+        readPage(1);
+        Database.getBufferPool().saveHotPages();
+        assertTrue(hotPages.exists());
+
+        restart(POOL_PAGES);
+        assertEquals(2, (int) Database.getBufferPool().enableWarmRestart(hotPages).get());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(WarmRestartTest.class);
+    }
+}
@@ -0,0 +1,240 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Filter;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.InstrumentedHeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ZoneMapTest extends SimpleDbTestBase {
+    private static final int ROWS = 2000;
+
+    private File f;
+    private TupleDesc td;
+    private InstrumentedHeapFile file;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        td = Utility.getTupleDesc(2, "f");
+        f = File.createTempFile("zones", ".dat");
+        f.deleteOnExit();
+        file = new InstrumentedHeapFile(f, td);
+        Database.getCatalog().addTable(file, "zones");
+        file.getFreeSpaceMap().getFile().deleteOnExit();
+        file.getZoneMap().getFile().deleteOnExit();
+
+        tid = new TransactionId();
+        for (int i = 0; i < ROWS; i++) {
+            Database.getBufferPool().insertTuple(tid, file.getId(), tuple(i));
+            if (i % 500 == 499) {
+                // keep the dirty pages of a transaction within the pool
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        file.reads.set(0);
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private Tuple tuple(int i) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(i));
+        t.setField(1, new IntField(-i));
+        return t;
+    }
+
+    /** @return a Filter applying p to a scan of the table that skips pages by p */
+    private Filter filter(Predicate p) {
+        SeqScan scan = new SeqScan(tid, file.getId(), "z");
+        scan.addPagePredicate(p);
+        return new Filter(p, scan);
+    }
+
+    private int count(Filter filter) throws Exception {
+        int n = 0;
+        filter.open();
+        while (filter.hasNext()) {
+            assertTrue(filter.getPredicate().filter(filter.next()));
+            n++;
+        }
+        filter.close();
+        return n;
+    }
+
+    /**
+     * Every page written has an exact entry.
+     */
+    @Test
+    public void entriesMatchPages() throws Exception {
+        ZoneMap zm = file.getZoneMap();
+        int rows = 0;
+        for (int p = 0; p < file.numPages(); p++) {
+            int count = zm.getCount(p);
+            assertTrue(count > 0);
+            assertEquals(rows, zm.getMin(p, 0));
+            assertEquals(rows + count - 1, zm.getMax(p, 0));
+            assertEquals(-(rows + count - 1), zm.getMin(p, 1));
+            assertEquals(-rows, zm.getMax(p, 1));
+            rows += count;
+        }
+        assertEquals(ROWS, rows);
+    }
+
+    /**
+     * A filtered scan reads only the pages that can hold a match.
+     */
+    @Test
+    public void filterSkipsPages() throws Exception {
+        Filter filter = filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(ROWS - 10)));
+        assertEquals(10, count(filter));
+        assertTrue(file.reads.get() <= 2);
+
+        // also through a second filter, on the other column
+        file.reads.set(0);
+        Predicate notTwo = new Predicate(0, Predicate.Op.NOT_EQUALS, new IntField(2));
+        Predicate last = new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(-5));
+        SeqScan scan = new SeqScan(tid, file.getId(), "z");
+        scan.addPagePredicate(notTwo);
+        scan.addPagePredicate(last);
+        filter = new Filter(last, new Filter(notTwo, scan));
+        assertEquals(4, count(filter));
+        assertEquals(1, file.reads.get());
+
+        // no page holds a match
+        file.reads.set(0);
+        filter = filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(0)));
+        assertEquals(0, count(filter));
+        assertEquals(0, file.reads.get());
+    }
+
+    /**
+     * A Filter leaves its child scan alone; the predicate cannot be pushed
+     * into a scan that is already running.
+     */
+    @Test
+    public void pushIsExplicit() throws Exception {
+        Predicate p = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(0));
+        SeqScan scan = new SeqScan(tid, file.getId(), "z");
+        assertEquals(0, count(new Filter(p, scan)));
+        assertEquals(file.numPages(), file.reads.get());
+        assertTrue(file.numPages() > 2);
+
+        scan.open();
+        try {
+            scan.addPagePredicate(p);
+            fail("pushed into an open scan");
+        } catch (IllegalStateException expected) {
+        }
+        scan.close();
+
+        // the planner pushes the predicates of its filters
+        file.reads.set(0);
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("zones", new TableStats(file.getId(), 1000));
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(file.getId(), "z1");
+        lp.addScan(file.getId(), "z2");
+        lp.addJoin("z1.f0", "z2.f0", Predicate.Op.EQUALS);
+        lp.addFilter("z1.f0", Predicate.Op.GREATER_THAN_OR_EQ, String.valueOf(ROWS - 10));
+        lp.addFilter("z2.f1", Predicate.Op.LESS_THAN_OR_EQ, String.valueOf(-(ROWS - 10)));
+        lp.addProjectField("null.*", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        file.reads.set(0);
+        int n = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            plan.next();
+            n++;
+        }
+        plan.close();
+        assertEquals(10, n);
+        assertTrue(file.reads.get() <= 2);
+    }
+
+    /**
+     * Tuples inserted by a running transaction are not skipped.
+     */
+    @Test
+    public void seesUncommittedInserts() throws Exception {
+        SeqScan scan = new SeqScan(tid, file.getId(), "z");
+        scan.open();
+        Tuple first = scan.next();
+        scan.close();
+        Database.getBufferPool().deleteTuple(tid, first);
+        Database.getBufferPool().insertTuple(tid, file.getId(), tuple(ROWS * 10));
+        assertEquals(0, first.getRecordId().getPageId().getPageNumber());
+
+        Filter filter = filter(new Predicate(0, Predicate.Op.EQUALS, new IntField(ROWS * 10)));
+        assertEquals(1, count(filter));
+    }
+
+    /**
+     * The map survives reopening the file, and is dropped when the data file
+     * changed behind its back.
+     */
+    @Test
+    public void persistence() throws Exception {
+        HeapFile reopened = new HeapFile(f, td);
+        assertEquals(file.getZoneMap().getCount(1), reopened.getZoneMap().getCount(1));
+        assertEquals(file.getZoneMap().getMax(1, 0), reopened.getZoneMap().getMax(1, 0));
+
+        assertTrue(f.setLastModified(f.lastModified() - 10000));
+        reopened = new HeapFile(f, td);
+        assertEquals(-1, reopened.getZoneMap().getCount(1));
+    }
+
+    /**
+     * Writing a page persists the entry kept up to date by inserts without
+     * decoding the tuples of the page; only an unknown entry is computed.
+     */
+    @Test
+    public void writeKeepsEntry() throws Exception {
+        ZoneMap zones = file.getZoneMap();
+        int count = zones.getCount(1);
+        zones.pageWritten(1, () -> {
+            throw new AssertionError("entry recomputed");
+        });
+        assertEquals(count, zones.getCount(1));
+
+        int unknown = file.numPages() + 10;
+        assertEquals(-1, zones.getCount(unknown));
+        zones.pageWritten(unknown, () -> Collections.singletonList(tuple(7)).iterator());
+        assertEquals(1, zones.getCount(unknown));
+        assertEquals(7, zones.getMax(unknown, 0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ZoneMapTest.class);
+    }
+}
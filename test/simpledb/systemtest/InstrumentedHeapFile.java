@@ -0,0 +1,24 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import simpledb.storage.HeapFile;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.storage.TupleDesc;
+
+/** A HeapFile that counts the pages read from disk. */
+public class InstrumentedHeapFile extends HeapFile {
+    public final AtomicInteger reads = new AtomicInteger();
+
+    public InstrumentedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+    }
+
+    @Override
+    public Page readPage(PageId pid) {
+        reads.incrementAndGet();
+        return super.readPage(pid);
+    }
+}
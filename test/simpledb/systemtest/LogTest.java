@@ -218,6 +218,31 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestAbortTwoTables()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        doInsert(hf2, 3, 4);
+
+        // *** Test:
+        // one transaction changes page 0 of both tables, then aborts:
+        // both pages should be rolled back
+
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 5);
+        insertRow(hf2, t, 6);
+        abort(t);
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 5, false);
+        look(hf2, t, 3, true);
+        look(hf2, t, 6, false);
+        t.commit();
+    }
+
     @Test public void TestAbortCommitInterleaved()
             throws IOException, DbException, TransactionAbortedException {
         setup();
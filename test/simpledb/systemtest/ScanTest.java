@@ -110,6 +110,38 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /** Verifies that a SeqScan with a read-ahead window loads the following
+     * pages in the background and still returns every tuple in order.
+     */
+    @Test public void testReadAhead() throws Exception {
+        final int PAGES = 30;
+        final int WINDOW = 8;
+        List<List<Integer>> tuples = new ArrayList<>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, 992*PAGES, 1000, null, tuples);
+        InstrumentedHeapFile table = new InstrumentedHeapFile(f, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId(), "table", WINDOW);
+        scan.open();
+        assertTrue(scan.hasNext());
+
+        // page 0 plus the whole window should get read without the scan moving
+        long deadline = System.currentTimeMillis() + 5000;
+        while (table.reads.get() < WINDOW + 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(table.reads.get() >= WINDOW + 1);
+
+        List<List<Integer>> result = new ArrayList<>();
+        while (scan.hasNext()) {
+            result.add(SystemTestUtil.tupleToList(scan.next()));
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(tuples, result);
+    }
+
     /** Verifies SeqScan's getTupleDesc prefixes the table name + "." to the field names
      * @throws IOException
      */